@@ -0,0 +1,194 @@
+package Protocol;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Sends the acknowledgements of a component from the socket it received the
+ * acknowledged packets on. With a window of 0 every acknowledgement is sent
+ * straight away. With a larger window, acknowledgements to the same peer within
+ * the window are collected and sent together in <b><code>MULTI_ACK</code></b>
+ * packets of up to one MTU, so that a burst of packets is acknowledged with a
+ * single packet. <br>
+ * </br>
+ * Multi Ack Layout: [PacketType, CACHE_N, MULTI_ACK, 0, 0, 0, 0, 0, ...Records] <br>
+ * </br>
+ * Record Layout: [AckLen (2 bytes), ...AckBytes] <br>
+ * </br>
+ * where each record is an acknowledgement as it would have been sent on its own.
+ * The header has a TopicLen of 0, topic id 0 and epoch 0, so that it can be
+ * parsed like any other header.
+ */
+public class AckCoalescer {
+    public static final int MTU = 1500;
+    public static final int MULTI_ACK_HEADER_LEN = Protocol.HEADER_LEN + Protocol.TOPIC_ID_LEN + Protocol.EPOCH_LEN;
+
+    private Output output;
+    private Transport transport;
+    private volatile int windowMs;
+
+    // Guarded by the lock of this coalescer.
+    private HashMap<InetSocketAddress, ArrayList<byte[]>> pending;
+    private boolean scheduled;
+
+    /**
+     * Socket the acknowledgements are sent from.
+     */
+    public interface Output {
+        /**
+         * Sends a datagram to the peer.
+         * @param datagram bytes of the datagram
+         * @param peer     address of the peer
+         * @throws Exception if the datagram could not be sent
+         */
+        void send(byte[] datagram, InetSocketAddress peer) throws Exception;
+    }
+
+    /**
+     * <b><code>AckCoalescer Constructor</code></b>. Starts with a window of 0,
+     * sending every acknowledgement straight away.
+     * @param output    socket the acknowledgements are sent from
+     * @param transport <b><code>Transport</code></b> of the socket, whose clock
+     *                  times the window
+     */
+    public AckCoalescer(Output output, Transport transport) {
+        this.output = output;
+        this.transport = transport;
+        pending = new HashMap<InetSocketAddress, ArrayList<byte[]>>();
+    }
+
+    /**
+     * Sets how long acknowledgements wait for others to the same peer. A window
+     * of 0 turns coalescing off. Peers must be able to decode
+     * <b><code>MULTI_ACK</code></b> packets if the window is larger than 0.
+     * @param windowMs window in ms
+     */
+    public void setWindow(int windowMs) {
+        this.windowMs = Math.max(0, windowMs);
+        if (this.windowMs == 0) flush();
+    }
+
+    /**
+     * Sends the acknowledgement to the peer, or holds it back until the window of
+     * the first acknowledgement waiting for the peer closes.
+     * @param ack  bytes of the acknowledgement
+     * @param peer address of the peer
+     */
+    public void acknowledge(byte[] ack, InetSocketAddress peer) {
+        int window = windowMs;
+        if (window == 0) {
+            send(ack, peer);
+            return;
+        }
+        synchronized (this) {
+            ArrayList<byte[]> acks = pending.get(peer);
+            if (acks == null) {
+                acks = new ArrayList<byte[]>();
+                pending.put(peer, acks);
+            }
+            acks.add(ack);
+            if (!scheduled) {
+                scheduled = true;
+                transport.schedule(this::flush, window);
+            }
+        }
+    }
+
+    /**
+     * Sends every acknowledgement which is being held back, packing the ones to
+     * the same peer into as few <b><code>MULTI_ACK</code></b> packets as possible.
+     */
+    public void flush() {
+        HashMap<InetSocketAddress, ArrayList<byte[]>> ready;
+        synchronized (this) {
+            scheduled = false;
+            if (pending.isEmpty()) return;
+            ready = pending;
+            pending = new HashMap<InetSocketAddress, ArrayList<byte[]>>();
+        }
+        for (Map.Entry<InetSocketAddress, ArrayList<byte[]>> entry : ready.entrySet()) {
+            for (byte[] packet : pack(entry.getValue())) {
+                send(packet, entry.getKey());
+            }
+        }
+    }
+
+    private void send(byte[] datagram, InetSocketAddress peer) {
+        try {
+            output.send(datagram, peer);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Packs acknowledgements into <b><code>MULTI_ACK</code></b> packets of up to
+     * one MTU. A packet which would only hold a single acknowledgement is replaced
+     * by the acknowledgement itself.
+     * @param acks acknowledgements to the same peer
+     * @return packets to be sent
+     */
+    public static ArrayList<byte[]> pack(ArrayList<byte[]> acks) {
+        ArrayList<byte[]> packets = new ArrayList<byte[]>();
+        int first = 0;
+        while (first < acks.size()) {
+            int length = MULTI_ACK_HEADER_LEN;
+            int last = first;
+            while (last < acks.size() && length + 2 + acks.get(last).length <= MTU) {
+                length += 2 + acks.get(last).length;
+                last++;
+            }
+            if (last - first <= 1) {
+                packets.add(acks.get(first));
+                first++;
+                continue;
+            }
+            ByteBuffer packet = ByteBuffer.allocate(length);
+            packet.put((byte) (acks.get(first)[Protocol.PACKET_TYPE] & ~Protocol.EXTENDED));
+            packet.put(Protocol.CACHE_N);
+            packet.put(Protocol.MULTI_ACK);
+            packet.put((byte) 0).putShort((short) 0).putShort((short) 0);
+            for (int i = first; i < last; i++) {
+                packet.putShort((short) acks.get(i).length).put(acks.get(i));
+            }
+            packets.add(packet.array());
+            first = last;
+        }
+        return packets;
+    }
+
+    /**
+     * Returns the acknowledgements carried by a received packet, which is either
+     * a single acknowledgement or a <b><code>MULTI_ACK</code></b> packet.
+     * Decoding stops at the first record that is cut short.
+     * @param data   received bytes
+     * @param length number of received bytes
+     * @return ArrayList of the acknowledgements in the order they were packed
+     */
+    public static ArrayList<byte[]> unpack(byte[] data, int length) {
+        ArrayList<byte[]> acks = new ArrayList<byte[]>();
+        if (length < MULTI_ACK_HEADER_LEN || data[Protocol.DATA_TYPE] != Protocol.MULTI_ACK) {
+            byte[] ack = new byte[length];
+            System.arraycopy(data, 0, ack, 0, length);
+            acks.add(ack);
+            return acks;
+        }
+        int offset = MULTI_ACK_HEADER_LEN;
+        while (offset + 2 <= length) {
+            int ackLength = ((0xFF & data[offset]) << 8) + (0xFF & data[offset + 1]);
+            if (offset + 2 + ackLength > length) break;
+            byte[] ack = new byte[ackLength];
+            System.arraycopy(data, offset + 2, ack, 0, ackLength);
+            acks.add(ack);
+            offset += 2 + ackLength;
+        }
+        return acks;
+    }
+}
@@ -0,0 +1,186 @@
+package Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Payload of a <b><code>BATCH</code></b> packet, which carries many pieces of
+ * content, each under its own topic, in a single datagram that is acknowledged
+ * once. <br>
+ * </br>
+ * Record Layout: [DataType, TopicLen, ...TopicBytes, PayloadLen (2 bytes),
+ * ...PayloadBytes] <br>
+ * </br>
+ * where DataType is <b><code>STR</code></b> or <b><code>INT</code></b>.
+ */
+public class Batch {
+    public static final int RECORD_HEADER_LEN = 4; // Length of a record excluding its topic and payload bytes
+    public static final int MTU = 1500;
+
+    private byte[] buffer;
+    private int length;
+    private int count;
+
+    /**
+     * <b><code>Batch Constructor</code></b>. Creates an empty batch holding at
+     * most the given number of bytes of records.
+     * @param capacity maximum length of the records in bytes
+     */
+    public Batch(int capacity) {
+        buffer = new byte[Math.max(0, capacity)];
+        length = 0;
+        count = 0;
+    }
+
+    /**
+     * Returns the capacity left for records in a <b><code>BATCH</code></b> packet
+     * sent under the given topic, leaving room for an extended header.
+     * @param topicLength length of the topic bytes in the packet header
+     * @return maximum length of the records in bytes
+     */
+    public static int capacity(int topicLength) {
+        return MTU - Protocol.HEADER_LEN - topicLength - Protocol.SEQ_LEN;
+    }
+
+    /**
+     * Appends a record to the batch, if it fits.
+     * @param dataType <b><code>STR</code></b> or <b><code>INT</code></b>
+     * @param topic    topic bytes of the record
+     * @param payload  content bytes of the record
+     * @return true if the record was added, false if the batch is too full
+     */
+    public boolean add(byte dataType, byte[] topic, byte[] payload) {
+        int recordLength = RECORD_HEADER_LEN + topic.length + payload.length;
+        if(topic.length > 0xFF || payload.length > 0xFFFF || length + recordLength > buffer.length) return false;
+        buffer[length++] = dataType;
+        buffer[length++] = (byte) topic.length;
+        System.arraycopy(topic, 0, buffer, length, topic.length);
+        length += topic.length;
+        buffer[length++] = (byte) (payload.length >>> 8);
+        buffer[length++] = (byte) payload.length;
+        System.arraycopy(payload, 0, buffer, length, payload.length);
+        length += payload.length;
+        count++;
+        return true;
+    }
+
+    /**
+     * Returns the number of records in the batch.
+     * @return number of records
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the records encoded as the payload of a <b><code>BATCH</code></b>
+     * packet.
+     * @return bytes of the records
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Decodes the records of a <b><code>BATCH</code></b> packet. Decoding stops at
+     * the first record that is cut short.
+     * @param data   packet bytes
+     * @param offset position of the first record, after the packet header
+     * @param end    position after the last record
+     * @return ArrayList of the records in the order they were added
+     */
+    public static ArrayList<Record> decode(byte[] data, int offset, int end) {
+        ArrayList<Record> records = new ArrayList<Record>();
+        while(offset + RECORD_HEADER_LEN <= end) {
+            byte dataType = data[offset];
+            int topicLength = 0xFF & data[offset + 1];
+            int position = offset + 2 + topicLength;
+            if(position + 2 > end) break;
+            int payloadLength = ((0xFF & data[position]) << 8) + (0xFF & data[position + 1]);
+            if(position + 2 + payloadLength > end) break;
+            byte[] payload = new byte[payloadLength];
+            System.arraycopy(data, position + 2, payload, 0, payloadLength);
+            records.add(new Record(dataType, new String(data, offset + 2, topicLength), payload));
+            offset = position + 2 + payloadLength;
+        }
+        return records;
+    }
+
+    /**
+     * Returns the position after the record starting at the given position of a
+     * buffer, so that the records of a <b><code>BATCH</code></b> packet can be read
+     * in place without decoding them.
+     * @param data   packet buffer
+     * @param offset position of the record
+     * @param end    position after the last record
+     * @return position after the record, or -1 if no whole record starts there
+     */
+    public static int recordEnd(ByteBuffer data, int offset, int end) {
+        if(offset + RECORD_HEADER_LEN > end) return -1;
+        int position = topicOffset(offset) + topicLength(data, offset);
+        if(position + 2 > end) return -1;
+        int recordEnd = position + 2 + payloadLength(data, offset);
+        return recordEnd > end ? -1 : recordEnd;
+    }
+
+    /**
+     * Returns the position of the topic bytes of the record at the given position.
+     * @param offset position of the record
+     * @return position of the topic bytes
+     */
+    public static int topicOffset(int offset) {
+        return offset + 2;
+    }
+
+    /**
+     * Returns the length of the topic of the record at the given position.
+     * @param data   packet buffer
+     * @param offset position of the record
+     * @return length of the topic bytes
+     */
+    public static int topicLength(ByteBuffer data, int offset) {
+        return 0xFF & data.get(offset + 1);
+    }
+
+    /**
+     * Returns the position of the payload of the record at the given position.
+     * @param data   packet buffer
+     * @param offset position of the record
+     * @return position of the payload bytes
+     */
+    public static int payloadOffset(ByteBuffer data, int offset) {
+        return topicOffset(offset) + topicLength(data, offset) + 2;
+    }
+
+    /**
+     * Returns the length of the payload of the record at the given position.
+     * @param data   packet buffer
+     * @param offset position of the record
+     * @return length of the payload bytes
+     */
+    public static int payloadLength(ByteBuffer data, int offset) {
+        int position = topicOffset(offset) + topicLength(data, offset);
+        return ((0xFF & data.get(position)) << 8) + (0xFF & data.get(position + 1));
+    }
+
+    /**
+     * A single piece of content of a batch.
+     */
+    public static final class Record {
+        public final byte dataType;
+        public final String topic;
+        public final byte[] payload;
+
+        private Record(byte dataType, String topic, byte[] payload) {
+            this.dataType = dataType;
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+}
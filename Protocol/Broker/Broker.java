@@ -1,12 +1,20 @@
 package Protocol.Broker;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.stream.Collectors;
+import java.util.HashSet;
 
+import Protocol.AckCoalescer;
 import Protocol.Cache;
+import Protocol.DatagramIO;
+import Protocol.Log;
 import Protocol.Protocol;
+import Protocol.TopicDictionary;
+import Protocol.TopicPath;
+import Protocol.Transport;
 import Protocol.Connection.Connection;
 
 /**
@@ -18,9 +26,17 @@ public class Broker {
     private HashMap<String, Connection> topicList;
     private Connection brokerConnection;
     private Cache<Object> cache;
+    private volatile RetainedStore retained;
+    private volatile RetainedLog log;
     public Cache<SubscriberData> subscribers;
-    private BrokerReceiver receiver;
+    private SubscriptionIndex subscriptionIndex;
+    private MatchCache matchCache;
+    private TopicDictionary topicIds;
+    private BrokerReceiver[] receivers;
     private ArrayList<Connection> brokers;
+    private PacketDispatcher[] dispatchers;
+    private OutboundChannel outbound;
+    private Metrics metrics;
 
     /**
      * <b><code>Broker Constructor</b></code>. Takes in a port to indicate on which
@@ -33,26 +49,182 @@ public class Broker {
      * @throws Exception if the port specified is already in use
      */
     public Broker(int port) throws Exception {
+        this(port, PacketDispatcher.DEFAULT_WORKERS, PacketDispatcher.DEFAULT_QUEUE_CAPACITY, false,
+                OverloadPolicy.NEG_ACK);
+    }
+
+    /**
+     * <b><code>Broker Constructor</b></code>. Takes in a port to indicate on which
+     * port its listener will be receiving packets, along with the configuration of
+     * the pool that handles received packets. Brokers always use the localhost ip
+     * address.
+     * 
+     * @param port           <b><code>int</b></code> port on which the
+     *                       <b><code>BrokerReceiver</b></code> will be listening
+     *                       for incoming packets
+     * @param workers        number of threads handling received packets
+     * @param queueCapacity  maximum number of received packets waiting to be
+     *                       handled
+     * @param virtualThreads true if packets should be handled on virtual threads
+     * @param policy         what to do with a received packet when the queue is
+     *                       full
+     * @throws Exception if the port specified is already in use
+     * @see OverloadPolicy
+     */
+    public Broker(int port, int workers, int queueCapacity, boolean virtualThreads, OverloadPolicy policy)
+            throws Exception {
+        this(port, workers, queueCapacity, virtualThreads, policy, 1);
+    }
+
+    /**
+     * <b><code>Broker Constructor</b></code>. Same as above, but listens on the
+     * port with several receivers, each with a channel of its own and its own
+     * pool handling the packets it receives. The channels share the port through
+     * <b><code>SO_REUSEPORT</b></code>, so the kernel spreads senders across
+     * them, allowing packets to be received on more than one core. The workers and
+     * queue capacity are split evenly between the receivers. If the platform
+     * doesn't support <b><code>SO_REUSEPORT</b></code>, a single receiver is used.
+     * 
+     * @param port           <b><code>int</b></code> port on which the
+     *                       <b><code>BrokerReceiver</b></code>s will be listening
+     *                       for incoming packets
+     * @param workers        number of threads handling received packets
+     * @param queueCapacity  maximum number of received packets waiting to be
+     *                       handled
+     * @param virtualThreads true if packets should be handled on virtual threads
+     * @param policy         what to do with a received packet when a queue is
+     *                       full
+     * @param receivers      number of channels receiving on the port
+     * @throws Exception if the port specified is already in use
+     * @see Transport#supportsReusePort()
+     */
+    public Broker(int port, int workers, int queueCapacity, boolean virtualThreads, OverloadPolicy policy,
+            int receivers) throws Exception {
+        this(port, workers, queueCapacity, virtualThreads, policy, receivers, Transport.udp());
+    }
+
+    /**
+     * <b><code>Broker Constructor</b></code>. Same as above, but opens its
+     * channels on the given transport instead of UDP, such as a
+     * <b><code>MemoryTransport</b></code> shared with publishers and subscribers
+     * in the same process. Retransmissions are timed by the clock of the
+     * transport.
+     * 
+     * @param port           <b><code>int</b></code> port on which the
+     *                       <b><code>BrokerReceiver</b></code>s will be listening
+     *                       for incoming packets
+     * @param workers        number of threads handling received packets
+     * @param queueCapacity  maximum number of received packets waiting to be
+     *                       handled
+     * @param virtualThreads true if packets should be handled on virtual threads
+     * @param policy         what to do with a received packet when a queue is
+     *                       full
+     * @param receivers      number of channels receiving on the port
+     * @param transport      <b><code>Transport</b></code> the channels of the
+     *                       broker are opened on
+     * @throws Exception if the port specified is already in use
+     * @see Protocol.MemoryTransport
+     */
+    public Broker(int port, int workers, int queueCapacity, boolean virtualThreads, OverloadPolicy policy,
+            int receivers, Transport transport) throws Exception {
         brokerConnection = new Connection(port);
+        if (receivers > 1 && !transport.supportsReusePort()) {
+            Log.warn("\u001B[1;31m[!] \u001B[0mSO_REUSEPORT is not supported, using a single receiver.");
+            receivers = 1;
+        }
+        receivers = Math.max(1, receivers);
+        int receiverWorkers = (workers + receivers - 1) / receivers;
+        int receiverCapacity = (queueCapacity + receivers - 1) / receivers;
+        this.receivers = new BrokerReceiver[receivers];
+        dispatchers = new PacketDispatcher[receivers];
+        for (int i = 0; i < receivers; i++) {
+            dispatchers[i] = new PacketDispatcher(receiverWorkers, receiverCapacity, virtualThreads, policy);
+            this.receivers[i] = new BrokerReceiver(brokerConnection, this, dispatchers[i],
+                    new BufferPool(BrokerReceiver.MTU, receiverWorkers + receiverCapacity + BrokerReceiver.BATCH),
+                    receivers > 1, transport);
+        }
+        metrics = new Metrics(transport);
+        outbound = new OutboundChannel(metrics, transport);
         topicList = new HashMap<String, Connection>();
         subscribers = new Cache<SubscriberData>();
         subscribers.setMaxCacheLength(250000);
+        subscriptionIndex = new SubscriptionIndex();
+        matchCache = new MatchCache(MatchCache.DEFAULT_CAPACITY);
+        topicIds = new TopicDictionary();
         cache = new Cache<Object>();
         cache.setMaxCacheLength(8);
-        receiver = new BrokerReceiver(brokerConnection, this);
         brokers = new ArrayList<Connection>();
     }
 
     /**
-     * Instantiates the listening thread of the broker, causing its receiver to
-     * begin listening for incoming packets.
+     * Instantiates the listening threads of the broker, causing its receivers to
+     * begin listening for incoming packets, and the thread of the outbound channel
+     * through which the broker sends packets. Also starts publishing the
+     * statistics of the broker, unless disabled.
      * 
      * @see BrokerReceiver
+     * @see OutboundChannel
+     * @see #setMetricsInterval(int)
      */
     public void listen() {
-        Thread t = new Thread(receiver);
-        t.setName("\u001B[35m<<Listener Thread>>: \u001B[0m");
-        t.start();
+        for (int i = 0; i < receivers.length; i++) {
+            Thread t = new Thread(receivers[i]);
+            t.setName("\u001B[35m<<Listener Thread" + (receivers.length > 1 ? " " + i : "") + ">>: \u001B[0m");
+            t.start();
+        }
+        Thread s = new Thread(outbound);
+        s.setName("\u001B[33m<<Sender Thread>>: \u001B[0m");
+        s.start();
+        metrics.start(this);
+    }
+
+    /**
+     * Assigns an id to the topic which publishers can use in place of the topic
+     * bytes in later packets.
+     * 
+     * @param topic topic/subtopics, without the * and ** operators
+     * @return id of the topic, or <b><code>TopicDictionary.NO_ID</b></code> if no
+     *         ids are left
+     * @see TopicDictionary#register(String)
+     */
+    int registerTopic(String topic) {
+        int id = topicIds.register(topic);
+        Log.debug(() -> Protocol.ThreadName() + "Registered topic '" + topic + "' as id " + id + ".");
+        return id;
+    }
+
+    /**
+     * Returns the epoch the topic ids of this broker are valid in, which is
+     * picked at random when the broker is created.
+     * 
+     * @return epoch of the topic ids
+     * @see TopicDictionary#epoch()
+     */
+    int getTopicEpoch() {
+        return topicIds.epoch();
+    }
+
+    /**
+     * Returns the topic registered under the given id.
+     * 
+     * @param id    topic id from a packet header
+     * @param epoch epoch from a packet header
+     * @return canonical instance of the topic, or null if the id is unknown or
+     *         was assigned by an earlier run of the broker
+     */
+    String getTopic(int id, int epoch) {
+        return topicIds.topic(id, epoch);
+    }
+
+    /**
+     * Returns the canonical instance of a registered topic, so that topics sent as
+     * bytes and topics sent as ids are looked up with the same instance.
+     * 
+     * @param topic topic/subtopics decoded from a packet header
+     * @return canonical instance of the topic if registered, else the topic itself
+     */
+    String internTopic(String topic) {
+        return topicIds.intern(topic);
     }
 
     /**
@@ -71,18 +243,107 @@ public class Broker {
         return topicList.containsKey(getMainTopic(topic));
     }
 
+    /**
+     * Keeps retained content off heap from now on, in the form it is sent to
+     * subscribers, instead of as <b><code>String</b></code> and
+     * <b><code>Integer</b></code> objects in the heap cache. Content retained
+     * before the call stays in the heap cache and is no longer replayed, so this
+     * should be called before <b><code>listen()</code></b>.
+     * 
+     * @see RetainedStore
+     * @see #listen()
+     */
+    public void useOffHeapStore() {
+        if (retained == null)
+            retained = new RetainedStore(cache.getMaxLength());
+    }
+
+    /**
+     * Persists retained content to an append-only log in the given directory from
+     * now on, and restores the content retained by a previous run of the broker
+     * into the cache, or into the off-heap store if it is in use. Should be called
+     * before <b><code>listen()</code></b>, after
+     * <b><code>useOffHeapStore()</code></b> if both are used.
+     * 
+     * @param directory directory of the log, created if it doesn't exist
+     * @param policy    when appended content is forced to disk
+     * @throws IOException if the log could not be opened or recovered
+     * @see RetainedLog
+     * @see #listen()
+     */
+    public void usePersistentStore(String directory, FsyncPolicy policy) throws IOException {
+        if (log != null)
+            return;
+        RetainedLog opened = new RetainedLog(new File(directory), RetainedLog.DEFAULT_SEGMENT_SIZE,
+                cache.getMaxLength(), policy);
+        opened.forEach((topic, type, payload) -> retain(topic, type == Protocol.STR ? new String(payload)
+                : (Object) integerContent(payload), ByteBuffer.wrap(payload), 0, payload.length));
+        log = opened;
+    }
+
+    /**
+     * Decodes an integer from its minimal big-endian form.
+     */
+    private static Integer integerContent(byte[] payload) {
+        int value = 0;
+        for (byte b : payload)
+            value = (value << 8) + (0xFF & b);
+        return value;
+    }
+
+    /**
+     * Returns the number of bytes reserved off heap for retained content.
+     * 
+     * @return reserved bytes, 0 if retained content is kept in the heap cache
+     * @see #useOffHeapStore()
+     */
+    public long getOffHeapStoreBytes() {
+        RetainedStore store = retained;
+        return store == null ? 0 : store.getReservedBytes();
+    }
+
     /**
      * Adds new content to the cache under the given topic/subtopic. If the number
      * of content instances in the cache under the given topic exceeds the maximum
-     * cache size, the oldest content instance is removed.
+     * cache size, the oldest content instance is removed. With the off-heap store
+     * in use, the content bytes are copied from the packet instead, and only the
+     * topic is added to the heap cache. With the persistent store in use, the
+     * content bytes are also appended to the log.
      * 
      * @param topic   String
      * @param content <b><code>Integer</b></code> or <b><code>String</b></code>
      *                content provided by a publisher
+     * @param packet  buffer holding the received packet
+     * @param offset  position of the content bytes in the packet
+     * @param length  number of content bytes
+     * @see #useOffHeapStore()
+     * @see #usePersistentStore(String, FsyncPolicy)
      */
-    void storeContent(String topic, Object content) {
-        System.out.println(Protocol.ThreadName() + "Added content to '" + topic + "'.");
-        cache.addContent(topic, content);
+    void storeContent(String topic, Object content, ByteBuffer packet, int offset, int length) {
+        Log.trace(() -> Protocol.ThreadName() + "Added content to '" + topic + "'.");
+        retain(topic, content, packet, offset, length);
+        RetainedLog persisted = log;
+        if (persisted != null) {
+            try {
+                byte type = content instanceof String ? Protocol.STR : Protocol.INT;
+                persisted.append(topic, type, packet, offset, length);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Adds content to the cache or to the off-heap store, whichever is in use.
+     */
+    private void retain(String topic, Object content, ByteBuffer packet, int offset, int length) {
+        RetainedStore store = retained;
+        if (store == null) {
+            cache.addContent(topic, content);
+            return;
+        }
+        cache.addContent(topic, null);
+        store.add(topic, content instanceof String ? Protocol.STR : Protocol.INT, packet, offset, length);
     }
 
     /**
@@ -96,7 +357,23 @@ public class Broker {
      */
     void addSubscriber(String topic, SubscriberData subscriber) {
         subscribers.addContent(getMainTopic(topic), subscriber);
-        System.out.println(Protocol.ThreadName() + "Added new " + subscriber + " to topic '" + topic + "'.");
+        subscriptionIndex.add(topic, subscriber);
+        matchCache.invalidate(topic);
+        Log.debug(() -> Protocol.ThreadName() + "Added new " + subscriber + " to topic '" + topic + "'.");
+    }
+
+    /**
+     * Adds a subtopic to an existing subscriber under the main topic, and to the
+     * subscription index used for matching published content.
+     * 
+     * @param subscriber existing subscriber data
+     * @param topic      String of topic/subtopics the subscriber subscribed to
+     */
+    void addSubscriberTopic(SubscriberData subscriber, String topic) {
+        subscriber.addTopic(topic);
+        subscriptionIndex.add(topic, subscriber);
+        matchCache.invalidate(topic);
+        Log.debug(() -> Protocol.ThreadName() + "Added subtopics '" + topic + "' to " + subscriber + ".");
     }
 
     /**
@@ -110,7 +387,7 @@ public class Broker {
     void assignBrokerToTopic(String topic, Connection broker) {
         String mainTopic = getMainTopic(topic);
         if(!topicList.containsKey(mainTopic)) {
-            System.out.println(Protocol.ThreadName() + "Assigning Broker:[" + broker + "] to topic '" + mainTopic + "'.");
+            Log.debug(() -> Protocol.ThreadName() + "Assigning Broker:[" + broker + "] to topic '" + mainTopic + "'.");
             topicList.put(mainTopic, broker);
         }
     }
@@ -129,7 +406,7 @@ public class Broker {
      * @see #listen()
      */
     public void addBroker(Connection broker) {
-        System.out.println(" $ Added broker [" + broker + "].");
+        Log.info(() -> " $ Added broker [" + broker + "].");
         brokers.add(broker);
     }
 
@@ -146,20 +423,22 @@ public class Broker {
             sendCachedDataToSubscriber(all, subscriber);
             return;
         }
-        System.out.println(Protocol.ThreadName() + "Checking for cached content...");
-        HashMap<String, ArrayList<Object>> cachedData = cache.get(subscriptionTopics);
-        for (String key : cachedData.keySet()) {
-            byte[] topic = key.getBytes();
-            if (cachedData.get(key) != null)
-                for (Object o : cachedData.get(key)) {
-                    System.out.println(
-                            Protocol.ThreadName() + "Creating a sender to send cached '" + key + "' content...");
-                    byte type = o.getClass().getSimpleName().equals("String") ? Protocol.STR : Protocol.INT;
-                    BrokerSender sender = new BrokerSender(topic, o, subscriber, type);
-                    Thread t = new Thread(sender);
-                    t.start();
-                }
+        Log.trace(() -> Protocol.ThreadName() + "Checking for cached content...");
+        ArrayList<BrokerSender> senders = new ArrayList<BrokerSender>();
+        RetainedStore store = retained;
+        if (store != null) {
+            store.forEach(subscriptionTopics, (key, type, payload) -> {
+                Log.trace(() -> Protocol.ThreadName() + "Creating a sender to send cached '" + key + "' content...");
+                senders.add(new BrokerSender(key.getBytes(), payload, subscriber, type));
+            });
         }
+        cache.forEach(subscriptionTopics, (key, o) -> {
+            Log.trace(() -> Protocol.ThreadName() + "Creating a sender to send cached '" + key + "' content...");
+            byte type = o.getClass().getSimpleName().equals("String") ? Protocol.STR : Protocol.INT;
+            senders.add(new BrokerSender(key.getBytes(), o, subscriber, type));
+        });
+        if (!senders.isEmpty())
+            outbound.sendAll(senders);
     }
 
     /**
@@ -171,58 +450,26 @@ public class Broker {
      *                content published by a publisher
      */
     void sendContentToSubscribers(String topic, Object content) {
-        String mainTopic = getMainTopic(topic);
-        ArrayList<SubscriberData> subs = subscribers.get(mainTopic).get(mainTopic);
-        ArrayList<SubscriberData> confirmedSubs = getConfirmedSubscribers(toArrayList(topic.split("/")), subs);
+        metrics.published(topic);
+        Connection[] confirmedSubs = matchCache.get(topic);
+        if (confirmedSubs == null) {
+            long generation = matchCache.getGeneration();
+            ArrayList<SubscriberData> subs = subscriptionIndex.match(topic);
+            confirmedSubs = new Connection[subs.size()];
+            for (int i = 0; i < confirmedSubs.length; i++) {
+                confirmedSubs[i] = subs.get(i).getConnection();
+            }
+            matchCache.put(topic, confirmedSubs, generation);
+        }
         byte[] topicBytes = topic.getBytes();
-        for (SubscriberData sub : confirmedSubs) {
-            System.out.println(Protocol.ThreadName() + "Creating sender to send new content...");
+        for (Connection sub : confirmedSubs) {
+            Log.trace(() -> Protocol.ThreadName() + "Creating sender to send new content...");
             byte type = content.getClass().getSimpleName().equals("String") ? Protocol.STR : Protocol.INT;
-            BrokerSender sender = new BrokerSender(topicBytes, content, sub.getConnection(), type);
-            Thread t = new Thread(sender);
-            t.start();
+            BrokerSender sender = new BrokerSender(topicBytes, content, sub, type);
+            outbound.send(sender);
         }
     }
 
-    /**
-     * Given a list of subtopics and a list of subscribers for the main topic,
-     * returns a list of subscribers where at least one subscriber subtopic matched
-     * the subtopic list.
-     * 
-     * @param topicList ArrayList of a split subtopic string
-     * @param subs      ArrayList of subscribers for the main topic in question
-     * @return ArrayList of subscribers where at least one of their subscribed
-     *         subtopics matched the subtopic in question
-     */
-    ArrayList<SubscriberData> getConfirmedSubscribers(ArrayList<String> topicList, ArrayList<SubscriberData> subs) {
-        if (subs == null)
-            return new ArrayList<SubscriberData>();
-        ArrayList<SubscriberData> confirmedSubs = new ArrayList<SubscriberData>();
-        for (SubscriberData sub : subs) {
-            ArrayList<String> topics = filterStartsWith(sub.getTopics(), topicList.get(0));
-            for (String t : topics) {
-                ArrayList<String> subTopics = toArrayList(t.split("/"));
-                System.out.println(Protocol.ThreadName() + "Matching " + topicList + " " + subTopics);
-                if (matchesTopic(topicList, subTopics)) {
-                    confirmedSubs.add(sub);
-                    break; // Avoids dupes
-                }
-            }
-        }
-        return confirmedSubs;
-    }
-
-    /**
-     * Converts an array to an ArrayList.
-     * 
-     * @param <T>   type of the array
-     * @param array to be converted
-     * @return ArrayList equivalent of the array given
-     */
-    private <T> ArrayList<T> toArrayList(T[] array) {
-        return new ArrayList<T>(Arrays.asList(array));
-    }
-
     /**
      * Given a string that may contain subtopics, returns the main topic only.
      * 
@@ -230,25 +477,12 @@ public class Broker {
      * @return <b><code>String</b></code> main topic
      */
     private String getMainTopic(String topic) {
-        return topic.split("/")[0];
+        return TopicPath.mainTopic(topic);
     }
 
     /**
-     * Given a <b><code>String ArrayList</b></code> returns a new
-     * <b><code>String ArrayList</b></code> containing only values which start with
-     * the given string.
-     * 
-     * @param list       unfiltered ArrayList
-     * @param startsWith String that will be used to filter wanted values
-     * @return ArrayList containing only values which start with the given string
-     */
-    private ArrayList<String> filterStartsWith(ArrayList<String> list, String startsWith) {
-        return new ArrayList<String>(list.stream().filter(s -> s.startsWith(startsWith)).collect(Collectors.toList()));
-    }
-
-    /**
-     * Takes in two lists of split subtopics and compares them to check whether they
-     * match, either directly or with the use of the * and ** operators. <br>
+     * Compares a topic to a subscribed topic to check whether they match, either
+     * directly or with the use of the * and ** operators. <br>
      * </br>
      * * means get all subtopics excluding the given topic. TopicName/* returns all
      * subtopics of TopicName but not TopicName itself. <br>
@@ -256,37 +490,17 @@ public class Broker {
      * ** means get all subtopics including the given topic. TopicName/** returns
      * all subtopics of TopicName and TopicName itself.
      * 
-     * @param topic    main topic list
-     * @param subTopic subtopic list to be compared to the main list
+     * @param topic    topic/subtopics
+     * @param subTopic topic/subtopics to be compared to the topic
      * @return <br>
      *         </br>
-     *         <b><code>true</b></code> if the lists match <br>
+     *         <b><code>true</b></code> if the topics match <br>
      *         </br>
-     *         <b><code>false</b></code> if the lists don't match
-     */
-    private boolean matchesTopic(ArrayList<String> topic, ArrayList<String> subTopic) {
-        if (subTopic.size() - topic.size() > 1)
-            return false;
-        else if (subTopic.size() - topic.size() == 1 && !subTopic.get(subTopic.size() - 1).equals("*")
-                && !subTopic.get(subTopic.size() - 1).equals("**"))
-            return false;
-
-        for (int i = 0; i < topic.size(); i++) {
-            if (i < subTopic.size()) {
-                if (!(topic.get(i).equals(subTopic.get(i)) || subTopic.get(i).equals("*")
-                        || subTopic.get(i).equals("**"))) {
-                    return false;
-                }
-            } else if (!subTopic.get(subTopic.size() - 1).equals("*")
-                    && !subTopic.get(subTopic.size() - 1).equals("**")) {
-                return false;
-            } else {
-                return true;
-            }
-        }
-        if ((topic.size() >= subTopic.size() || subTopic.get(subTopic.size() - 1).equals("**")))
-            return true;
-        return false;
+     *         <b><code>false</b></code> if the topics don't match
+     * @see TopicPath#matches(CharSequence, CharSequence)
+     */
+    static boolean matchesTopic(String topic, String subTopic) {
+        return TopicPath.matches(topic, subTopic);
     }
 
     /**
@@ -342,25 +556,299 @@ public class Broker {
         if (sub == null)
             return;
         for (int i = 0; i < sub.subscribedTopics.size(); i++) {
-            if (matchesTopic(toArrayList(sub.subscribedTopics.get(i).split("/")), toArrayList(topic.split("/")))) {
-                System.out.println(Protocol.ThreadName() + "Matched \u001B[32;1m" + topic + "\u001B[0m to \u001B[34;1m"
-                        + sub.subscribedTopics.get(i) + "\u001B[0m.");
+            String matched = sub.subscribedTopics.get(i);
+            if (matchesTopic(matched, topic)) {
+                Log.trace(() -> Protocol.ThreadName() + "Matched \u001B[32;1m" + topic + "\u001B[0m to \u001B[34;1m"
+                        + matched + "\u001B[0m.");
+                subscriptionIndex.remove(matched, sub);
+                matchCache.invalidate(matched);
                 sub.subscribedTopics.set(i, null);
             }
         }
         sub.subscribedTopics.removeIf(s -> s == null);
         if (sub.subscribedTopics.size() == 0) {
-            System.out.println(Protocol.ThreadName() + "Removing from [" + getMainTopic(topic) + "]: " + sub);
+            Log.debug(() -> Protocol.ThreadName() + "Removing from [" + getMainTopic(topic) + "]: " + sub);
             subscribers.shallowRemove(getMainTopic(topic), sub);
         }
     }
 
     /**
-     * Instructs the <b><code>BrokerReceiver</b></code> of this broker to stop
+     * Instructs the <b><code>BrokerReceiver</b></code>s of this broker to stop
      * listening and hence stop receiving new packets.
      */
     public void stopListening() {
-        receiver.stopListening();
+        metrics.stop();
+        for (BrokerReceiver receiver : receivers)
+            receiver.stopListening();
+        for (PacketDispatcher dispatcher : dispatchers)
+            dispatcher.shutdown();
+        outbound.close();
+        if (log != null)
+            log.close();
+    }
+
+    /**
+     * Sets how many packets the broker may have in flight to a single subscriber
+     * or broker at once. The default window of 1 is stop-and-wait delivery, while
+     * a larger window lets many messages be in flight per subscriber. Packets
+     * always carry extended headers with sequence numbers, so that every packet
+     * is acknowledged individually.
+     * 
+     * @param window maximum number of unacknowledged packets per destination
+     */
+    public void setDeliveryWindow(int window) {
+        outbound.setWindow(window);
+    }
+
+    /**
+     * Returns the number of published topics whose subscribers were found in the
+     * match cache.
+     * 
+     * @return number of match cache hits
+     */
+    public long getMatchCacheHits() {
+        return matchCache.getHits();
+    }
+
+    /**
+     * Returns the number of published topics whose subscribers had to be resolved
+     * from the subscription index.
+     * 
+     * @return number of match cache misses
+     */
+    public long getMatchCacheMisses() {
+        return matchCache.getMisses();
+    }
+
+    /**
+     * Sets whether content sent to the same subscriber at once, such as cached
+     * content replayed on subscription or a burst of published content, is packed
+     * into <b><code>BATCH</code></b> packets of up to one MTU each. Enabled by
+     * default, subscribers must be able to decode <b><code>BATCH</code></b>
+     * packets.
+     * 
+     * @param batching true to batch content, else false
+     */
+    public void setBatching(boolean batching) {
+        outbound.setBatching(batching);
+    }
+
+    /**
+     * Returns the number of packets sent by the broker which are still waiting for
+     * an acknowledgement.
+     * 
+     * @return number of outstanding packets
+     */
+    public int getOutstandingPackets() {
+        return outbound.getOutstandingCount();
+    }
+
+    /**
+     * Sets how long acknowledgements of received packets wait for others to the
+     * same peer, so that they are sent together in one
+     * <b><code>MULTI_ACK</b></code> packet. A window of 0, the default, sends
+     * every acknowledgement straight away. Either way, acknowledgements are sent
+     * from the channel the packet was received on.
+     * 
+     * @param windowMs window in ms
+     * @see AckCoalescer
+     */
+    public void setAckWindow(int windowMs) {
+        for (BrokerReceiver receiver : receivers)
+            receiver.getAcks().setWindow(windowMs);
+    }
+
+    /**
+     * Sets how often the broker publishes its statistics under the
+     * <b><code>$SYS</b></code> main topic, such as packet counters, publish rates
+     * per main topic, subscriber counts, cache sizes and latencies. Takes effect
+     * when the broker starts listening.
+     * 
+     * @param intervalMs interval in ms, 0 to not publish statistics, by default
+     *                   <b><code>Metrics.DEFAULT_INTERVAL</b></code>
+     * @see Metrics
+     */
+    public void setMetricsInterval(int intervalMs) {
+        metrics.setInterval(intervalMs);
+    }
+
+    /**
+     * Returns the statistics of the broker.
+     * 
+     * @return <b><code>Metrics</b></code> of this broker
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publishes a statistic of the broker as if a publisher had published it with
+     * caching requested, so that subscribers get the latest values as soon as they
+     * subscribe. Statistics are always kept in the heap cache and never persisted.
+     * 
+     * @param topic   topic under <b><code>$SYS</b></code>
+     * @param content <b><code>Integer</b></code> or <b><code>String</b></code>
+     *                value of the statistic
+     */
+    void publishSystemContent(String topic, Object content) {
+        cache.addContent(topic, content);
+        sendContentToSubscribers(topic, content);
+    }
+
+    /**
+     * Returns the number of subscriptions held by the broker under each main
+     * topic.
+     * 
+     * @return number of subscribers per main topic
+     */
+    HashMap<String, Integer> getSubscriberCounts() {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        subscribers.forEach("*", (key, sub) -> counts.merge(getMainTopic(key), 1, Integer::sum));
+        return counts;
+    }
+
+    /**
+     * Returns the number of topics with content in the heap cache and the number
+     * of pieces of content held by them.
+     * 
+     * @return <b><code>int[]</b></code> of topics and content
+     */
+    int[] getCacheSize() {
+        HashSet<String> topics = new HashSet<String>();
+        int[] size = new int[2];
+        cache.forEach("*", (key, content) -> {
+            topics.add(key);
+            size[1]++;
+        });
+        size[0] = topics.size();
+        return size;
+    }
+
+    /**
+     * Returns the number of channels the broker receives packets on.
+     * 
+     * @return number of receivers
+     */
+    public int getReceiverCount() {
+        return receivers.length;
+    }
+
+    /**
+     * Returns the average number of datagrams the broker received per system call
+     * of its receivers, including the calls that found no datagram or waited for
+     * one.
+     * 
+     * @return datagrams per receive system call
+     */
+    public double getDatagramsPerReceiveCall() {
+        long datagrams = 0, calls = 0;
+        for (BrokerReceiver receiver : receivers) {
+            DatagramIO io = receiver.getIO();
+            if (io != null) {
+                datagrams += io.getReceivedCount();
+                calls += io.getReceiveCalls();
+            }
+        }
+        return ratio(datagrams, calls);
+    }
+
+    /**
+     * Returns the average number of datagrams the broker received per wakeup of
+     * its receivers.
+     * 
+     * @return datagrams per receive batch
+     */
+    public double getDatagramsPerReceiveBatch() {
+        long datagrams = 0, batches = 0;
+        for (BrokerReceiver receiver : receivers) {
+            DatagramIO io = receiver.getIO();
+            if (io != null) {
+                datagrams += io.getReceivedCount();
+                batches += io.getReceiveBatches();
+            }
+        }
+        return ratio(datagrams, batches);
+    }
+
+    /**
+     * Returns the average number of datagrams the outbound channel sent per
+     * system call.
+     * 
+     * @return datagrams per send system call
+     */
+    public double getDatagramsPerSendCall() {
+        DatagramIO io = outbound.getIO();
+        return ratio(io.getSentCount(), io.getSendCalls());
+    }
+
+    /**
+     * Returns the average number of datagrams the outbound channel sent per
+     * flush.
+     * 
+     * @return datagrams per send batch
+     */
+    public double getDatagramsPerSendBatch() {
+        DatagramIO io = outbound.getIO();
+        return ratio(io.getSentCount(), io.getSendBatches());
+    }
+
+    /**
+     * Returns the number of datagrams the broker dropped because sending them
+     * failed, from the outbound channel and from the receivers, which send the
+     * acknowledgements.
+     * 
+     * @return number of datagrams that could not be sent
+     */
+    public long getFailedSends() {
+        long failed = outbound.getIO().getSendFailures();
+        for (BrokerReceiver receiver : receivers) {
+            DatagramIO io = receiver.getIO();
+            if (io != null)
+                failed += io.getSendFailures();
+        }
+        return failed;
+    }
+
+    private static double ratio(long count, long per) {
+        return per == 0 ? 0 : (double) count / per;
+    }
+
+    /**
+     * Returns the number of received packets waiting to be handled.
+     * 
+     * @return dispatch queue depth
+     */
+    public int getDispatchQueueDepth() {
+        int depth = 0;
+        for (PacketDispatcher dispatcher : dispatchers)
+            depth += dispatcher.getQueueDepth();
+        return depth;
+    }
+
+    /**
+     * Returns the number of received packets that were refused with a
+     * <b><code>NEG_ACK</b></code> because the dispatch queue was full.
+     * 
+     * @return number of rejected packets
+     */
+    public long getRejectedPackets() {
+        long rejected = 0;
+        for (PacketDispatcher dispatcher : dispatchers)
+            rejected += dispatcher.getRejectedCount();
+        return rejected;
+    }
+
+    /**
+     * Returns the number of queued packets that were discarded to make room for
+     * newer packets.
+     * 
+     * @return number of dropped packets
+     */
+    public long getDroppedPackets() {
+        long dropped = 0;
+        for (PacketDispatcher dispatcher : dispatchers)
+            dropped += dispatcher.getDroppedCount();
+        return dropped;
     }
 
     /**
@@ -386,7 +874,7 @@ public class Broker {
      * @see #getSubscriberTopics()
      */
     boolean hasSubscriberTopic(String topic) {
-        return getSubscriberTopics().contains(getMainTopic(topic));
+        return subscribers.hasTopic(getMainTopic(topic));
     }
 
     /**
@@ -401,7 +889,7 @@ public class Broker {
      * @see #getCacheTopics()
      */
     boolean hasCacheTopic(String topic) {
-        return getCacheTopics().contains(getMainTopic(topic));
+        return cache.hasTopic(getMainTopic(topic));
     }
 
     /**
@@ -425,15 +913,14 @@ public class Broker {
      */
     void declareTopicOwnership(String topic) {
         String mainTopic = getMainTopic(topic);
-        System.out.println(Protocol.ThreadName() + "Declaring ownership of topic '" + mainTopic + "'.");
+        Log.debug(() -> Protocol.ThreadName() + "Declaring ownership of topic '" + mainTopic + "'.");
         subscribers.addContent(topic, null);
         cache.addContent(topic, null);
 
         for (Connection broker : brokers) {
             BrokerSender sender = new BrokerSender(mainTopic.getBytes(), brokerConnection.getConnectionBytes(), broker,
                     Protocol.TOPIC_OWN, Protocol.CACHE_Y);
-            Thread t = new Thread(sender);
-            t.start();
+            outbound.send(sender);
         }
     }
 
@@ -445,14 +932,15 @@ public class Broker {
      * who owns the topic that the subscriber is subscribing to.
      * 
      * @param topic
-     * @param data  header of the subscription packet (as they do not contain any
-     *              payloads by default)
-     * @param conn  <b><code>Connection</b></code> to the subscriber
-     */
-    void forwardSubscriberPacket(String topic, byte[] data, Connection conn) {
-        System.out.println(Protocol.ThreadName() + "Forwarding subscriber packet...");
-        byte type = data[Protocol.DATA_TYPE] == Protocol.SUB ? Protocol.BROKER_SUB
-                : data[Protocol.DATA_TYPE] == Protocol.UNSUB ? Protocol.BROKER_UNSUB : 0;
+     * @param dataType <b><code>SUB</b></code> or <b><code>UNSUB</b></code> data
+     *                 type of the subscription packet
+     * @param cacheReq <b><code>CACHE_REQ</b></code> of the subscription packet
+     * @param conn     <b><code>Connection</b></code> to the subscriber
+     */
+    void forwardSubscriberPacket(String topic, byte dataType, byte cacheReq, Connection conn) {
+        Log.trace(() -> Protocol.ThreadName() + "Forwarding subscriber packet...");
+        byte type = dataType == Protocol.SUB ? Protocol.BROKER_SUB
+                : dataType == Protocol.UNSUB ? Protocol.BROKER_UNSUB : 0;
         if (type == 0)
             return;
 
@@ -463,31 +951,31 @@ public class Broker {
         byte[] content = new byte[address.length + port.length];
         System.arraycopy(address, 0, content, 0, address.length);
         System.arraycopy(port, 0, content, address.length, port.length);
-        BrokerSender sender = new BrokerSender(topic.getBytes(), content, broker, type, data[Protocol.CACHE_REQ]);
-        Thread t = new Thread(sender);
-        t.start();
+        BrokerSender sender = new BrokerSender(topic.getBytes(), content, broker, type, cacheReq);
+        outbound.send(sender);
     }
 
     /**
-     * Given the topic of the packet, header data of the packet and payload content
-     * of the packet, the broker converts the header to signify that the publisher
-     * packet has been forwarded and sends the publisher packet, containing the
-     * intact publisher payload, to a known broker who owns the topic that the
-     * publisher is publishing to.
+     * Given the topic, data type, caching request and payload content of published
+     * content, the broker converts the header to signify that the publisher packet
+     * has been forwarded and sends the publisher packet, containing the intact
+     * publisher payload, to a known broker who owns the topic that the publisher
+     * is publishing to.
      * 
      * @param topic
-     * @param data    header of the publisher packet and payload
-     * @param content payload of the publisher packet
+     * @param dataType <b><code>STR</b></code> or <b><code>INT</b></code> data type
+     *                 of the publisher packet
+     * @param cacheReq <b><code>CACHE_REQ</b></code> of the publisher packet
+     * @param content  payload of the publisher packet
      */
-    void forwardPublisherPacket(String topic, byte[] data, byte[] content) {
-        System.out.println(Protocol.ThreadName() + "Forwarding publisher packet...");
-        byte type = data[Protocol.DATA_TYPE] == Protocol.STR ? Protocol.BROKER_STR
-                : data[Protocol.DATA_TYPE] == Protocol.INT ? Protocol.BROKER_INT : 0;
+    void forwardPublisherPacket(String topic, byte dataType, byte cacheReq, byte[] content) {
+        Log.trace(() -> Protocol.ThreadName() + "Forwarding publisher packet...");
+        byte type = dataType == Protocol.STR ? Protocol.BROKER_STR
+                : dataType == Protocol.INT ? Protocol.BROKER_INT : 0;
         if (type == 0)
             return;
         Connection broker = topicList.get(getMainTopic(topic));
-        BrokerSender sender = new BrokerSender(topic.getBytes(), content, broker, type, data[Protocol.CACHE_REQ]);
-        Thread t = new Thread(sender);
-        t.start();
+        BrokerSender sender = new BrokerSender(topic.getBytes(), content, broker, type, cacheReq);
+        outbound.send(sender);
     }
 }
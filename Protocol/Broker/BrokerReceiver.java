@@ -1,9 +1,14 @@
 package Protocol.Broker;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 
+import Protocol.AckCoalescer;
+import Protocol.DatagramIO;
+import Protocol.Log;
 import Protocol.Protocol;
+import Protocol.Transport;
 import Protocol.Connection.Connection;
 
 /**
@@ -11,31 +16,61 @@ import Protocol.Connection.Connection;
  */
 
 class BrokerReceiver implements Runnable {
+    public static final int MTU = 1500;
+    public static final int BATCH = 32; // Most datagrams received per wakeup
 
     private Broker broker;
     private Connection receivingConnection;
-    private boolean listen;
-    private DatagramSocket socket;
+    private PacketDispatcher dispatcher;
+    private BufferPool pool;
+    private boolean reusePort;
+    private Transport transport;
+    private AckCoalescer acks;
+    private volatile boolean listen;
+    private volatile DatagramIO io;
 
     /**
      * <b><code>BrokerReceiver Constructor</b></code>. Takes in a connection to
      * which subscribers, publisher and other brokers will send packets. Also takes
-     * in a reference to its parent broker.
+     * in a reference to its parent broker, the pool that handles the packets it
+     * receives and the pool of buffers that received packets are read into.
      * 
      * @param brokerConnection <b><code>Connection</b></code> to the receiving port
      *                         of the broker
      * @param newBroker        reference to the parent <b><code>Broker</b></code>
+     * @param dispatcher       <b><code>PacketDispatcher</b></code> of this receiver
+     * @param pool             <b><code>BufferPool</b></code> of the receive buffers
+     * @param reusePort        true if other receivers share the port through
+     *                         <b><code>SO_REUSEPORT</b></code>, else false
+     * @param transport        <b><code>Transport</b></code> the receiving channel
+     *                         is opened on
      */
-    BrokerReceiver(Connection brokerConnection, Broker newBroker) {
+    BrokerReceiver(Connection brokerConnection, Broker newBroker, PacketDispatcher dispatcher, BufferPool pool,
+            boolean reusePort, Transport transport) {
         broker = newBroker;
         receivingConnection = brokerConnection;
+        this.dispatcher = dispatcher;
+        this.pool = pool;
+        this.reusePort = reusePort;
+        this.transport = transport;
+        acks = new AckCoalescer((ack, peer) -> {
+            try {
+                io.queue(ByteBuffer.wrap(ack), peer);
+                io.flush();
+            } catch (ClosedChannelException e) {
+                // Packets still being handled after the receiver stopped are not acknowledged
+            }
+        }, transport);
         listen = true;
     }
 
     /**
      * Thread run method. Runs indefinitely until stopped, listening for packets
-     * from subscribers, publishers and other brokers, and instanciating handlers to
-     * deal with the packets appropriately once received.
+     * from subscribers, publishers and other brokers, and dispatching handlers to
+     * the broker's worker pool to deal with the packets appropriately once
+     * received. Every wakeup drains up to <b><code>BATCH</b></code> packets. Each
+     * packet is read into a pooled buffer which the handler gives back once it is
+     * done, so that the packet is never copied.
      * 
      * @see Thread#run()
      * @see PacketHandler
@@ -43,39 +78,73 @@ class BrokerReceiver implements Runnable {
     @Override
     public void run() {
         try {
-            socket = new DatagramSocket(receivingConnection.getPort(), receivingConnection.getAddress());
-            System.out.println();
-            System.out.println(Protocol.ThreadName() + "\u001B[1;31m[!] \u001B[0mThe broker is listening on ["
+            io = transport.open(new InetSocketAddress(receivingConnection.getAddress(), receivingConnection.getPort()),
+                    reusePort);
+            if (!listen)
+                io.close(); // Stopped while the channel was being opened
+            Log.info(() -> Protocol.ThreadName() + "\u001B[1;31m[!] \u001B[0mThe broker is listening on ["
                     + receivingConnection + "\u001B[0m]...\n");
+            ByteBuffer[] buffers = new ByteBuffer[BATCH];
+            InetSocketAddress[] senders = new InetSocketAddress[BATCH];
+            for (int i = 0; i < BATCH; i++)
+                buffers[i] = pool.acquire();
             while (listen) {
-                byte[] buffer = new byte[1500];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 try {
-                    System.out.println(Protocol.ThreadName() + "Ready to receive a packet.");
-                    socket.receive(packet);
-                    System.out.println("\n" + Protocol.ThreadName() + "Received Packet. Instanciating a handler...");
-                    new Thread(new PacketHandler(packet, broker)).start();
+                    Log.trace(() -> Protocol.ThreadName() + "Ready to receive a packet.");
+                    int received = io.receive(buffers, senders, 0);
+                    for (int i = 0; i < received; i++) {
+                        Log.trace(() -> "\n" + Protocol.ThreadName() + "Received Packet. Dispatching a handler...");
+                        dispatcher.dispatch(new PacketHandler(buffers[i], senders[i], pool, acks, broker));
+                        buffers[i] = pool.acquire();
+                    }
                 } catch (Exception e) {
-                    System.out.println(Protocol.ThreadName() + "Broker listener is stopping...");
+                    Log.info(() -> Protocol.ThreadName() + "Broker listener is stopping...");
                 }
             }
-            socket.close();
+            for (ByteBuffer buffer : buffers)
+                pool.release(buffer);
+            io.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
-        System.out.println(Protocol.ThreadName() + "\u001B[1;31m[!] \u001B[0mThe broker is no longer listening on ["
+        Log.info(() -> Protocol.ThreadName() + "\u001B[1;31m[!] \u001B[0mThe broker is no longer listening on ["
                 + receivingConnection + "\u001B[0m]!\n");
     }
 
+    /**
+     * Returns the coalescer sending the acknowledgements of packets received by
+     * this receiver from its own channel.
+     * 
+     * @return <b><code>AckCoalescer</b></code> of this receiver
+     */
+    AckCoalescer getAcks() {
+        return acks;
+    }
+
+    /**
+     * Returns the batched I/O of the receiving channel.
+     * 
+     * @return <b><code>DatagramIO</b></code> of this receiver, or null if it is
+     *         not listening yet
+     */
+    DatagramIO getIO() {
+        return io;
+    }
+
     /**
      * Sets the listen boolean to false and forcibly attempts to close the listening
-     * socket, causing an exception, which effectively causes the listener to stop
+     * channel, causing an exception, which effectively causes the listener to stop
      * listening.
      */
     public void stopListening() {
         listen = false;
-        if (socket != null)
-            socket.close();
+        acks.flush();
+        try {
+            if (io != null)
+                io.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
 }
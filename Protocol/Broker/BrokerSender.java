@@ -1,8 +1,11 @@
 package Protocol.Broker;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 
+import Protocol.Batch;
 import Protocol.Protocol;
 import Protocol.Connection.Connection;
 
@@ -10,7 +13,7 @@ import Protocol.Connection.Connection;
  * @author Dominik Guzowski, 19334866
  */
 
-class BrokerSender implements Runnable {
+class BrokerSender {
     public static final int ACK_TIMEOUT = 500;
     public static final int MAX_ATTEMPTS = 3;
 
@@ -18,13 +21,12 @@ class BrokerSender implements Runnable {
     private byte[] content;
     private byte[] topic;
     private Connection dest;
-    private String name;
     private byte cache;
 
     /**
-     * <b><code>BrokerSender Constructor</code></b>. Saves parameters and assigns a
-     * random name to the thread. Parameters determine the header and payload of the
-     * packet that will be sent once the thread runs.
+     * <b><code>BrokerSender Constructor</code></b>. Saves parameters which
+     * determine the header and payload of the packet that will be sent by the
+     * broker's <b><code>OutboundChannel</code></b>.
      * 
      * @param topic    bytes representing the topic <b><code>String</code></b>
      * @param content  <b><code>String</code></b> or <b><code>Integer</code></b>
@@ -35,8 +37,6 @@ class BrokerSender implements Runnable {
      * @see #integerToMinimalByteArray(int)
      */
     BrokerSender(byte[] topic, Object content, Connection conn, byte dataType) {
-        name = "\u001B[33mSending Thread " + String.format("%04X", (int) (Math.random() * Short.MAX_VALUE))
-                + ": \u001B[0m";
         this.topic = topic;
         dest = conn;
         type = dataType;
@@ -55,10 +55,30 @@ class BrokerSender implements Runnable {
     }
 
     /**
-     * <b><code>BrokerSender Constructor</code></b>. Saves parameters and assigns a
-     * random name to the thread. Allows to specify whether caching is or isn't
-     * requested. Content is passed directly as a byte array. Parameters determine
-     * the header and payload of the packet that will be sent once the thread runs.
+     * <b><code>BrokerSender Constructor</code></b>. Saves parameters which
+     * determine the header and payload of the packet, where the content has
+     * already been encoded, such as content replayed from the
+     * <b><code>RetainedStore</code></b>.
+     * 
+     * @param topic    bytes representing the topic <b><code>String</code></b>
+     * @param content  encoded content to be sent as payload
+     * @param conn     <b><code>Connection</code></b> to which the packet will be
+     *                 sent
+     * @param dataType <b><code>DATA_TYPE</code></b> of the packet to be sent
+     */
+    BrokerSender(byte[] topic, byte[] content, Connection conn, byte dataType) {
+        this.topic = topic;
+        this.content = content;
+        dest = conn;
+        type = dataType;
+        cache = 0;
+    }
+
+    /**
+     * <b><code>BrokerSender Constructor</code></b>. Saves parameters and allows to
+     * specify whether caching is or isn't requested. Content is passed directly as
+     * a byte array. Parameters determine the header and payload of the packet that
+     * will be sent by the broker's <b><code>OutboundChannel</code></b>.
      * 
      * @param topic    bytes representing the topic <b><code>String</code></b>
      * @param content  byte array to be sent as payload
@@ -74,8 +94,6 @@ class BrokerSender implements Runnable {
      *                 caching
      */
     BrokerSender(byte[] topic, byte[] content, Connection conn, byte dataType, byte cache) {
-        name = "\u001B[33mSending Thread " + String.format("%04X", (int) (Math.random() * Short.MAX_VALUE))
-                + ": \u001B[0m";
         this.topic = topic;
         this.content = content;
         dest = conn;
@@ -83,6 +101,94 @@ class BrokerSender implements Runnable {
         this.cache = cache;
     }
 
+    /**
+     * <b><code>BrokerSender Constructor</code></b>. Creates a
+     * <b><code>BATCH</code></b> packet carrying the records of the given batch.
+     * The header carries the topic of the first record.
+     * 
+     * @param topic bytes of the topic of the first record
+     * @param batch records to be sent as payload
+     * @param conn  <b><code>Connection</code></b> to which the packet will be sent
+     * @see Batch
+     */
+    BrokerSender(byte[] topic, Batch batch, Connection conn) {
+        this(topic, batch.toByteArray(), conn, Protocol.BATCH, Protocol.CACHE_Y);
+    }
+
+    /**
+     * Packs consecutive content packets to the same destination into
+     * <b><code>BATCH</code></b> packets of up to one MTU each, so that they are
+     * sent and acknowledged once. Other packets are passed through in their
+     * original order relative to the content packets of the same destination. A
+     * batch that would hold a single record is sent as the original packet.
+     * 
+     * @param senders packets to be sent, in order
+     * @return packets to be sent after batching
+     */
+    static ArrayList<BrokerSender> coalesce(List<BrokerSender> senders) {
+        LinkedHashMap<InetSocketAddress, ArrayList<BrokerSender>> byDestination;
+        byDestination = new LinkedHashMap<InetSocketAddress, ArrayList<BrokerSender>>();
+        for (BrokerSender sender : senders) {
+            InetSocketAddress key = new InetSocketAddress(sender.dest.getAddress(), sender.dest.getPort());
+            ArrayList<BrokerSender> list = byDestination.get(key);
+            if (list == null) {
+                list = new ArrayList<BrokerSender>();
+                byDestination.put(key, list);
+            }
+            list.add(sender);
+        }
+        ArrayList<BrokerSender> result = new ArrayList<BrokerSender>(senders.size());
+        ArrayList<BrokerSender> pending = new ArrayList<BrokerSender>();
+        for (ArrayList<BrokerSender> list : byDestination.values()) {
+            Batch batch = null;
+            for (BrokerSender sender : list) {
+                if (!sender.isBatchable()) {
+                    flush(batch, pending, result);
+                    batch = null;
+                    result.add(sender);
+                    continue;
+                }
+                if (batch != null && !batch.add(sender.type, sender.topic, sender.content)) {
+                    flush(batch, pending, result);
+                    batch = null;
+                }
+                if (batch == null) {
+                    batch = new Batch(Batch.capacity(sender.topic.length));
+                    if (!batch.add(sender.type, sender.topic, sender.content)) {
+                        result.add(sender); // Too large to share a packet
+                        batch = null;
+                        continue;
+                    }
+                }
+                pending.add(sender);
+            }
+            flush(batch, pending, result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the pending batch to the result, as the original packet if it holds a
+     * single record.
+     */
+    private static void flush(Batch batch, ArrayList<BrokerSender> pending, ArrayList<BrokerSender> result) {
+        if (batch != null && pending.size() == 1)
+            result.add(pending.get(0));
+        else if (batch != null && pending.size() > 1)
+            result.add(new BrokerSender(pending.get(0).topic, batch, pending.get(0).dest));
+        pending.clear();
+    }
+
+    /**
+     * Checks whether the packet is content for a subscriber, which can be sent as
+     * a record of a <b><code>BATCH</code></b> packet.
+     * 
+     * @return true if the packet can be batched, else false
+     */
+    private boolean isBatchable() {
+        return (type == Protocol.STR || type == Protocol.INT) && cache == 0;
+    }
+
     /**
      * Takes in an integer and returns a byte array of necessary length to represent
      * the value of the integer, rather than always being 4 bytes.
@@ -106,90 +212,33 @@ class BrokerSender implements Runnable {
     }
 
     /**
-     * Thread run method. Assembles a packet and sends it on. Then waits for an
-     * acknowledgement and if none is received or if the acknowledgement is invalid,
-     * resends the packet. Continues to do so until a valid acknowledgement is
-     * received or the maximum number of attempts is exceeded.
+     * Returns the <b><code>Connection</code></b> to which the packet will be sent.
      * 
-     * @see Thread#run()
+     * @return destination connection
      */
-    @Override
-    public void run() {
-        Thread.currentThread().setName(name);
-        System.out.println(Protocol.ThreadName() + "Sending content to " + dest + ".");
-        try {
-            byte[] buffer = assemblePacket();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, dest.getAddress(), dest.getPort());
-            DatagramSocket socket = new DatagramSocket();
-            boolean ackReceived = false;
-            int attempts = 0;
-            while (!ackReceived && attempts < MAX_ATTEMPTS) {
-                attempts++;
-                byte[] ackBuffer = new byte[topic.length + Protocol.HEADER_LEN];
-                DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                socket.send(packet);
-                socket.setSoTimeout(ACK_TIMEOUT);
-                try {
-                    socket.receive(ackPacket);
-                    ackReceived = verifyAcknowledgement(buffer, ackPacket);
-                    if (!ackReceived)
-                        System.out.println(Protocol.ThreadName() + "\u001B[31;1mReceived invalid ack! Attempt "
-                                + attempts + "/" + MAX_ATTEMPTS + "\u001B[0m");
-                    else
-                        System.out.println(Protocol.ThreadName() + "\u001B[32;1mAck received! Attempt " + attempts + "/"
-                                + MAX_ATTEMPTS + "\u001B[0m");
-                } catch (Exception e) {
-                    System.out.println(Protocol.ThreadName() + "\u001B[31;1mDidn't receive ack! Attempt " + attempts
-                            + "/" + MAX_ATTEMPTS + "\u001B[0m");
-                }
-            }
-            socket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        System.out.println(Protocol.ThreadName() + "Exiting...");
+    Connection getDestination() {
+        return dest;
     }
 
     /**
-     * Takes in byte array buffer that was used to send the packet and the received
-     * acknowledgement packet. Compares the headers of the two and checks if
-     * appropriate bytes have been changed to represent an acknowledgement.
+     * Creates a valid protocol packet with an extended header, where the given
+     * sequence number follows the topic bytes.
      * 
-     * @param buffer    with header and payload of the packet that was sent
-     * @param ackPacket acknowledgement packet that was received in response to
-     *                  sending a content packet
-     * @return <br>
-     *         </br>
-     *         <b><code>true</code></b> if the acknowledgement packet was valid <br>
-     *         </br>
-     *         <b><code>false</code></b> if the acknowledgement packet was not valid
+     * @param sequence sequence number of the packet
+     * @return byte array representing the extended packet header and content
+     *         combined
      */
-    private boolean verifyAcknowledgement(byte[] buffer, DatagramPacket ackPacket) {
-        byte[] data = new byte[ackPacket.getLength()];
-        System.arraycopy(ackPacket.getData(), 0, data, 0, data.length);
-
-        if (data[Protocol.DATA_TYPE] != Protocol.POS_ACK && data[Protocol.DATA_TYPE] != Protocol.NEG_ACK)
-            return false;
-        for (int i = 3; i < data.length; i++) {
-            if (data[i] != buffer[i]) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    /**
-     * Creates a valid protocol packet by combining the topic and content with
-     * appropriate header information that was specified in the constructor.
-     * 
-     * @return byte array representing the packet header and content combined
-     */
-    private byte[] assemblePacket() {
-        byte[] header = { Protocol.BROKER, cache != 0 ? cache : Protocol.CACHE_Y, type, (byte) topic.length };
-        byte[] buffer = new byte[header.length + topic.length + content.length];
+    byte[] assemblePacket(int sequence) {
+        byte[] header = { (byte) (Protocol.BROKER | Protocol.EXTENDED), cache != 0 ? cache : Protocol.CACHE_Y, type,
+                (byte) topic.length };
+        byte[] buffer = new byte[header.length + topic.length + Protocol.SEQ_LEN + content.length];
         System.arraycopy(header, 0, buffer, 0, header.length);
         System.arraycopy(topic, 0, buffer, header.length, topic.length);
-        System.arraycopy(content, 0, buffer, header.length + topic.length, content.length);
+        int position = header.length + topic.length;
+        for (int i = 0; i < Protocol.SEQ_LEN; i++) {
+            buffer[position + i] = (byte) (sequence >>> (8 * (Protocol.SEQ_LEN - i - 1)));
+        }
+        System.arraycopy(content, 0, buffer, position + Protocol.SEQ_LEN, content.length);
         return buffer;
     }
 }
@@ -0,0 +1,77 @@
+package Protocol.Broker;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Pool of direct buffers that received packets are read into. A buffer is taken
+ * by the receiver for every datagram and given back by the handler of the packet
+ * once it is done with it, so that no buffer is allocated per packet while the
+ * pool keeps up with the packets in flight.
+ */
+class BufferPool {
+    private int bufferSize;
+    private int maxPooled;
+    private ConcurrentLinkedQueue<ByteBuffer> free;
+    private AtomicInteger pooled;
+    private AtomicLong allocated;
+
+    /**
+     * <b><code>BufferPool Constructor</code></b>.
+     *
+     * @param bufferSize size of each buffer in bytes
+     * @param maxPooled  maximum number of free buffers kept for reuse, buffers
+     *                   given back beyond this are left to the garbage collector
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = Math.max(1, maxPooled);
+        free = new ConcurrentLinkedQueue<ByteBuffer>();
+        pooled = new AtomicInteger();
+        allocated = new AtomicLong();
+    }
+
+    /**
+     * Takes a free buffer from the pool, allocating a new one if none is free.
+     *
+     * @return cleared buffer
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer may not be used afterwards.
+     *
+     * @param buffer buffer taken from this pool
+     */
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    /**
+     * Returns the number of buffers allocated since the pool was created.
+     *
+     * @return number of allocated buffers
+     */
+    long getAllocatedCount() {
+        return allocated.get();
+    }
+}
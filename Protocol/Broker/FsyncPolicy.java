@@ -0,0 +1,27 @@
+package Protocol.Broker;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Determines when the broker forces retained content appended to its
+ * <b><code>RetainedLog</code></b> out to disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every append is forced to disk as soon as it is made, which is the slowest
+     * but loses the least content if the machine fails.
+     */
+    ALWAYS,
+    /**
+     * Appends are forced to disk periodically, so content appended within the
+     * last interval may be lost if the machine fails.
+     */
+    INTERVAL,
+    /**
+     * Appends are left to the operating system to write out, which survives a
+     * crash of the broker but not of the machine.
+     */
+    NEVER
+}
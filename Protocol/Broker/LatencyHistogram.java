@@ -0,0 +1,83 @@
+package Protocol.Broker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Histogram of latencies with buckets growing in powers of two, so that
+ * recording a latency is a single atomic increment no matter how many threads
+ * record at once. Bucket 0 counts latencies under 2us, and bucket i counts
+ * latencies from 2^i up to 2^(i+1) us. Percentiles are reported as the upper
+ * bound of the bucket they fall into.
+ */
+class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private AtomicLongArray counts;
+
+    /**
+     * <b><code>LatencyHistogram Constructor</code></b>.
+     */
+    LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in ns
+     */
+    void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+    }
+
+    /**
+     * Returns the counts of every bucket and sets them back to 0, so that every
+     * snapshot covers the latencies recorded since the previous one.
+     *
+     * @return count of each bucket
+     */
+    long[] snapshotAndReset() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            snapshot[i] = counts.getAndSet(i, 0);
+        return snapshot;
+    }
+
+    /**
+     * Describes a snapshot by its count, median, 99th percentile and maximum.
+     *
+     * @param snapshot counts of each bucket
+     * @return <b><code>String</code></b> such as "n=120 p50=64us p99=512us
+     *         max=1024us"
+     */
+    static String describe(long[] snapshot) {
+        long total = 0;
+        int max = -1;
+        for (int i = 0; i < snapshot.length; i++) {
+            total += snapshot[i];
+            if (snapshot[i] > 0)
+                max = i;
+        }
+        if (total == 0)
+            return "n=0";
+        return "n=" + total + " p50=" + upperBound(snapshot, total, 0.5) + "us p99="
+                + upperBound(snapshot, total, 0.99) + "us max=" + (2L << max) + "us";
+    }
+
+    private static long upperBound(long[] snapshot, long total, double percentile) {
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return 2L << i;
+        }
+        return 2L << (snapshot.length - 1);
+    }
+}
@@ -0,0 +1,112 @@
+package Protocol.Broker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import Protocol.TopicPath;
+import Protocol.Connection.Connection;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+class MatchCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private LinkedHashMap<String, Connection[]> entries;
+    private long generation;
+    private long hits;
+    private long misses;
+
+    /**
+     * <b><code>MatchCache Constructor</code></b>. Creates a least recently used
+     * cache from published topics to the connections of the subscribers whose
+     * subscriptions match them, holding at most the given number of topics.
+     *
+     * @param capacity maximum number of topics kept in the cache
+     */
+    MatchCache(int capacity) {
+        entries = new LinkedHashMap<String, Connection[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Connection[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the subscriber connections previously resolved for the topic.
+     *
+     * @param topic topic/subtopics to which content is being published
+     * @return array of subscriber connections, or null if the topic is not cached
+     */
+    synchronized Connection[] get(String topic) {
+        Connection[] subscribers = entries.get(topic);
+        if (subscribers == null)
+            misses++;
+        else
+            hits++;
+        return subscribers;
+    }
+
+    /**
+     * Returns the current generation of the cache, which changes every time a
+     * subscription changes. Must be read before resolving the subscribers of a
+     * topic and passed to <b><code>put</code></b>.
+     *
+     * @return current generation
+     * @see #put(String, Connection[], long)
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stores the resolved subscriber connections for the topic, unless a
+     * subscription changed since the given generation was read, in which case the
+     * resolved subscribers may already be out of date.
+     *
+     * @param topic       topic/subtopics to which content is being published
+     * @param subscribers resolved subscriber connections
+     * @param generation  generation read before the subscribers were resolved
+     */
+    synchronized void put(String topic, Connection[] subscribers, long generation) {
+        if (generation == this.generation)
+            entries.put(topic, subscribers);
+    }
+
+    /**
+     * Removes every cached topic that the given subscribed topic matches. Called
+     * whenever a subscribed topic is added to or removed from a subscriber.
+     *
+     * @param subscribedTopic topic/subtopics that may include the * and **
+     *                        operators
+     */
+    synchronized void invalidate(String subscribedTopic) {
+        generation++;
+        Iterator<String> topics = entries.keySet().iterator();
+        while (topics.hasNext()) {
+            if (TopicPath.matches(topics.next(), subscribedTopic))
+                topics.remove();
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found the topic in the cache.
+     *
+     * @return number of cache hits
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which did not find the topic in the cache.
+     *
+     * @return number of cache misses
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+}
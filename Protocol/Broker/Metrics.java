@@ -0,0 +1,298 @@
+package Protocol.Broker;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import Protocol.Log;
+import Protocol.Protocol;
+import Protocol.TopicPath;
+import Protocol.Transport;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Statistics of a broker, published periodically by the broker itself as
+ * content under the reserved <b><code>$SYS</code></b> main topic, so that any
+ * subscriber can watch them, for example by subscribing to $SYS/* from the
+ * Dashboard. Publishers may not publish to <b><code>$SYS</code></b>, and it is
+ * never forwarded to other brokers, so every broker has its own. <br>
+ * </br>
+ * Counters are recorded by many threads at once without locking and read by the
+ * publishing thread. Rates and latencies cover the time since the previous
+ * publish, counters are totals since the broker started. <br>
+ * </br>
+ * Topics: <br>
+ * </br>
+ * $SYS/packets/received|rejected|dropped/broker|subscriber|publisher|unknown
+ * <br>
+ * </br>
+ * $SYS/packets/sent|retransmitted|acked|abandoned|failed|outstanding <br>
+ * </br>
+ * $SYS/publish/rate/[main topic] <br>
+ * </br>
+ * $SYS/subscribers/total|[main topic] <br>
+ * </br>
+ * $SYS/cache/topics|items|offheap <br>
+ * </br>
+ * $SYS/queue/depth <br>
+ * </br>
+ * $SYS/latency/dispatch|ack
+ */
+class Metrics {
+    public static final String SYS = "$SYS";
+    public static final int DEFAULT_INTERVAL = 5000;
+    private static final String[] TYPES = { "broker", "subscriber", "publisher", "unknown" };
+
+    private LongAdder[] received;
+    private LongAdder[] rejected;
+    private LongAdder[] dropped;
+    private LongAdder sent;
+    private LongAdder retransmitted;
+    private LongAdder acked;
+    private LongAdder abandoned;
+    private ConcurrentHashMap<String, LongAdder> published;
+    private LatencyHistogram dispatchLatency;
+    private LatencyHistogram ackLatency;
+
+    private volatile int intervalMs;
+    private Transport transport;
+    private Transport.Timeout publisher; // Next publish, guarded by the lock of these metrics
+    private long lastPublish;
+
+    /**
+     * <b><code>Metrics Constructor</code></b>. Starts with every counter at 0 and
+     * the default publishing interval.
+     *
+     * @param transport <b><code>Transport</code></b> of the broker, whose clock
+     *                  times the publishing and the rates
+     */
+    Metrics(Transport transport) {
+        this.transport = transport;
+        received = adders(TYPES.length);
+        rejected = adders(TYPES.length);
+        dropped = adders(TYPES.length);
+        sent = new LongAdder();
+        retransmitted = new LongAdder();
+        acked = new LongAdder();
+        abandoned = new LongAdder();
+        published = new ConcurrentHashMap<String, LongAdder>();
+        dispatchLatency = new LatencyHistogram();
+        ackLatency = new LatencyHistogram();
+        intervalMs = DEFAULT_INTERVAL;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * Checks if the topic is under the reserved <b><code>$SYS</code></b> main
+     * topic.
+     *
+     * @param topic topic/subtopics
+     * @return true if the topic is a statistics topic, else false
+     */
+    static boolean isSystemTopic(String topic) {
+        return TopicPath.mainTopic(topic).equals(SYS);
+    }
+
+    /**
+     * Records a packet which was taken off the dispatch queue by a worker.
+     *
+     * @param packetType <b><code>PACKET_TYPE</code></b> of the packet
+     * @param waitNanos  time the packet spent between being received and being
+     *                   handled
+     */
+    void dispatched(byte packetType, long waitNanos) {
+        received[typeIndex(packetType)].increment();
+        dispatchLatency.record(waitNanos);
+    }
+
+    /**
+     * Records a packet refused with a <b><code>NEG_ACK</code></b> because the
+     * broker was overloaded.
+     *
+     * @param packetType <b><code>PACKET_TYPE</code></b> of the packet
+     */
+    void rejected(byte packetType) {
+        rejected[typeIndex(packetType)].increment();
+    }
+
+    /**
+     * Records a packet discarded without an acknowledgement because the broker
+     * was overloaded.
+     *
+     * @param packetType <b><code>PACKET_TYPE</code></b> of the packet
+     */
+    void dropped(byte packetType) {
+        dropped[typeIndex(packetType)].increment();
+    }
+
+    /**
+     * Records a packet sent by the outbound channel.
+     *
+     * @param retransmission true if the packet was sent before and timed out
+     */
+    void sent(boolean retransmission) {
+        sent.increment();
+        if (retransmission)
+            retransmitted.increment();
+    }
+
+    /**
+     * Records the acknowledgement of a packet sent by the outbound channel.
+     *
+     * @param rttNanos time from sending to acknowledgement, or a negative value
+     *                 if the packet was retransmitted, as it is then unknown
+     *                 which transmission the acknowledgement answers
+     */
+    void acked(long rttNanos) {
+        acked.increment();
+        if (rttNanos >= 0)
+            ackLatency.record(rttNanos);
+    }
+
+    /**
+     * Records a packet the outbound channel gave up on.
+     */
+    void abandoned() {
+        abandoned.increment();
+    }
+
+    /**
+     * Records content published to the topic.
+     *
+     * @param topic topic/subtopics the content was published to
+     */
+    void published(String topic) {
+        String mainTopic = TopicPath.mainTopic(topic);
+        LongAdder count = published.get(mainTopic);
+        if (count == null)
+            count = published.computeIfAbsent(mainTopic, key -> new LongAdder());
+        count.increment();
+    }
+
+    /**
+     * Sets how often the statistics are published. Takes effect when the broker
+     * next starts listening.
+     *
+     * @param intervalMs interval in ms, or 0 to not publish statistics
+     */
+    void setInterval(int intervalMs) {
+        this.intervalMs = Math.max(0, intervalMs);
+    }
+
+    /**
+     * Starts publishing the statistics of the broker every interval.
+     *
+     * @param broker broker whose statistics are published
+     */
+    synchronized void start(Broker broker) {
+        int interval = intervalMs;
+        if (interval == 0 || publisher != null)
+            return;
+        lastPublish = transport.nanoTime();
+        publisher = transport.schedule(() -> publish(broker, interval), interval);
+        Log.info(" $ Publishing broker statistics under " + SYS + " every " + interval + "ms.");
+    }
+
+    /**
+     * Publishes the statistics of the broker and schedules the next publish,
+     * unless publishing was stopped meanwhile.
+     */
+    private void publish(Broker broker, int interval) {
+        try {
+            for (Map.Entry<String, Object> entry : snapshot(broker).entrySet())
+                broker.publishSystemContent(entry.getKey(), entry.getValue());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            if (publisher != null)
+                publisher = transport.schedule(() -> publish(broker, interval), interval);
+        }
+    }
+
+    /**
+     * Stops publishing the statistics.
+     */
+    synchronized void stop() {
+        if (publisher != null)
+            publisher.cancel();
+        publisher = null;
+    }
+
+    /**
+     * Takes the current values of every statistic, resetting the rates and
+     * latencies.
+     *
+     * @param broker broker whose statistics are taken
+     * @return the value of every <b><code>$SYS</code></b> topic, in the order they
+     *         are published
+     */
+    LinkedHashMap<String, Object> snapshot(Broker broker) {
+        LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < TYPES.length; i++) {
+            values.put(SYS + "/packets/received/" + TYPES[i], saturate(received[i].sum()));
+            values.put(SYS + "/packets/rejected/" + TYPES[i], saturate(rejected[i].sum()));
+            values.put(SYS + "/packets/dropped/" + TYPES[i], saturate(dropped[i].sum()));
+        }
+        values.put(SYS + "/packets/sent", saturate(sent.sum()));
+        values.put(SYS + "/packets/retransmitted", saturate(retransmitted.sum()));
+        values.put(SYS + "/packets/acked", saturate(acked.sum()));
+        values.put(SYS + "/packets/abandoned", saturate(abandoned.sum()));
+        values.put(SYS + "/packets/failed", saturate(broker.getFailedSends()));
+        values.put(SYS + "/packets/outstanding", broker.getOutstandingPackets());
+
+        long now = transport.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastPublish) / 1e9);
+        lastPublish = now;
+        for (Map.Entry<String, LongAdder> entry : published.entrySet()) {
+            if (!entry.getKey().equals(SYS))
+                values.put(SYS + "/publish/rate/" + entry.getKey(),
+                        String.format("%.1f/s", entry.getValue().sumThenReset() / seconds));
+        }
+
+        HashMap<String, Integer> subscribers = broker.getSubscriberCounts();
+        int total = 0;
+        for (Map.Entry<String, Integer> entry : subscribers.entrySet()) {
+            values.put(SYS + "/subscribers/" + entry.getKey(), entry.getValue());
+            total += entry.getValue();
+        }
+        values.put(SYS + "/subscribers/total", total);
+
+        int[] cache = broker.getCacheSize();
+        values.put(SYS + "/cache/topics", cache[0]);
+        values.put(SYS + "/cache/items", cache[1]);
+        values.put(SYS + "/cache/offheap", saturate(broker.getOffHeapStoreBytes()));
+        values.put(SYS + "/queue/depth", broker.getDispatchQueueDepth());
+        values.put(SYS + "/latency/dispatch", LatencyHistogram.describe(dispatchLatency.snapshotAndReset()));
+        values.put(SYS + "/latency/ack", LatencyHistogram.describe(ackLatency.snapshotAndReset()));
+        return values;
+    }
+
+    private static Integer saturate(long value) {
+        return (int) Math.min(Integer.MAX_VALUE, value);
+    }
+
+    private static int typeIndex(byte packetType) {
+        switch ((byte) (packetType & ~Protocol.EXTENDED)) {
+            case Protocol.BROKER:
+                return 0;
+            case Protocol.SUBSCRIBER:
+                return 1;
+            case Protocol.PUBLISHER:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+}
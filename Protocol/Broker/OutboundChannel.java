@@ -0,0 +1,369 @@
+package Protocol.Broker;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import Protocol.AckCoalescer;
+import Protocol.DatagramIO;
+import Protocol.Log;
+import Protocol.Protocol;
+import Protocol.Transport;
+import Protocol.Connection.Connection;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+class OutboundChannel implements Runnable {
+    public static final int TICK = 50; // Timer wheel tick in ms
+    public static final int WHEEL_SIZE = 64;
+    private final int MTU = 1500;
+    private final int BATCH = 32; // Most acknowledgements received per wakeup
+
+    private DatagramIO io;
+    private Transport transport;
+    private volatile boolean running;
+    private volatile int window;
+    private volatile boolean batching;
+    private ConcurrentLinkedQueue<BrokerSender> submitted;
+
+    // Only modified by the channel thread.
+    private int nextSequence;
+    private ConcurrentHashMap<Integer, Outstanding> outstanding;
+    private HashMap<InetSocketAddress, Peer> peers;
+    private ArrayList<ArrayList<Outstanding>> wheel;
+    private long currentTick;
+    private long lastTickTime;
+    private Metrics metrics;
+
+    /**
+     * A packet which has been sent and is waiting for an acknowledgement.
+     */
+    private static class Outstanding {
+        int sequence;
+        byte[] buffer;
+        InetSocketAddress dest;
+        int attempts;
+        int rounds;
+        long sentAt;
+        boolean acknowledged;
+    }
+
+    /**
+     * Delivery state of a single destination: how many packets are in flight and
+     * which ones are waiting for the window to open.
+     */
+    private static class Peer {
+        int inFlight;
+        ArrayDeque<Outstanding> waiting = new ArrayDeque<Outstanding>();
+    }
+
+    /**
+     * <b><code>OutboundChannel Constructor</code></b>. Opens the single
+     * non-blocking socket that the broker sends all of its packets from and on
+     * which it receives their acknowledgements. Packets are queued during a pass
+     * of the channel thread and flushed together at its end.
+     *
+     * @param metrics   statistics of the broker, which record every packet
+     *                  sent, retransmitted, acknowledged or abandoned
+     * @param transport <b><code>Transport</code></b> the socket is opened on,
+     *                  whose clock times the retransmissions
+     * @throws Exception if the socket could not be opened
+     */
+    OutboundChannel(Metrics metrics, Transport transport) throws Exception {
+        this.metrics = metrics;
+        this.transport = transport;
+        io = transport.open(new InetSocketAddress(0), false);
+        submitted = new ConcurrentLinkedQueue<BrokerSender>();
+        outstanding = new ConcurrentHashMap<Integer, Outstanding>();
+        peers = new HashMap<InetSocketAddress, Peer>();
+        wheel = new ArrayList<ArrayList<Outstanding>>();
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(new ArrayList<Outstanding>());
+        // Subscribers remember sequence numbers for a while to drop
+        // retransmissions, so a restarted broker must not reuse the ones it
+        // sent before.
+        nextSequence = ThreadLocalRandom.current().nextInt();
+        window = 1;
+        batching = true;
+        running = true;
+    }
+
+    /**
+     * Sets how many packets may be waiting for an acknowledgement from a single
+     * destination at once. A window of 1 is stop-and-wait delivery. Every packet
+     * is sent with the extended header whatever the window, so that each
+     * acknowledgement is matched to its packet by sequence number.
+     *
+     * @param window maximum number of unacknowledged packets per destination
+     */
+    void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Sets whether content packets to the same destination that are waiting to be
+     * sent together are packed into <b><code>BATCH</code></b> packets.
+     *
+     * @param batching true to batch content packets, else false
+     * @see BrokerSender#coalesce(List)
+     */
+    void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    /**
+     * Queues the packet described by the sender to be sent by the channel thread.
+     * Returns immediately, the packet is retransmitted by the channel until it is
+     * acknowledged or <b><code>MAX_ATTEMPTS</code></b> is reached.
+     *
+     * @param sender <b><code>BrokerSender</code></b> describing the packet
+     */
+    void send(BrokerSender sender) {
+        submitted.add(sender);
+        io.wakeup();
+    }
+
+    /**
+     * Queues the packets to be sent by the channel thread, batching content
+     * packets to the same destination together regardless of when the channel
+     * thread picks them up.
+     *
+     * @param senders <b><code>BrokerSender</code></b>s describing the packets
+     * @see #send(BrokerSender)
+     */
+    void sendAll(List<BrokerSender> senders) {
+        submitted.addAll(batching ? BrokerSender.coalesce(senders) : senders);
+        io.wakeup();
+    }
+
+    /**
+     * Returns the number of packets which are waiting for an acknowledgement.
+     *
+     * @return number of outstanding packets
+     */
+    int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Returns the batched I/O of the channel.
+     *
+     * @return <b><code>DatagramIO</code></b> of the channel
+     */
+    DatagramIO getIO() {
+        return io;
+    }
+
+    /**
+     * Thread run method. Sends newly submitted packets, matches received
+     * acknowledgements to outstanding packets and retransmits packets whose
+     * acknowledgement timed out, until the channel is closed. The packets queued
+     * during a pass are flushed in one burst at its end.
+     *
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+        ByteBuffer[] ackBuffers = new ByteBuffer[BATCH];
+        InetSocketAddress[] senders = new InetSocketAddress[BATCH];
+        for (int i = 0; i < BATCH; i++)
+            ackBuffers[i] = ByteBuffer.allocate(MTU);
+        lastTickTime = transport.currentTimeMillis();
+        while (running) {
+            try {
+                int received = io.receive(ackBuffers, senders, TICK);
+                for (int i = 0; i < received; i++) {
+                    ByteBuffer ack = ackBuffers[i];
+                    if (ack.limit() > Protocol.DATA_TYPE && ack.get(Protocol.DATA_TYPE) == Protocol.MULTI_ACK) {
+                        for (byte[] single : AckCoalescer.unpack(ack.array(), ack.limit()))
+                            receiveAcknowledgement(single, single.length, senders[i]);
+                    } else {
+                        receiveAcknowledgement(ack.array(), ack.limit(), senders[i]);
+                    }
+                    ack.clear();
+                }
+                sendSubmitted();
+                advanceWheel();
+                io.flush();
+            } catch (Exception e) {
+                if (running)
+                    e.printStackTrace();
+            }
+        }
+        try {
+            io.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the channel thread and closes the socket. Packets which are still
+     * waiting for an acknowledgement are abandoned.
+     */
+    void close() {
+        running = false;
+        io.wakeup();
+    }
+
+    /**
+     * Sends all packets submitted since the last pass and schedules their
+     * acknowledgement timeouts. Content packets to the same destination that were
+     * submitted since the last pass are batched. Packets to a destination whose
+     * window is full are held back until an earlier packet is acknowledged.
+     *
+     * @throws Exception if the socket fails
+     */
+    private void sendSubmitted() throws Exception {
+        ArrayList<BrokerSender> drained = new ArrayList<BrokerSender>();
+        BrokerSender polled;
+        while ((polled = submitted.poll()) != null)
+            drained.add(polled);
+        if (drained.isEmpty())
+            return;
+        if (batching && drained.size() > 1)
+            drained = BrokerSender.coalesce(drained);
+        int window = this.window;
+        for (BrokerSender sender : drained) {
+            Connection dest = sender.getDestination();
+            Outstanding o = new Outstanding();
+            o.sequence = nextSequence++;
+            o.buffer = sender.assemblePacket(o.sequence);
+            o.dest = new InetSocketAddress(dest.getAddress(), dest.getPort());
+            Log.trace(() -> Protocol.ThreadName() + "Sending content to " + dest + ".");
+            Peer peer = peers.get(o.dest);
+            if (peer == null) {
+                peer = new Peer();
+                peers.put(o.dest, peer);
+            }
+            if (peer.inFlight >= window) {
+                peer.waiting.add(o);
+                continue;
+            }
+            peer.inFlight++;
+            outstanding.put(o.sequence, o);
+            transmit(o);
+        }
+    }
+
+    /**
+     * Queues the packet to be sent at the end of the pass and schedules its
+     * acknowledgement timeout on the timer wheel.
+     *
+     * @param o outstanding packet
+     * @throws Exception if the socket fails
+     */
+    private void transmit(Outstanding o) throws Exception {
+        o.attempts++;
+        o.sentAt = transport.nanoTime();
+        metrics.sent(o.attempts > 1);
+        io.queue(ByteBuffer.wrap(o.buffer), o.dest);
+        long ticks = Math.max(1, BrokerSender.ACK_TIMEOUT / TICK);
+        o.rounds = (int) (ticks / WHEEL_SIZE);
+        wheel.get((int) ((currentTick + ticks) % WHEEL_SIZE)).add(o);
+    }
+
+    /**
+     * Handles an acknowledgement received on the socket. It is matched to the
+     * outstanding packet with the same sequence number, which must have been sent
+     * to the address and port the acknowledgement came from. Acknowledgements
+     * without an extended header cannot be told apart and are ignored. The
+     * acknowledgements of a <b><code>MULTI_ACK</code></b> packet are handled one
+     * by one.
+     *
+     * @param data   acknowledgement bytes
+     * @param length number of valid bytes in data
+     * @param from   address the acknowledgement came from
+     * @throws Exception if the socket fails
+     */
+    private void receiveAcknowledgement(byte[] data, int length, InetSocketAddress from) throws Exception {
+        if (length < Protocol.HEADER_LEN
+                || (data[Protocol.DATA_TYPE] != Protocol.POS_ACK && data[Protocol.DATA_TYPE] != Protocol.NEG_ACK))
+            return;
+        Outstanding o = null;
+        if (Protocol.isExtended(data) && length >= Protocol.headerLength(data)) {
+            o = outstanding.get(Protocol.sequence(data));
+            if (o != null && !o.dest.equals(from))
+                o = null;
+        }
+        if (o == null || o.acknowledged) {
+            Log.debug(() -> Protocol.ThreadName() + "\u001B[31;1mReceived invalid ack!\u001B[0m");
+            return;
+        }
+        int attempts = o.attempts;
+        Log.trace(() -> Protocol.ThreadName() + "\u001B[32;1mAck received! Attempt " + attempts + "/"
+                + BrokerSender.MAX_ATTEMPTS + "\u001B[0m");
+        metrics.acked(attempts == 1 ? transport.nanoTime() - o.sentAt : -1);
+        complete(o);
+    }
+
+    /**
+     * Removes a packet from the outstanding packets once it has been acknowledged
+     * or abandoned, sending the next packet waiting for the window of its
+     * destination.
+     *
+     * @param o outstanding packet
+     * @throws Exception if the socket fails
+     */
+    private void complete(Outstanding o) throws Exception {
+        o.acknowledged = true;
+        outstanding.remove(o.sequence);
+        Peer peer = peers.get(o.dest);
+        if (peer == null)
+            return;
+        peer.inFlight--;
+        while (peer.inFlight < window && !peer.waiting.isEmpty()) {
+            Outstanding next = peer.waiting.poll();
+            peer.inFlight++;
+            outstanding.put(next.sequence, next);
+            transmit(next);
+        }
+        if (peer.inFlight == 0 && peer.waiting.isEmpty())
+            peers.remove(o.dest);
+    }
+
+    /**
+     * Moves the timer wheel forward by the number of ticks that have passed since
+     * it was last advanced, retransmitting or abandoning every packet whose
+     * acknowledgement timed out.
+     *
+     * @throws Exception if the socket fails
+     */
+    private void advanceWheel() throws Exception {
+        long now = transport.currentTimeMillis();
+        while (now - lastTickTime >= TICK) {
+            lastTickTime += TICK;
+            currentTick++;
+            ArrayList<Outstanding> slot = wheel.get((int) (currentTick % WHEEL_SIZE));
+            if (slot.isEmpty())
+                continue;
+            ArrayList<Outstanding> expired = new ArrayList<Outstanding>(slot);
+            slot.clear();
+            for (Outstanding o : expired) {
+                if (o.acknowledged)
+                    continue;
+                if (o.rounds > 0) {
+                    o.rounds--;
+                    slot.add(o);
+                } else if (o.attempts < BrokerSender.MAX_ATTEMPTS) {
+                    Log.debug(() -> Protocol.ThreadName() + "\u001B[31;1mDidn't receive ack! Attempt " + o.attempts
+                            + "/" + BrokerSender.MAX_ATTEMPTS + "\u001B[0m");
+                    transmit(o);
+                } else {
+                    Log.warn(() -> Protocol.ThreadName() + "\u001B[31;1mDidn't receive ack! Giving up after "
+                            + o.attempts + " attempts.\u001B[0m");
+                    metrics.abandoned();
+                    complete(o);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package Protocol.Broker;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Determines what the broker does with a newly received packet when its dispatch
+ * queue is full.
+ */
+public enum OverloadPolicy {
+    /**
+     * The oldest packet still waiting in the queue is discarded to make room for
+     * the new packet.
+     */
+    DROP_OLDEST,
+    /**
+     * The new packet is discarded and a <b><code>NEG_ACK</code></b> is sent back to
+     * its sender.
+     */
+    NEG_ACK,
+    /**
+     * The receiver waits until there is room in the queue, which stops it from
+     * reading further packets off the socket in the meantime.
+     */
+    BLOCK
+}
@@ -0,0 +1,133 @@
+package Protocol.Broker;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Protocol.Execution;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+class PacketDispatcher implements RejectedExecutionHandler {
+    public static final int DEFAULT_WORKERS = 16;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    private ThreadPoolExecutor executor;
+    private BlockingQueue<Runnable> queue;
+    private OverloadPolicy policy;
+    private AtomicLong rejected;
+    private AtomicLong dropped;
+
+    /**
+     * <b><code>PacketDispatcher Constructor</code></b>. Creates a fixed pool of
+     * workers which take packet handlers off a bounded queue. When the queue is
+     * full, the overload policy decides what happens to newly received packets.
+     *
+     * @param workers        number of worker threads handling packets
+     * @param queueCapacity  maximum number of packets waiting to be handled
+     * @param virtualThreads true if the workers should be virtual threads, else
+     *                       false for platform threads
+     * @param policy         <b><code>OverloadPolicy</code></b> used when the queue
+     *                       is full
+     * @see OverloadPolicy
+     */
+    PacketDispatcher(int workers, int queueCapacity, boolean virtualThreads, OverloadPolicy policy) {
+        this.policy = policy;
+        rejected = new AtomicLong();
+        dropped = new AtomicLong();
+        queue = new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity));
+        executor = new ThreadPoolExecutor(Math.max(1, workers), Math.max(1, workers), 60, TimeUnit.SECONDS, queue,
+                Execution.threadFactory(virtualThreads, "\u001B[34mDispatch Worker "), this);
+    }
+
+    /**
+     * Queues a packet handler to be ran by one of the workers.
+     *
+     * @param handler <b><code>PacketHandler</code></b> for a received packet
+     */
+    void dispatch(PacketHandler handler) {
+        executor.execute(handler);
+    }
+
+    /**
+     * Called by the executor when the queue is full. Applies the overload policy
+     * to the packet handler that could not be queued. Handlers whose packets are
+     * dropped give their buffers back to the pool.
+     *
+     * @see RejectedExecutionHandler#rejectedExecution(Runnable, ThreadPoolExecutor)
+     */
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            ((PacketHandler) r).release();
+            return;
+        }
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(r);
+                } catch (InterruptedException e) {
+                    ((PacketHandler) r).release();
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case DROP_OLDEST:
+                Runnable oldest = queue.poll();
+                if (oldest != null) {
+                    ((PacketHandler) oldest).drop();
+                    dropped.incrementAndGet();
+                }
+                if (!queue.offer(r)) {
+                    ((PacketHandler) r).drop();
+                    dropped.incrementAndGet();
+                }
+                break;
+            case NEG_ACK:
+            default:
+                rejected.incrementAndGet();
+                ((PacketHandler) r).reject();
+                break;
+        }
+    }
+
+    /**
+     * Returns the number of packets currently waiting to be handled.
+     *
+     * @return dispatch queue depth
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of packets that were refused with a
+     * <b><code>NEG_ACK</code></b> because the queue was full.
+     *
+     * @return number of rejected packets
+     */
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of queued packets that were discarded to make room for
+     * newer packets.
+     *
+     * @return number of dropped packets
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the workers once the packets already in the queue have been handled.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -1,9 +1,14 @@
 package Protocol.Broker;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
+import Protocol.AckCoalescer;
+import Protocol.Batch;
+import Protocol.Log;
 import Protocol.Protocol;
+import Protocol.TopicDictionary;
 import Protocol.Connection.Connection;
 
 /**
@@ -11,23 +16,39 @@ import Protocol.Connection.Connection;
  */
 
 class PacketHandler implements Runnable {
-    private DatagramPacket packet;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[BrokerReceiver.MTU]);
+
+    private ByteBuffer packet;
+    private InetSocketAddress sender;
+    private BufferPool pool;
+    private AckCoalescer acks;
     private Broker broker;
     private String name;
+    private long receivedAt;
 
     /**
      * <b><code>PacketHandler Constructor</code></b>. Saves parameters and assigns a
-     * randomly generated name to the thread.
+     * randomly generated name to the thread. The header, topic and payload are
+     * read straight out of the packet buffer, which is given back to the pool once
+     * the packet is handled or discarded.
      * 
-     * @param packet <b><code>DatagramPacket</code></b> received by the
-     *               <b><code>BROKER</code></b>
+     * @param packet buffer holding the packet received by the
+     *               <b><code>BROKER</code></b>, from index 0 up to its limit
+     * @param sender address the packet was received from
+     * @param pool   <b><code>BufferPool</code></b> the buffer was taken from
+     * @param acks   <b><code>AckCoalescer</code></b> of the receiving channel
      * @param broker reference to this <b><code>BROKER</code></b>
      * @see Thread#Thread()
      * @see Broker#Broker(int)
      */
-    public PacketHandler(DatagramPacket packet, Broker broker) {
+    public PacketHandler(ByteBuffer packet, InetSocketAddress sender, BufferPool pool, AckCoalescer acks,
+            Broker broker) {
         this.packet = packet;
+        this.sender = sender;
+        this.pool = pool;
+        this.acks = acks;
         this.broker = broker;
+        receivedAt = System.nanoTime();
         name = "\u001B[34mHandler Thread " + String.format("%04X", (int) (Math.random() * Short.MAX_VALUE))
                 + ": \u001B[0m";
     }
@@ -45,22 +66,97 @@ class PacketHandler implements Runnable {
     @Override
     public void run() {
         Thread.currentThread().setName(name);
-        switch (packet.getData()[0]) {
-            case Protocol.BROKER:
-                BrokerPacketHandler();
-                break;
-            case Protocol.SUBSCRIBER:
-                SubscriberPacketHandler();
-                break;
-            case Protocol.PUBLISHER:
-                PublisherPacketHandler();
-                break;
-            default:
-                System.out.println(
-                        Protocol.ThreadName() + "\u001B[31;1m[!] Unknown Packet Type: \u001B[0mPacket discarded.");
-                break;
+        try {
+            broker.getMetrics().dispatched(packetType(), System.nanoTime() - receivedAt);
+            if (packet.limit() < Protocol.HEADER_LEN || packet.limit() < Protocol.headerLength(packet)) {
+                Log.warn(() -> Protocol.ThreadName()
+                        + "\u001B[31;1m[!] Packet too short: \u001B[0mPacket refused.");
+                refuseShortPacket();
+                return;
+            }
+            switch (Protocol.packetType(packet)) {
+                case Protocol.BROKER:
+                    BrokerPacketHandler();
+                    break;
+                case Protocol.SUBSCRIBER:
+                    SubscriberPacketHandler();
+                    break;
+                case Protocol.PUBLISHER:
+                    PublisherPacketHandler();
+                    break;
+                default:
+                    Log.warn(() -> Protocol.ThreadName()
+                            + "\u001B[31;1m[!] Unknown Packet Type: \u001B[0mPacket discarded.");
+                    break;
+            }
+        } finally {
+            release();
         }
-        System.out.println(Protocol.ThreadName() + "Exiting...");
+        Log.trace(() -> Protocol.ThreadName() + "Exiting...");
+    }
+
+    /**
+     * Sends a <b><code>NEG_ACK</code></b> for a packet whose header is cut short,
+     * echoing as much of the header as was received, so that the sender stops
+     * retransmitting it. Packets too short to carry a data type and
+     * acknowledgements are not answered.
+     */
+    private void refuseShortPacket() {
+        if (packet.limit() < Protocol.HEADER_LEN)
+            return;
+        byte dataType = packet.get(Protocol.DATA_TYPE);
+        if (dataType == Protocol.POS_ACK || dataType == Protocol.NEG_ACK || dataType == Protocol.MULTI_ACK)
+            return;
+        sendAcknowledgement(Protocol.NEG_ACK);
+    }
+
+    /**
+     * Refuses the packet without handling it, used when the broker is overloaded.
+     * Sends a <b><code>NEG_ACK</code></b> to the sender so that it does not keep
+     * waiting for an acknowledgement.
+     * 
+     * @see PacketDispatcher
+     */
+    void reject() {
+        Log.warn(() -> Protocol.ThreadName() + "\u001B[31;1m[!] Broker overloaded: \u001B[0mPacket rejected.");
+        broker.getMetrics().rejected(packetType());
+        if (packet.limit() >= Protocol.HEADER_LEN)
+            sendAcknowledgement(Protocol.NEG_ACK);
+        release();
+    }
+
+    /**
+     * Discards the packet without handling or acknowledging it, used when the
+     * broker is overloaded.
+     * 
+     * @see PacketDispatcher
+     */
+    synchronized void drop() {
+        if (packet == null)
+            return;
+        broker.getMetrics().dropped(packetType());
+        release();
+    }
+
+    /**
+     * Returns the <b><code>PACKET_TYPE</code></b> byte of the packet as received,
+     * or 0 if the packet is empty.
+     */
+    private byte packetType() {
+        return packet.limit() > 0 ? packet.get(Protocol.PACKET_TYPE) : 0;
+    }
+
+    /**
+     * Gives the packet buffer back to the pool. Called once the packet is handled,
+     * rejected or dropped, after which the packet may not be read.
+     * 
+     * @see BufferPool#release(ByteBuffer)
+     */
+    synchronized void release() {
+        if (packet == null)
+            return;
+        pool.release(packet);
+        packet = null;
     }
 
     /**
@@ -77,29 +173,30 @@ class PacketHandler implements Runnable {
      * <b><code>BROKER_STR/BROKER_INT:</code></b> will read the packet as a
      * publisher packet.
      * 
-     * @see #assignBrokerToTopic(String, byte[])
-     * @see #resolveBrokerSubscriberPacket(String, byte[])
-     * @see #resolveBrokerPublisherPacket(String, byte[])
+     * @see #assignBrokerToTopic(String)
+     * @see #resolveBrokerSubscriberPacket(String)
+     * @see #resolveBrokerPublisherPacket(String)
      */
     private void BrokerPacketHandler() {
-        System.out.println(Protocol.ThreadName() + "\u001B[32mHandling a Broker Packet!\u001B[0m");
+        Log.trace(() -> Protocol.ThreadName() + "\u001B[32mHandling a Broker Packet!\u001B[0m");
         sendAcknowledgement(Protocol.POS_ACK);
-        byte[] data = unpack();
-        String topic = getTopic(data);
-        switch (data[Protocol.DATA_TYPE]) {
+        String topic = getTopic();
+        if (topic == null)
+            return; // Brokers always send topic bytes
+        switch (packet.get(Protocol.DATA_TYPE)) {
             case Protocol.TOPIC_OWN:
-                assignBrokerToTopic(topic, data);
+                assignBrokerToTopic(topic);
                 break;
             case Protocol.BROKER_SUB:
             case Protocol.BROKER_UNSUB:
-                resolveBrokerSubscriberPacket(topic, data);
+                resolveBrokerSubscriberPacket(topic);
                 break;
             case Protocol.BROKER_INT:
             case Protocol.BROKER_STR:
-                resolveBrokerPublisherPacket(topic, data);
+                resolveBrokerPublisherPacket(topic);
                 break;
             default:
-                System.out.println(Protocol.ThreadName() + "\u001B[31mUnhandled/Unknown Data Type.\u001B[0m");
+                Log.warn(() -> Protocol.ThreadName() + "\u001B[31mUnhandled/Unknown Data Type.\u001B[0m");
         }
 
     }
@@ -112,27 +209,26 @@ class PacketHandler implements Runnable {
      * what topic.
      * 
      * @param topic the topic from the header
-     * @param data  the <b><code>DatagramPacket</code></b> contents, includes the
-     *              protocol header and payload
      * @see #PublisherPacketHandler()
      */
-    private void resolveBrokerPublisherPacket(String topic, byte[] data) {
-        System.out.println(Protocol.ThreadName() + "Resolving forwarded publisher packet...");
-        if (topic.contains("*"))
-            return; // Publishers may not use the star operator
+    private void resolveBrokerPublisherPacket(String topic) {
+        Log.trace(() -> Protocol.ThreadName() + "Resolving forwarded publisher packet...");
+        if (topic.contains("*") || Metrics.isSystemTopic(topic))
+            return; // Publishers may not use the star operator or publish statistics
+        int offset = Protocol.headerLength(packet);
         Object cacheableContent = null;
-        if (data[Protocol.DATA_TYPE] == Protocol.BROKER_STR) {
-            String content = new String(getContent(data));
+        if (packet.get(Protocol.DATA_TYPE) == Protocol.BROKER_STR) {
+            String content = stringContent(offset, packet.limit() - offset);
             cacheableContent = content;
             broker.sendContentToSubscribers(topic, content);
-        } else if (data[Protocol.DATA_TYPE] == Protocol.BROKER_INT) {
-            Integer content = integerContent(getContent(data));
+        } else if (packet.get(Protocol.DATA_TYPE) == Protocol.BROKER_INT) {
+            Integer content = integerContent(offset, packet.limit() - offset);
             cacheableContent = content;
             broker.sendContentToSubscribers(topic, content);
         }
-        if (data[Protocol.CACHE_REQ] == Protocol.CACHE_Y) {
+        if (packet.get(Protocol.CACHE_REQ) == Protocol.CACHE_Y) {
             if (cacheableContent != null)
-                broker.storeContent(topic, cacheableContent);
+                broker.storeContent(topic, cacheableContent, packet, offset, packet.limit() - offset);
         }
     }
 
@@ -145,31 +241,28 @@ class PacketHandler implements Runnable {
      * payload.
      * 
      * @param topic the topic from the header
-     * @param data  the <b><code>DatagramPacket</code></b> contents, includes the
-     *              protocol header and payload (subscriber ip and port)
      * @see #SubscriberPacketHandler()
      */
-    private void resolveBrokerSubscriberPacket(String topic, byte[] data) {
-        System.out.println(Protocol.ThreadName() + "Resolving forwarded subscriber packet...");
-        byte[] content = getContent(data);
-        String address = retrieveAddress(content);
-        int port = retrievePort(content);
+    private void resolveBrokerSubscriberPacket(String topic) {
+        Log.trace(() -> Protocol.ThreadName() + "Resolving forwarded subscriber packet...");
+        int offset = Protocol.headerLength(packet);
+        String address = retrieveAddress(offset);
+        int port = retrievePort(offset);
         Connection subscriberConn = new Connection(address, port + 1);
         SubscriberData sub = broker.getSubscriber(topic, subscriberConn);
 
-        if (data[Protocol.DATA_TYPE] == Protocol.BROKER_SUB) {
+        if (packet.get(Protocol.DATA_TYPE) == Protocol.BROKER_SUB) {
             broker.sendCachedDataToSubscriber(topic, subscriberConn);
-            if (data[Protocol.CACHE_REQ] == Protocol.CACHE_Y) {
+            if (packet.get(Protocol.CACHE_REQ) == Protocol.CACHE_Y) {
                 if (sub != null) {
-                    sub.addTopic(topic);
-                    System.out.println(Protocol.ThreadName() + "Added subtopics '" + topic + "' to " + sub + ".");
+                    broker.addSubscriberTopic(sub, topic);
                 } else {
                     SubscriberData subData = new SubscriberData(subscriberConn, topic);
                     broker.addSubscriber(topic, subData);
                 }
             }
-        } else if (data[Protocol.DATA_TYPE] == Protocol.BROKER_UNSUB) {
-            System.out.println(Protocol.ThreadName() + "Unsubscribing Subscriber:[" + subscriberConn + "] from topic '"
+        } else if (packet.get(Protocol.DATA_TYPE) == Protocol.BROKER_UNSUB) {
+            Log.debug(() -> Protocol.ThreadName() + "Unsubscribing Subscriber:[" + subscriberConn + "] from topic '"
                     + topic + "'.");
             broker.unsubscribe(topic, subscriberConn);
         }
@@ -184,7 +277,7 @@ class PacketHandler implements Runnable {
      * <b><code>SUBSCRIBER</code></b> if requested, such that no further content
      * will be sent to that <b><code>SUBSCRIBER</code></b> in the future. The
      * subscriber packet contains no payload, the ip and port of the subscriber are
-     * retrieved from the <b><code>DatagramPacket</code></b> header. <br>
+     * the address the packet was received from. <br>
      * </br>
      * If this <b><code>BROKER</code></b> doesn't currently own the topic that is
      * being subscribed/unsubscribed to, it checks if other brokers it knows own the
@@ -192,37 +285,42 @@ class PacketHandler implements Runnable {
      * brokers.
      */
     private void SubscriberPacketHandler() {
-        System.out.println(Protocol.ThreadName() + "\u001B[32mHandling a Subscriber Packet!\u001B[0m");
-        byte[] data = unpack();
-        String topic = getTopic(data);
+        Log.trace(() -> Protocol.ThreadName() + "\u001B[32mHandling a Subscriber Packet!\u001B[0m");
+        String topic = getTopic();
+        if (topic == null) {
+            sendAcknowledgement(Protocol.NEG_ACK);
+            Log.debug(() -> Protocol.ThreadName() + "Unknown topic id " + Protocol.topicId(packet) + " of epoch "
+                    + Protocol.topicEpoch(packet) + ".");
+            return;
+        }
         if(topic.startsWith("*")) {
             sendAcknowledgement(Protocol.NEG_ACK);
-            System.out.println(Protocol.ThreadName() + "Attempted subscription without a main topic.");
+            Log.debug(() -> Protocol.ThreadName() + "Attempted subscription without a main topic.");
             return; // Cannot subscribe without a main topic.
         }
         else sendAcknowledgement(Protocol.POS_ACK);
 
         boolean owned = checkTopicOwnership(topic);
         if (!owned) {
-            broker.forwardSubscriberPacket(topic, data, new Connection(packet.getAddress(), packet.getPort()));
+            broker.forwardSubscriberPacket(topic, packet.get(Protocol.DATA_TYPE), packet.get(Protocol.CACHE_REQ),
+                    new Connection(sender.getAddress(), sender.getPort()));
             return;
         }
-        Connection subscriberConn = new Connection(packet.getAddress(), packet.getPort() + 1);
+        Connection subscriberConn = new Connection(sender.getAddress(), sender.getPort() + 1);
         SubscriberData sub = broker.getSubscriber(topic, subscriberConn);
 
-        if (data[Protocol.DATA_TYPE] == Protocol.SUB) {
+        if (packet.get(Protocol.DATA_TYPE) == Protocol.SUB) {
             broker.sendCachedDataToSubscriber(topic, subscriberConn);
-            if (data[Protocol.CACHE_REQ] == Protocol.CACHE_Y) {
+            if (packet.get(Protocol.CACHE_REQ) == Protocol.CACHE_Y) {
                 if (sub != null) {
-                    sub.addTopic(topic);
-                    System.out.println(Protocol.ThreadName() + "Added subtopics '" + topic + "' to " + sub + ".");
+                    broker.addSubscriberTopic(sub, topic);
                 } else {
                     SubscriberData subData = new SubscriberData(subscriberConn, topic);
                     broker.addSubscriber(topic, subData);
                 }
             }
-        } else if (data[Protocol.DATA_TYPE] == Protocol.UNSUB) {
-            System.out.println(Protocol.ThreadName() + "Unsubscribing Subscriber:[" + subscriberConn + "] from topic '"
+        } else if (packet.get(Protocol.DATA_TYPE) == Protocol.UNSUB) {
+            Log.debug(() -> Protocol.ThreadName() + "Unsubscribing Subscriber:[" + subscriberConn + "] from topic '"
                     + topic + "'.");
             broker.unsubscribe(topic, subscriberConn);
         }
@@ -240,95 +338,200 @@ class PacketHandler implements Runnable {
      * brokers.
      */
     private void PublisherPacketHandler() {
-        System.out.println(Protocol.ThreadName() + "\u001B[32mHandling a Publisher Packet!\u001B[0m");
+        Log.trace(() -> Protocol.ThreadName() + "\u001B[32mHandling a Publisher Packet!\u001B[0m");
         
-        byte[] data = unpack();
-        String topic = getTopic(data);
+        String topic = getTopic();
 
+        if (topic == null) {
+            sendAcknowledgement(Protocol.NEG_ACK);
+            Log.debug(() -> Protocol.ThreadName() + "Unknown topic id " + Protocol.topicId(packet) + " of epoch "
+                    + Protocol.topicEpoch(packet) + ".");
+            return; // The publisher registers the topic again
+        }
         if (topic.contains("*"))
         {
             sendAcknowledgement(Protocol.NEG_ACK);
-            System.out.println(Protocol.ThreadName() + "Attempted publishing with star operator.");
+            Log.debug(() -> Protocol.ThreadName() + "Attempted publishing with star operator.");
             return; // Publishers may not use the star operator
         }
-        else sendAcknowledgement(Protocol.POS_ACK);
+        if (Metrics.isSystemTopic(topic)) {
+            sendAcknowledgement(Protocol.NEG_ACK);
+            Log.debug(() -> Protocol.ThreadName() + "Attempted publishing to " + Metrics.SYS + ".");
+            return; // Only the broker publishes its statistics
+        }
+        if (packet.get(Protocol.DATA_TYPE) == Protocol.TOPIC_REG) {
+            registerTopic(topic);
+            return;
+        }
+        if (packet.get(Protocol.DATA_TYPE) == Protocol.BATCH) {
+            resolvePublisherBatch();
+            return;
+        }
+        sendAcknowledgement(Protocol.POS_ACK);
+        int offset = Protocol.headerLength(packet);
+        resolvePublishedContent(topic, packet.get(Protocol.DATA_TYPE), packet.get(Protocol.CACHE_REQ), offset,
+                packet.limit() - offset);
+    }
 
+    /**
+     * Handles a <b><code>BATCH</code></b> packet from a publisher, which carries
+     * many pieces of content that share the caching request of the header. The
+     * whole batch is refused if any of its topics is empty, uses the star
+     * operator or is a statistics topic, otherwise each piece of content is
+     * handled as if it had been sent on its own. The records are read in place
+     * from the packet buffer.
+     * 
+     * @see Batch
+     */
+    private void resolvePublisherBatch() {
+        ArrayList<String> topics = new ArrayList<String>();
+        ArrayList<Integer> records = new ArrayList<Integer>();
+        int offset = Protocol.headerLength(packet);
+        int next;
+        while ((next = Batch.recordEnd(packet, offset, packet.limit())) != -1) {
+            String topic = broker.internTopic(decode(Batch.topicOffset(offset), Batch.topicLength(packet, offset)));
+            if (topic.isEmpty() || topic.contains("*") || Metrics.isSystemTopic(topic)) {
+                sendAcknowledgement(Protocol.NEG_ACK);
+                Log.debug(() -> Protocol.ThreadName() + "Attempted publishing with star operator or to "
+                        + Metrics.SYS + ".");
+                return;
+            }
+            topics.add(topic);
+            records.add(offset);
+            offset = next;
+        }
+        sendAcknowledgement(Protocol.POS_ACK);
+        Log.trace(() -> Protocol.ThreadName() + "Resolving batch of " + records.size() + " publisher records...");
+        for (int i = 0; i < records.size(); i++) {
+            int record = records.get(i);
+            resolvePublishedContent(topics.get(i), packet.get(record), packet.get(Protocol.CACHE_REQ),
+                    Batch.payloadOffset(packet, record), Batch.payloadLength(packet, record));
+        }
+    }
 
+    /**
+     * Sends published content to current subscribers of the topic and caches it
+     * if requested, or forwards it to the broker that owns the topic.
+     * 
+     * @param topic    topic to which the content is published
+     * @param dataType <b><code>STR</code></b> or <b><code>INT</code></b>
+     * @param cacheReq <b><code>CACHE_Y</code></b> or <b><code>CACHE_N</code></b>
+     * @param offset   position of the content bytes in the packet
+     * @param length   number of content bytes
+     */
+    private void resolvePublishedContent(String topic, byte dataType, byte cacheReq, int offset, int length) {
         boolean owned = checkTopicOwnership(topic);
 
         if (!owned) {
-            broker.forwardPublisherPacket(topic, data, getContent(data));
+            byte[] payload = new byte[length];
+            packet.get(offset, payload);
+            broker.forwardPublisherPacket(topic, dataType, cacheReq, payload);
             return;
         }
 
 
         Object cacheableContent = null;
-        if (data[Protocol.DATA_TYPE] == Protocol.STR) {
-            String content = new String(getContent(data));
+        if (dataType == Protocol.STR) {
+            String content = stringContent(offset, length);
             cacheableContent = content;
             broker.sendContentToSubscribers(topic, content);
-        } else if (data[Protocol.DATA_TYPE] == Protocol.INT) {
-            Integer content = integerContent(getContent(data));
+        } else if (dataType == Protocol.INT) {
+            Integer content = integerContent(offset, length);
             cacheableContent = content;
             broker.sendContentToSubscribers(topic, content);
         }
-        if (data[Protocol.CACHE_REQ] == Protocol.CACHE_Y) {
+        if (cacheReq == Protocol.CACHE_Y) {
             if (cacheableContent != null)
-                broker.storeContent(topic, cacheableContent);
+                broker.storeContent(topic, cacheableContent, packet, offset, length);
+        }
+    }
+
+    /**
+     * Handles a <b><code>TOPIC_REG</code></b> request by assigning an id to the
+     * topic and sending it back as the payload of the acknowledgement, followed by
+     * the epoch of the broker. The publisher can then replace the topic bytes with
+     * the id and epoch in later packets. If
+     * the topic cannot be given an id (or the topic is sent as an id already), a
+     * <b><code>NEG_ACK</code></b> is sent and the publisher keeps using the topic
+     * bytes.
+     * 
+     * @param topic the topic from the header
+     * @see TopicDictionary
+     */
+    private void registerTopic(String topic) {
+        int id = Protocol.hasTopicId(packet) ? TopicDictionary.NO_ID : broker.registerTopic(topic);
+        if (id == TopicDictionary.NO_ID) {
+            sendAcknowledgement(Protocol.NEG_ACK);
+            return;
         }
+        int epoch = broker.getTopicEpoch();
+        sendAcknowledgement(Protocol.POS_ACK,
+                new byte[] { (byte) (id >>> 8), (byte) id, (byte) (epoch >>> 8), (byte) epoch });
     }
 
     /**
      * Assigns a <b><code>BROKER</code></b> to a topic when the said broker
      * announces their ownership of the topic.
      * 
-     * @param topic the topic from the header
-     * @param data  the <b><code>DatagramPacket</code></b> contents, includes the ip
-     *              address and port of the broker who owns the topic
+     * @param topic the topic from the header, the payload holds the ip address
+     *              and port of the broker who owns the topic
      */
-    private void assignBrokerToTopic(String topic, byte[] data) {
-        int port = retrievePort(getContent(data));
-        String address = retrieveAddress(getContent(data));
+    private void assignBrokerToTopic(String topic) {
+        int offset = Protocol.headerLength(packet);
+        int port = retrievePort(offset);
+        String address = retrieveAddress(offset);
         Connection conn = new Connection(address, port);
         broker.assignBrokerToTopic(topic, conn);
     }
 
     /**
-     * Given a byte array, it converts the bytes to an integer where
-     * <b><code>byte[0]</code></b> is the most significant byte of the integer.
+     * Given the position of content bytes in the packet, it converts the bytes to
+     * an integer where the first byte is the most significant byte of the integer.
      * 
-     * @param intBytes input byte array whose value is to be changed into an integer
-     * @return <b><code>Integer</code></b> value as computed from the byte array
+     * @param offset position of the content bytes in the packet
+     * @param length number of content bytes
+     * @return <b><code>Integer</code></b> value as computed from the bytes
      */
-    private Integer integerContent(byte[] intBytes) {
+    Integer integerContent(int offset, int length) {
         int value = 0;
-        for (byte b : intBytes) {
+        for (int i = offset; i < offset + length; i++) {
             value <<= 8;
-            value += 0xFF & b;
+            value += 0xFF & packet.get(i);
         }
         return (Integer) value;
     }
 
     /**
-     * Given the contents of the <b><code>DatagramPacket</code></b> it returns the
-     * payload without the header information.
+     * Given the position of content bytes in the packet, returns the content as a
+     * <b><code>String</code></b>.
+     * 
+     * @param offset position of the content bytes in the packet
+     * @param length number of content bytes
+     * @return <b><code>String</code></b> content
+     */
+    String stringContent(int offset, int length) {
+        return decode(offset, length);
+    }
+
+    /**
+     * Decodes part of the packet into a <b><code>String</code></b>, going through
+     * a scratch array of the worker thread instead of copying the bytes into an
+     * array of their own.
      * 
-     * @param data <b><code>DatagramPacket</code></b> contents, including the
-     *             protocol header and payload.
-     * @return byte array of the payload only.
-     * @see #unpack()
+     * @param offset position of the bytes in the packet
+     * @param length number of bytes
+     * @return decoded <b><code>String</code></b>
      */
-    private byte[] getContent(byte[] data) {
-        int headerLength = (Protocol.HEADER_LEN + (0xFF & data[Protocol.TOPIC_LEN]));
-        byte[] bytes = new byte[data.length - headerLength];
-        System.arraycopy(data, headerLength, bytes, 0, bytes.length);
-        return bytes;
+    private String decode(int offset, int length) {
+        byte[] scratch = SCRATCH.get();
+        packet.get(offset, scratch, 0, length);
+        return new String(scratch, 0, length);
     }
 
     /**
-     * Sends an acknowledgement to the sender of the current packet. Regardless of
-     * the <b><code>ackType</code></b>, an acknoweledgement confirms that the packet
-     * was received.
+     * Sends an acknowledgement to the sender of the current packet from the
+     * channel it was received on. Regardless of the <b><code>ackType</code></b>,
+     * an acknoweledgement confirms that the packet was received.
      * 
      * @param ackType <br>
      *                </br>
@@ -337,47 +540,42 @@ class PacketHandler implements Runnable {
      *                <b><code>NEG_ACK</code></b> for a NO answer.
      */
     private void sendAcknowledgement(byte ackType) {
-        byte[] header = new byte[Protocol.HEADER_LEN + (0xFF & packet.getData()[Protocol.TOPIC_LEN])];
-        System.arraycopy(packet.getData(), 0, header, 0, header.length);
-        header[Protocol.PACKET_TYPE] = Protocol.BROKER;
-        header[Protocol.DATA_TYPE] = ackType;
-        try {
-            DatagramPacket p = new DatagramPacket(header, header.length, packet.getAddress(), packet.getPort());
-            DatagramSocket socket = new DatagramSocket();
-            socket.send(p);
-            socket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        System.out.println(Protocol.ThreadName() + "Sent acknowledgement!");
+        sendAcknowledgement(ackType, new byte[0]);
     }
 
     /**
-     * Returns a byte array of the contents of the
-     * <b><code>DatagramPacket</code></b> without excess bytes.
+     * Sends an acknowledgement carrying a payload after the echoed header to the
+     * sender of the current packet. A header cut short is echoed only as far as
+     * it was received.
      * 
-     * @return byte arrays of <b><code>DatagramPacket</code></b> contents, includes
-     *         the protocol header and payload (if any).
+     * @param ackType <b><code>POS_ACK</code></b> or <b><code>NEG_ACK</code></b>
+     * @param payload bytes appended after the header
+     * @see #sendAcknowledgement(byte)
      */
-    private byte[] unpack() {
-        byte[] data = new byte[packet.getLength()];
-        System.arraycopy(packet.getData(), 0, data, 0, data.length);
-        return data;
+    private void sendAcknowledgement(byte ackType, byte[] payload) {
+        int headerLength = Math.min(Protocol.headerLength(packet), packet.limit());
+        byte[] header = new byte[headerLength + payload.length];
+        packet.get(0, header, 0, headerLength);
+        System.arraycopy(payload, 0, header, headerLength, payload.length);
+        header[Protocol.PACKET_TYPE] = (byte) (Protocol.BROKER
+                | (header[Protocol.PACKET_TYPE] & Protocol.EXTENDED));
+        header[Protocol.DATA_TYPE] = ackType;
+        acks.acknowledge(header, sender);
+        Log.trace(() -> Protocol.ThreadName() + "Sent acknowledgement!");
     }
 
     /**
-     * Given the data bytes from the <b><code>DatagramPacket</code></b>, it
-     * retrieves the header topic bytes and returns the string version.
+     * Retrieves the header topic bytes of the packet and returns the string
+     * version. If the header carries a topic id instead, the registered topic is
+     * returned without decoding anything.
      * 
-     * @param data <b><code>DatagramPacket</code></b> contents, includes the
-     *             protocol header and payload (if any).
-     * @return the topic as a <b><code>String</code></b>
-     * @see #unpack()
+     * @return the topic as a <b><code>String</code></b>, or null if the topic id
+     *         is unknown or from an earlier epoch
      */
-    private String getTopic(byte[] data) {
-        byte[] topicBytes = new byte[0xFF & data[Protocol.TOPIC_LEN]];
-        System.arraycopy(data, Protocol.TOPIC_LEN + 1, topicBytes, 0, topicBytes.length);
-        return new String(topicBytes);
+    private String getTopic() {
+        if (Protocol.hasTopicId(packet))
+            return broker.getTopic(Protocol.topicId(packet), Protocol.topicEpoch(packet));
+        return broker.internTopic(decode(Protocol.HEADER_LEN, 0xFF & packet.get(Protocol.TOPIC_LEN)));
     }
 
     /**
@@ -391,6 +589,8 @@ class PacketHandler implements Runnable {
      *         knows owns the topic
      */
     private boolean checkTopicOwnership(String topic) {
+        if (Metrics.isSystemTopic(topic))
+            return true; // Every broker publishes its own statistics
         boolean owns = broker.hasSubscriberTopic(topic);
         if (owns)
             return true;
@@ -405,35 +605,29 @@ class PacketHandler implements Runnable {
     }
 
     /**
-     * Given the payload portion of the <b><code>DatagramPacket</code></b> contents,
-     * returns the first 4 bytes as the ip address.
+     * Given the position of the payload in the packet, returns its first 4 bytes
+     * as the ip address.
      * 
-     * @param content payload of the <b><code>DatagramPacket</code></b> contents,
-     *                excluding the protocol header
+     * @param offset position of the payload, after the protocol header
      * @return ip address as a <b><code>String</code></b>, in the form
      *         <b>"A.B.C.D"</b>
-     * @see #getContent(byte[])
      */
-    private String retrieveAddress(byte[] content) {
-        byte[] addressBytes = new byte[4];
-        System.arraycopy(content, 0, addressBytes, 0, addressBytes.length);
-        String address = "" + (addressBytes[0] & 0xFF);
+    private String retrieveAddress(int offset) {
+        String address = "" + (packet.get(offset) & 0xFF);
         for (int i = 1; i < 4; i++) {
-            address += "." + (addressBytes[i] & 0xFF);
+            address += "." + (packet.get(offset + i) & 0xFF);
         }
         return address;
     }
 
     /**
-     * Given the payload portion of the <b><code>DatagramPacket</code></b> contents,
-     * using byte[4] and byte[5], returns an integer representing the port.
+     * Given the position of the payload in the packet, using its bytes 4 and 5,
+     * returns an integer representing the port.
      * 
-     * @param content payload of the <b><code>DatagramPacket</code></b> contents,
-     *                excluding the protocol header
+     * @param offset position of the payload, after the protocol header
      * @return <b><code>int</code></b> port
-     * @see #getContent(byte[])
      */
-    private int retrievePort(byte[] content) {
-        return ((content[4] & 0xFF) << 8) + (content[5] & 0xFF);
+    private int retrievePort(int offset) {
+        return ((packet.get(offset + 4) & 0xFF) << 8) + (packet.get(offset + 5) & 0xFF);
     }
 }
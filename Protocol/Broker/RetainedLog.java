@@ -0,0 +1,436 @@
+package Protocol.Broker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import Protocol.Execution;
+import Protocol.Log;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Append-only log of the retained content of the broker, kept in memory-mapped
+ * segment files so that it survives a restart. Every stored piece of content is
+ * appended to the active segment, and a new segment is started once it is full.
+ * <br>
+ * </br>
+ * Record Layout: [RecordLen (4 bytes), CRC32 (4 bytes), DataType, TopicLen,
+ * ...Topic, ...Payload] <br>
+ * </br>
+ * A record length of 0 marks the end of a segment, and a record whose checksum
+ * does not match is treated as the end of the log, as it was cut short by a
+ * crash. <br>
+ * </br>
+ * The log keeps an index of the positions of the most recent records of every
+ * topic. The index is written to disk at checkpoints, along with the position in
+ * the log it covers, so that recovery reads the index and scans only the records
+ * appended after the last checkpoint rather than the whole log. Once there are
+ * too many segments, the log is compacted by copying the records still in the
+ * index into new segments and deleting the old ones.
+ */
+class RetainedLog {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_FSYNC_INTERVAL = 1000;
+    private static final int RECORD_HEADER_LEN = 10;
+    private static final int MIN_SEGMENTS = 4;
+    private static final String INDEX = "index";
+    private static final String SUFFIX = ".log";
+
+    private File directory;
+    private int segmentSize;
+    private int maxRecords;
+    private FsyncPolicy policy;
+    private ScheduledExecutorService syncer;
+
+    // Guarded by the lock of this log.
+    private TreeMap<Integer, MappedByteBuffer> segments;
+    private HashMap<String, long[]> index;
+    private int active;
+    private int position;
+    private int liveSegments;
+    private boolean dirty;
+
+    /**
+     * Action ran on recovered content.
+     */
+    interface Consumer {
+        /**
+         * @param topic    topic/subtopics the content was published to
+         * @param dataType <b><code>STR</b></code> or <b><code>INT</b></code>
+         * @param payload  content bytes
+         */
+        void accept(String topic, byte dataType, byte[] payload);
+    }
+
+    /**
+     * <b><code>RetainedLog Constructor</code></b>. Opens the log in the given
+     * directory, creating it if it doesn't exist, and recovers the index of the
+     * records already in it.
+     *
+     * @param directory   directory holding the segments and the index
+     * @param segmentSize size of each segment file in bytes
+     * @param maxRecords  number of the most recent records kept per topic
+     * @param policy      when appended records are forced to disk
+     * @throws IOException if the log could not be opened or recovered
+     */
+    RetainedLog(File directory, int segmentSize, int maxRecords, FsyncPolicy policy) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxRecords = Math.max(1, maxRecords);
+        this.policy = policy;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        segments = new TreeMap<Integer, MappedByteBuffer>();
+        index = new HashMap<String, long[]>();
+        recover();
+        if (policy == FsyncPolicy.INTERVAL) {
+            syncer = new ScheduledThreadPoolExecutor(1, Execution.threadFactory(false, "\u001B[33mLog Sync "));
+            syncer.scheduleWithFixedDelay(this::sync, DEFAULT_FSYNC_INTERVAL, DEFAULT_FSYNC_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Appends content from a received packet to the log.
+     *
+     * @param topic    topic/subtopics the content was published to
+     * @param dataType <b><code>STR</b></code> or <b><code>INT</b></code>
+     * @param packet   buffer holding the received packet
+     * @param offset   position of the content in the packet
+     * @param length   number of content bytes
+     * @throws IOException if a new segment could not be created
+     */
+    synchronized void append(String topic, byte dataType, ByteBuffer packet, int offset, int length)
+            throws IOException {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_HEADER_LEN + topicBytes.length + length;
+        if (size > segmentSize)
+            throw new IOException("Record of " + size + " bytes does not fit in a segment");
+        if (position + size > segmentSize)
+            roll(size);
+        MappedByteBuffer segment = segments.get(active);
+        int body = position + 8;
+        segment.put(body, dataType);
+        segment.put(body + 1, (byte) topicBytes.length);
+        segment.put(body + 2, topicBytes);
+        segment.put(body + 2 + topicBytes.length, packet, offset, length);
+        segment.putInt(position + 4, checksum(segment, body, size - 8));
+        segment.putInt(position, size); // Written last, so a torn record reads as the end
+        addToIndex(topic, active, position);
+        position += size;
+        dirty = true;
+        if (policy == FsyncPolicy.ALWAYS)
+            segment.force();
+    }
+
+    /**
+     * Runs the action on the records in the index, oldest first per topic.
+     *
+     * @param action action ran with the topic, data type and payload of each
+     *               record
+     */
+    synchronized void forEach(Consumer action) {
+        for (Map.Entry<String, long[]> entry : index.entrySet()) {
+            long[] positions = entry.getValue();
+            int count = (int) positions[0];
+            for (int i = 0; i < count; i++) {
+                long at = positions[1 + i];
+                MappedByteBuffer segment = segments.get((int) (at >>> 32));
+                int offset = (int) at;
+                int topicLength = 0xFF & segment.get(offset + 9);
+                byte[] payload = new byte[segment.getInt(offset) - RECORD_HEADER_LEN - topicLength];
+                segment.get(offset + RECORD_HEADER_LEN + topicLength, payload);
+                action.accept(entry.getKey(), segment.get(offset + 8), payload);
+            }
+        }
+    }
+
+    /**
+     * Forces appended records to disk and writes a checkpoint of the index.
+     */
+    synchronized void sync() {
+        if (!dirty)
+            return;
+        try {
+            segments.get(active).force(); // Older segments were forced when rolled
+            writeIndex();
+            dirty = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies the records in the index into new segments and deletes the old
+     * segments, so that only the most recent records of every topic are kept.
+     *
+     * @throws IOException if the new segments could not be written
+     */
+    synchronized void compact() throws IOException {
+        TreeMap<Integer, MappedByteBuffer> old = segments;
+        HashMap<String, long[]> oldIndex = index;
+        segments = new TreeMap<Integer, MappedByteBuffer>();
+        index = new HashMap<String, long[]>();
+        active = old.lastKey() + 1;
+        position = 0;
+        segments.put(active, map(active));
+        for (Map.Entry<String, long[]> entry : oldIndex.entrySet()) {
+            long[] positions = entry.getValue();
+            for (int i = 0; i < (int) positions[0]; i++) {
+                long at = positions[1 + i];
+                MappedByteBuffer source = old.get((int) (at >>> 32));
+                int offset = (int) at;
+                int size = source.getInt(offset);
+                if (position + size > segmentSize) {
+                    segments.get(active).force();
+                    active++;
+                    position = 0;
+                    segments.put(active, map(active));
+                }
+                segments.get(active).put(position, source, offset, size);
+                addToIndex(entry.getKey(), active, position);
+                position += size;
+            }
+        }
+        segments.get(active).force();
+        writeIndex();
+        for (int id : old.keySet())
+            Files.deleteIfExists(segmentFile(id).toPath());
+        liveSegments = segments.size();
+        dirty = false;
+        Log.debug(() -> " $ Compacted retained log into " + segments.size() + " segment(s).");
+    }
+
+    /**
+     * Writes a final checkpoint and stops forcing records to disk.
+     */
+    void close() {
+        if (syncer != null)
+            syncer.shutdown();
+        sync();
+    }
+
+    /**
+     * Returns the number of segment files of the log.
+     *
+     * @return number of segments
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Starts a new segment, compacting the log first if there are too many
+     * segments. Compaction is left until the log has grown to twice its size after
+     * the last compaction, so that topics with a lot of retained content don't
+     * cause a compaction on every new segment.
+     *
+     * @param size size of the record to be appended
+     */
+    private void roll(int size) throws IOException {
+        if (segments.size() >= Math.max(MIN_SEGMENTS, 2 * liveSegments)) {
+            compact();
+            if (position + size <= segmentSize)
+                return;
+        }
+        segments.get(active).force();
+        active++;
+        position = 0;
+        segments.put(active, map(active));
+        writeIndex();
+        dirty = false;
+    }
+
+    /**
+     * Remembers the position of a record as one of the most recent records of its
+     * topic. Positions are kept oldest first in an array per topic, where the
+     * first slot holds the number of positions.
+     */
+    private void addToIndex(String topic, int segment, int offset) {
+        long[] positions = index.get(topic);
+        if (positions == null) {
+            positions = new long[1 + maxRecords];
+            index.put(topic, positions);
+        }
+        long at = ((long) segment << 32) | (0xFFFFFFFFL & offset);
+        int count = (int) positions[0];
+        if (count < maxRecords) {
+            positions[1 + count] = at;
+            positions[0] = count + 1;
+        } else {
+            System.arraycopy(positions, 2, positions, 1, maxRecords - 1);
+            positions[maxRecords] = at;
+        }
+    }
+
+    /**
+     * Opens the segments in the directory, reads the index checkpoint and scans
+     * the records appended after it. Segments without records in the index are
+     * left to the next compaction. Positions in the index which don't hold an
+     * intact record of their topic are skipped, and if the index can't be read
+     * at all, the whole log is scanned instead.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segments.put(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())), null);
+            }
+        }
+        for (int id : new ArrayList<Integer>(segments.keySet()))
+            segments.put(id, map(id));
+        if (segments.isEmpty()) {
+            segments.put(0, map(0));
+            return;
+        }
+        int scanSegment = segments.firstKey();
+        int scanOffset = 0;
+        int skipped = 0;
+        File indexFile = new File(directory, INDEX);
+        if (indexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)))) {
+                int checkpointSegment = in.readInt();
+                int checkpointOffset = in.readInt();
+                int topics = in.readInt();
+                for (int t = 0; t < topics; t++) {
+                    byte[] topic = new byte[in.readUnsignedShort()];
+                    in.readFully(topic);
+                    int count = in.readUnsignedShort();
+                    for (int i = 0; i < count; i++) {
+                        long at = in.readLong();
+                        MappedByteBuffer segment = segments.get((int) (at >>> 32));
+                        if (segment != null && isRecord(segment, (int) at, topic))
+                            addToIndex(new String(topic, StandardCharsets.UTF_8), (int) (at >>> 32), (int) at);
+                        else
+                            skipped++;
+                    }
+                }
+                if (segments.containsKey(checkpointSegment) && checkpointOffset >= 0
+                        && checkpointOffset <= segmentSize) {
+                    scanSegment = checkpointSegment;
+                    scanOffset = checkpointOffset;
+                } else {
+                    index.clear(); // Scanning the whole log finds every record again
+                }
+            } catch (IOException e) {
+                Log.warn(" [!] Unreadable retained log index, scanning the whole log: " + e);
+                index.clear();
+            }
+        }
+        int scanned = 0;
+        for (int id : segments.tailMap(scanSegment).keySet()) {
+            MappedByteBuffer segment = segments.get(id);
+            int offset = id == scanSegment ? scanOffset : 0;
+            while (isRecord(segment, offset, null)) {
+                int size = segment.getInt(offset);
+                int topicLength = 0xFF & segment.get(offset + 9);
+                byte[] topic = new byte[topicLength];
+                segment.get(offset + RECORD_HEADER_LEN, topic);
+                addToIndex(new String(topic, StandardCharsets.UTF_8), id, offset);
+                offset += size;
+                scanned++;
+            }
+            active = id;
+            position = offset;
+        }
+        liveSegments = segments.size();
+        dirty = scanned > 0 || skipped > 0;
+        Log.info(" $ Recovered retained log: " + index.size() + " topic(s), " + segments.size()
+                + " segment(s), " + scanned + " record(s) after the last checkpoint.");
+        if (skipped > 0)
+            Log.warn(" [!] Skipped " + skipped + " damaged record(s) of the retained log index.");
+    }
+
+    /**
+     * Checks whether a whole record with a matching checksum starts at the offset,
+     * so that positions read from the index or the log are never trusted blindly.
+     *
+     * @param segment segment the record is in
+     * @param offset  position of the record in the segment
+     * @param topic   topic the record must have, or null to accept any topic
+     * @return true if the record is intact, else false
+     */
+    private boolean isRecord(MappedByteBuffer segment, int offset, byte[] topic) {
+        if (offset < 0 || offset + RECORD_HEADER_LEN > segmentSize)
+            return false;
+        int size = segment.getInt(offset);
+        int topicLength = 0xFF & segment.get(offset + 9);
+        if (size < RECORD_HEADER_LEN + topicLength || size > segmentSize - offset
+                || segment.getInt(offset + 4) != checksum(segment, offset + 8, size - 8))
+            return false;
+        if (topic == null)
+            return true;
+        return topic.length == topicLength
+                && segment.slice(offset + RECORD_HEADER_LEN, topicLength).equals(ByteBuffer.wrap(topic));
+    }
+
+    /**
+     * Writes the index along with the position in the log it covers to a
+     * temporary file, and moves it over the previous checkpoint.
+     */
+    private void writeIndex() throws IOException {
+        File temporary = new File(directory, INDEX + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(active);
+            out.writeInt(position);
+            out.writeInt(index.size());
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                byte[] topic = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                long[] positions = entry.getValue();
+                out.writeShort(topic.length);
+                out.write(topic);
+                out.writeShort((int) positions[0]);
+                for (int i = 0; i < (int) positions[0]; i++)
+                    out.writeLong(positions[1 + i]);
+            }
+            out.flush();
+            if (policy != FsyncPolicy.NEVER)
+                file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(directory, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private MappedByteBuffer map(int id) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("%08d", id) + SUFFIX);
+    }
+
+    private static int checksum(ByteBuffer segment, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(segment.slice(offset, length));
+        return (int) crc.getValue();
+    }
+}
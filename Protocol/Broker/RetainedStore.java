@@ -0,0 +1,182 @@
+package Protocol.Broker;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Protocol.Cache;
+import Protocol.Protocol;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Off-heap store of the retained content of the broker. Every topic has an
+ * arena of its own in a direct buffer, holding its most recent content in the
+ * form it is sent in, so that replaying it to a new subscriber only copies the
+ * bytes into the packet instead of encoding <b><code>String</b></code> or
+ * <b><code>Integer</b></code> objects again. As the content is outside of the
+ * heap, the retained set can grow without adding to the work of the garbage
+ * collector. <br>
+ * </br>
+ * Record Layout: [DataType, PayloadLen (2 bytes), ...Payload] <br>
+ * </br>
+ * Topics are kept in a <b><code>Cache</b></code> holding the arena of each
+ * topic, so that paths are matched the same way as with the heap cache.
+ */
+class RetainedStore {
+    private static final int RECORD_HEADER_LEN = 3;
+    private static final int INITIAL_ARENA = 256;
+
+    private ConcurrentHashMap<String, Arena> arenas;
+    private Cache<Arena> index;
+    private int maxRecords;
+    private AtomicLong reserved;
+
+    /**
+     * Content of a single topic. Records are appended at the end of the buffer
+     * and dropped from its start, the live records are moved to the front when
+     * the end is reached and the buffer is doubled when they don't fit.
+     */
+    private class Arena {
+        private ByteBuffer buffer;
+        private int start;
+        private int end;
+        private int records;
+
+        Arena() {
+            buffer = ByteBuffer.allocateDirect(INITIAL_ARENA);
+            reserved.addAndGet(INITIAL_ARENA);
+        }
+
+        synchronized void add(byte dataType, ByteBuffer source, int offset, int length) {
+            int size = RECORD_HEADER_LEN + length;
+            if (end + size > buffer.capacity())
+                makeRoom(size);
+            buffer.put(end, dataType);
+            buffer.putShort(end + 1, (short) length);
+            buffer.put(end + RECORD_HEADER_LEN, source, offset, length);
+            end += size;
+            records++;
+            while (records > maxRecords)
+                drop();
+        }
+
+        private void drop() {
+            start += RECORD_HEADER_LEN + (0xFFFF & buffer.getShort(start + 1));
+            records--;
+            if (start == end)
+                start = end = 0;
+        }
+
+        private void makeRoom(int size) {
+            int live = end - start;
+            int capacity = buffer.capacity();
+            while (live + size > capacity)
+                capacity *= 2;
+            ByteBuffer target = buffer; // Enough room once the live records are at the front
+            if (capacity != buffer.capacity()) {
+                target = ByteBuffer.allocateDirect(capacity);
+                reserved.addAndGet(capacity - buffer.capacity());
+            }
+            target.put(0, buffer, start, live);
+            buffer = target;
+            start = 0;
+            end = live;
+        }
+
+        synchronized void forEach(String topic, Consumer action) {
+            int position = start;
+            while (position < end) {
+                byte dataType = buffer.get(position);
+                byte[] payload = new byte[0xFFFF & buffer.getShort(position + 1)];
+                buffer.get(position + RECORD_HEADER_LEN, payload);
+                action.accept(topic, dataType, payload);
+                position += RECORD_HEADER_LEN + payload.length;
+            }
+        }
+    }
+
+    /**
+     * Action ran on retained content.
+     */
+    interface Consumer {
+        /**
+         * @param topic    topic/subtopics the content was published to
+         * @param dataType <b><code>STR</b></code> or <b><code>INT</b></code>
+         * @param payload  content bytes as they are sent to subscribers
+         */
+        void accept(String topic, byte dataType, byte[] payload);
+    }
+
+    /**
+     * <b><code>RetainedStore Constructor</code></b>.
+     *
+     * @param maxRecords number of the most recent records kept per topic
+     */
+    RetainedStore(int maxRecords) {
+        arenas = new ConcurrentHashMap<String, Arena>();
+        index = new Cache<Arena>();
+        index.setMaxCacheLength(1);
+        this.maxRecords = Math.max(1, maxRecords);
+        reserved = new AtomicLong();
+    }
+
+    /**
+     * Copies published content from a received packet into the arena of the
+     * topic, dropping the oldest record of the topic if it holds too many.
+     * Integers are kept in their minimal form, the same as the broker sends them
+     * in.
+     *
+     * @param topic    topic/subtopics the content was published to
+     * @param dataType <b><code>STR</b></code> or <b><code>INT</b></code>
+     * @param packet   buffer holding the received packet
+     * @param offset   position of the content in the packet
+     * @param length   number of content bytes
+     */
+    void add(String topic, byte dataType, ByteBuffer packet, int offset, int length) {
+        if (dataType == Protocol.INT) {
+            if (length > 4) {
+                offset += length - 4;
+                length = 4;
+            }
+            while (length > 0 && packet.get(offset) == 0) {
+                offset++;
+                length--;
+            }
+        }
+        Arena arena = arenas.get(topic);
+        if (arena == null) {
+            arena = arenas.computeIfAbsent(topic, key -> {
+                Arena created = new Arena();
+                index.addContent(key, created);
+                return created;
+            });
+        }
+        arena.add(dataType, packet, offset, length);
+    }
+
+    /**
+     * Runs the action on every record under the given path, oldest first per
+     * topic, where the path is matched the same as in
+     * <b><code>Cache.forEach</code></b>.
+     *
+     * @param path   topic/subtopic path, optionally ending with /*
+     * @param action action ran with the topic, data type and payload of each
+     *               record
+     * @see Cache#forEach(String, java.util.function.BiConsumer)
+     */
+    void forEach(String path, Consumer action) {
+        index.forEach(path, (topic, arena) -> arena.forEach(topic, action));
+    }
+
+    /**
+     * Returns the number of bytes reserved off heap by the arenas.
+     *
+     * @return reserved bytes
+     */
+    long getReservedBytes() {
+        return reserved.get();
+    }
+}
@@ -0,0 +1,153 @@
+package Protocol.Broker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import Protocol.TopicPath;
+import Protocol.TopicPath.Segment;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+class SubscriptionIndex {
+    private static final Segment ONE = new Segment("*");
+    private static final Segment ALL = new Segment("**");
+    private static final ThreadLocal<Segment> PROBE = ThreadLocal.withInitial(Segment::new);
+
+    private Node root;
+    private ReentrantReadWriteLock lock;
+
+    /**
+     * A single topic segment of the index. Subscribers are stored on the node at
+     * which their subscribed topic ends.
+     */
+    private static class Node {
+        HashMap<Segment, Node> children = new HashMap<Segment, Node>();
+        LinkedHashSet<SubscriberData> subscribers = new LinkedHashSet<SubscriberData>();
+        boolean wildcard; // True if the node was reached through * or **
+    }
+
+    /**
+     * <b><code>SubscriptionIndex Constructor</code></b>. Creates an empty index of
+     * subscribed topics, where every node is a topic segment and the * and **
+     * operators are stored as nodes of their own.
+     */
+    SubscriptionIndex() {
+        root = new Node();
+        lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Adds a subscribed topic of the subscriber to the index.
+     *
+     * @param topic      topic/subtopics that may include the * and ** operators
+     * @param subscriber subscriber who subscribed to the topic
+     */
+    void add(String topic, SubscriberData subscriber) {
+        lock.writeLock().lock();
+        try {
+            Node node = root;
+            int start = TopicPath.segmentStart(topic, 0);
+            while (start < topic.length()) {
+                int end = TopicPath.segmentEnd(topic, start);
+                Node child = node.children.get(PROBE.get().set(topic, start, end));
+                if (child == null) {
+                    child = new Node();
+                    child.wildcard = TopicPath.isWildcard(topic, start, end);
+                    node.children.put(new Segment(topic.substring(start, end)), child);
+                }
+                node = child;
+                start = TopicPath.segmentStart(topic, end);
+            }
+            node.subscribers.add(subscriber);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a subscribed topic of the subscriber from the index, along with any
+     * nodes that are no longer needed.
+     *
+     * @param topic      topic/subtopics that may include the * and ** operators
+     * @param subscriber subscriber who unsubscribed from the topic
+     */
+    void remove(String topic, SubscriberData subscriber) {
+        lock.writeLock().lock();
+        try {
+            remove(root, topic, TopicPath.segmentStart(topic, 0), subscriber);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Recursively removes the subscriber from the node at the end of the topic,
+     * walking the topic from the given position.
+     *
+     * @return true if the node is empty and can be removed from its parent
+     */
+    private boolean remove(Node node, String topic, int start, SubscriberData subscriber) {
+        if (start == topic.length()) {
+            node.subscribers.remove(subscriber);
+        } else {
+            int end = TopicPath.segmentEnd(topic, start);
+            Segment segment = new Segment(topic.substring(start, end));
+            Node child = node.children.get(segment);
+            if (child != null && remove(child, topic, TopicPath.segmentStart(topic, end), subscriber))
+                node.children.remove(segment);
+        }
+        return node.subscribers.isEmpty() && node.children.isEmpty();
+    }
+
+    /**
+     * Returns the subscribers where at least one of their subscribed topics
+     * matches the given topic, each subscriber appearing once. Matching follows
+     * the same rules as <b><code>Broker.matchesTopic</code></b>: * and ** match any
+     * single subtopic, a topic ending in * or ** also matches all deeper
+     * subtopics, and TopicName/** also matches TopicName itself.
+     *
+     * @param topic topic/subtopics to which content is being published
+     * @return ArrayList of subscribers whose subscribed topics match
+     */
+    ArrayList<SubscriberData> match(String topic) {
+        LinkedHashSet<SubscriberData> result = new LinkedHashSet<SubscriberData>();
+        lock.readLock().lock();
+        try {
+            match(root, topic, TopicPath.segmentStart(topic, 0), result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<SubscriberData>(result);
+    }
+
+    /**
+     * Recursively collects the subscribers of every node matching the topic,
+     * walking the topic from the given position.
+     */
+    private void match(Node node, String topic, int start, LinkedHashSet<SubscriberData> result) {
+        if (start == topic.length()) {
+            result.addAll(node.subscribers);
+            Node all = node.children.get(ALL);
+            if (all != null)
+                result.addAll(all.subscribers);
+            return;
+        }
+        if (node.wildcard)
+            result.addAll(node.subscribers);
+        int end = TopicPath.segmentEnd(topic, start);
+        int next = TopicPath.segmentStart(topic, end);
+        Node child = node.children.get(PROBE.get().set(topic, start, end));
+        if (child != null)
+            match(child, topic, next, result);
+        child = node.children.get(ONE);
+        if (child != null)
+            match(child, topic, next, result);
+        child = node.children.get(ALL);
+        if (child != null)
+            match(child, topic, next, result);
+    }
+}
@@ -1,79 +1,108 @@
 package Protocol;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import Protocol.TopicPath.Segment;
 
 /**
  * @author Dominik Guzowski, 19334866
  */
 
+/**
+ * Topic tree holding the most recent content of every topic. Safe to use from
+ * many threads at once: subtopics are kept in concurrent maps so that lookups
+ * never lock, while the content of each topic is guarded by a lock on its own
+ * node, so that writers to different topics never contend. The content of each
+ * topic is kept in a <b><code>RingBuffer</code></b>, so adding new content and
+ * evicting the oldest content are O(1). Topic paths are walked in place with
+ * <b><code>TopicPath</code></b>, so looking up an existing topic creates no
+ * garbage.
+ */
 public class Cache<T> {
-    private int maxCacheLength = 16;
-    private ArrayList<T> content;
+    private static final ThreadLocal<Segment> PROBE = ThreadLocal.withInitial(Segment::new);
+
+    private volatile int maxCacheLength = 16;
+    private RingBuffer<T> content;
     private String topicName;
-    private HashMap<String, Cache<T>> subTopics;
+    private ConcurrentHashMap<Segment, Cache<T>> subTopics;
+    private Cache<T> root;
     public Cache() {
         topicName = "*";
         content = null;
-        subTopics = new HashMap<String, Cache<T>>();
+        subTopics = new ConcurrentHashMap<Segment, Cache<T>>();
+        root = this;
     }
 
     public boolean hasTopic(String topic) {
-        return subTopics.keySet().contains(topic);
+        return subTopic(topic, 0, topic.length()) != null;
     }
 
-    private Cache(String name) {
+    private Cache(String name, Cache<T> root) {
         topicName = name;
-        content = new ArrayList<T>();
-        subTopics = new HashMap<String, Cache<T>>();
+        content = new RingBuffer<T>();
+        subTopics = new ConcurrentHashMap<Segment, Cache<T>>();
+        this.root = root;
+    }
+
+    /**
+     * Looks up the direct subtopic named by the given part of a path without
+     * creating a substring.
+     */
+    private Cache<T> subTopic(CharSequence path, int start, int end) {
+        return subTopics.get(PROBE.get().set(path, start, end));
     }
 
     public void addContent(String topicPath, T newContent) {
         if(topicPath == null) return;
-        addContent(topicPath.split("/"), newContent);
+        Cache<T> cache = this;
+        int start = TopicPath.segmentStart(topicPath, 0);
+        if(start == topicPath.length()) return;
+        while(start < topicPath.length()) {
+            int end = TopicPath.segmentEnd(topicPath, start);
+            if(end - start == 1 && topicPath.charAt(start) == '*') return;
+            Cache<T> subTopic = cache.subTopic(topicPath, start, end);
+            if(subTopic == null) {
+                String name = topicPath.substring(start, end);
+                subTopic = cache.subTopics.computeIfAbsent(new Segment(name), key -> new Cache<T>(name, root));
+            }
+            cache = subTopic;
+            start = TopicPath.segmentStart(topicPath, end);
+        }
+        cache.addContent(newContent);
     }
 
     public void addContent(String[] topicPath, T newContent) {
         if(topicPath == null) return;
         if(topicPath.length == 0) return;
-        addContent(new ArrayList<String>(Arrays.asList(topicPath)), newContent, this);
-    }
-
-    private boolean addContent(ArrayList<String> topicPath, T newContent, Cache<T> cache) {
-        if(topicPath.size() > 0) {
-            if(topicPath.get(0).equals("*")) return false;
-            else {
-                if(!cache.subTopics.keySet().contains(topicPath.get(0))) {
-                    cache.subTopics.put(topicPath.get(0), new Cache<T>(topicPath.get(0)));
-                }
-                String topic = topicPath.remove(0);
-                return cache.subTopics.get(topic).addContent(topicPath, newContent, cache.subTopics.get(topic));
-            }
-        } else {
-            if(newContent != null) content.add(newContent);
+        addContent(String.join("/", topicPath), newContent);
+    }
 
-            if(content.size() > maxCacheLength) content.remove(0);
-            return true;
+    private void addContent(T newContent) {
+        if(newContent != null) {
+            synchronized(this) {
+                content.add(newContent, root.maxCacheLength);
+            }
         }
     }
 
     public void shallowRemove(String topic, T content) {
         try {
-            subTopics.get(topic).content.remove(content);
+            Cache<T> subTopic = subTopic(topic, 0, topic.length());
+            synchronized(subTopic) {
+                subTopic.content.remove(content);
+            }
         } catch(Exception e) {
             e.printStackTrace();
         }
     }
     public HashMap<String, ArrayList<T>> get(String path) {
         if(path == null) return null;
-        path = path.replaceAll("/+", "/");
-        Pattern p = Pattern.compile("\\*");
-        Matcher m = p.matcher(path);
+        path = collapseSeparators(path);
         int count = 0;
-        while(m.find()) {
-            count++;
+        for(int i = 0; i < path.length(); i++) {
+            if(path.charAt(i) == '*') count++;
         }
         if(count > 1) {
             return new HashMap<String, ArrayList<T>>();
@@ -83,24 +112,101 @@ public class Cache<T> {
                 return getAll(path);
             } else return new HashMap<String, ArrayList<T>>();
         }
-        ArrayList<T> list = get(path.split("/"));
+        Cache<T> cache = find(path, path.length());
         HashMap<String, ArrayList<T>> res = new HashMap<String, ArrayList<T>>();
-        res.put(path, list);
+        res.put(path, cache == null ? null : cache.snapshot());
         return res;
     }
 
     public ArrayList<T> get(String[] path) {
-        return get(new ArrayList<String>(Arrays.asList(path)), this);
+        Cache<T> cache = find(String.join("/", path), Integer.MAX_VALUE);
+        return cache == null ? null : cache.snapshot();
+    }
+
+    /**
+     * Walks the path up to the given position and returns the topic it ends at.
+     * @return topic at the end of the path or null if it doesn't exist
+     */
+    private Cache<T> find(String path, int limit) {
+        Cache<T> cache = this;
+        limit = Math.min(limit, path.length());
+        int start = TopicPath.segmentStart(path, 0);
+        while(cache != null && start < limit) {
+            int end = TopicPath.segmentEnd(path, start);
+            cache = cache.subTopic(path, start, Math.min(end, limit));
+            start = TopicPath.segmentStart(path, end);
+        }
+        return cache;
+    }
+
+    /**
+     * Replaces repeated separators with a single one, returning the same string if
+     * there are none.
+     */
+    private static String collapseSeparators(String path) {
+        if(path.indexOf("//") < 0) return path;
+        StringBuilder collapsed = new StringBuilder(path.length());
+        for(int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if(c != '/' || collapsed.length() == 0 || collapsed.charAt(collapsed.length() - 1) != '/') collapsed.append(c);
+        }
+        return collapsed.toString();
     }
 
-    private ArrayList<T> get(ArrayList<String> path, Cache<T> cache) {
-        if(cache == null) return null;
-        if(path.size() == 0) return new ArrayList<T>(cache.content);
-        else {
-            String topic = path.remove(0);
-            return get(path, cache.subTopics.get(topic));
+    /**
+     * Returns a copy of the content of this topic, taken while holding the lock of
+     * this topic so that concurrent writers cannot change it half way through.
+     * @return copy of the content
+     */
+    private ArrayList<T> snapshot() {
+        if(content == null) return new ArrayList<T>();
+        synchronized(this) {
+            return content.toArrayList();
         }
     }
+
+    /**
+     * Runs the action on every piece of content under the given path, where the
+     * path is either a single topic/subtopic or ends with /* to include all
+     * subtopics, the same as in <b><code>get(String)</code></b>. The content of
+     * each topic is iterated in place while holding the lock of the topic, so no
+     * copies are made. The action must not modify this cache.
+     * @param path topic/subtopic path, optionally ending with /*
+     * @param action action ran with the topic path and each piece of its content
+     */
+    public void forEach(String path, BiConsumer<String, ? super T> action) {
+        if(path == null) return;
+        path = collapseSeparators(path);
+        int stars = 0;
+        for(int i = 0; i < path.length(); i++) {
+            if(path.charAt(i) == '*') stars++;
+        }
+        if(stars > 1) return;
+        if(stars == 1) {
+            if(path.equals("*")) {
+                for(Cache<T> subTopic : subTopics.values()) subTopic.forEachBelow(subTopic.topicName, action);
+                return;
+            }
+            if(!path.endsWith("/*")) return;
+            Cache<T> cache = find(path, path.length() - 2);
+            if(cache == null) return;
+            String prefix = path.substring(0, path.length() - 1);
+            for(Cache<T> subTopic : cache.subTopics.values()) subTopic.forEachBelow(prefix + subTopic.topicName, action);
+            return;
+        }
+        Cache<T> cache = find(path, path.length());
+        if(cache != null) cache.forEachContent(path, action);
+    }
+
+    private void forEachBelow(String path, BiConsumer<String, ? super T> action) {
+        forEachContent(path, action);
+        for(Cache<T> subTopic : subTopics.values()) subTopic.forEachBelow(path + "/" + subTopic.topicName, action);
+    }
+
+    private synchronized void forEachContent(String path, BiConsumer<String, ? super T> action) {
+        if(content != null) content.forEach(item -> action.accept(path, item));
+    }
+
     @Override
     public String toString() {
         return "Topic: " + topicName + ", Content: " + (content == null? 0 : content.size()) + ", Direct SubTopics: " + (subTopics == null ? 0 : subTopics.size() );
@@ -112,55 +218,34 @@ public class Cache<T> {
     }
 
     public ArrayList<String> getTopics() {
-        return new ArrayList<String>(subTopics.keySet());
+        ArrayList<String> topics = new ArrayList<String>();
+        for(Cache<T> subTopic : subTopics.values()) topics.add(subTopic.topicName);
+        return topics;
     }
     public HashMap<String, ArrayList<T>> getAll(String path) {
         HashMap<String, ArrayList<T>> result = new HashMap<String, ArrayList<T>>();
-        getAll(new ArrayList<String>(Arrays.asList(path.split("/"))), new ArrayList<String>(), null, result);
-        ArrayList<String> keys = new ArrayList<String>();
-        for(String key : result.keySet()) {
-            if(result.get(key).size() == 0) {
-                keys.add(key);
-            }
-        }
-        for(String key : keys) {
-            result.remove(key);
+        int end = path.indexOf('*');
+        if(end < 0) end = path.length();
+        Cache<T> cache = find(path, end);
+        if(cache == null) return result;
+        while(end > 0 && path.charAt(end - 1) == '/') end--;
+        StringBuilder currentPath = new StringBuilder(path.substring(0, end));
+        for(Cache<T> subTopic : cache.subTopics.values()) {
+            getAll(currentPath, subTopic, result);
         }
         return result;
     }
 
-    private void getAll(ArrayList<String> path, ArrayList<String> currentPath, Cache<T> cache, HashMap<String, ArrayList<T>> result) {
-        if(cache == null) {
-            Cache<T> current = this;
-            for(String p : path) {
-                if(!p.equals("*")) {
-                    current = current.subTopics.get(p);
-                    currentPath.add(p);
-                }
-                else break;
-            }
-            //if(current != null) result.put(stringifyPath(currentPath), current.content);
-            cache = current;
-        }
-        else 
-        {
-            currentPath.add(cache.topicName);
-            result.put(stringifyPath(currentPath), cache.content);
-        }
-        if(cache != null)
-        for(String key : cache.subTopics.keySet()) {
-            getAll(path, currentPath, cache.subTopics.get(key), result);
-        }
-        if(currentPath.size() - 1 >= 0) currentPath.remove(currentPath.size() - 1);
-    }
-
-    private String stringifyPath(ArrayList<String> pathList) {
-        String path = "";
-        for(String p : pathList) {
-            path += p + "/";
+    private void getAll(StringBuilder currentPath, Cache<T> cache, HashMap<String, ArrayList<T>> result) {
+        int length = currentPath.length();
+        if(length > 0) currentPath.append('/');
+        currentPath.append(cache.topicName);
+        ArrayList<T> content = cache.snapshot();
+        if(content.size() > 0) result.put(currentPath.toString(), content);
+        for(Cache<T> subTopic : cache.subTopics.values()) {
+            getAll(currentPath, subTopic, result);
         }
-        path = path.substring(0, path.length() - 1);
-        return path;
+        currentPath.setLength(length);
     }
 
     public boolean setMaxCacheLength(int len) {
@@ -171,6 +256,6 @@ public class Cache<T> {
     }
 
     public int getMaxLength() {
-        return maxCacheLength;
+        return root.maxCacheLength;
     }
-}
\ No newline at end of file
+}
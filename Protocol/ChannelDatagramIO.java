@@ -0,0 +1,234 @@
+package Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * <b><code>DatagramIO</code></b> on a plain non-blocking
+ * <b><code>DatagramChannel</code></b>, used where no batched system calls are
+ * available. Every datagram still takes a call of its own, but the receiving
+ * thread only waits on the selector once per batch and sends are deferred to
+ * bursts, so that the thread wakes up once for many datagrams.
+ */
+class ChannelDatagramIO implements DatagramIO {
+    private DatagramChannel channel;
+    private volatile Selector selector; // Opened the first time a thread waits on the channel
+    private ConcurrentLinkedQueue<Pending> pending;
+
+    private AtomicLong received;
+    private AtomicLong sent;
+    private AtomicLong receiveCalls;
+    private AtomicLong sendCalls;
+    private AtomicLong receiveBatches;
+    private AtomicLong sendBatches;
+    private AtomicLong sendFailures;
+
+    /**
+     * A datagram waiting to be sent.
+     */
+    private static class Pending {
+        ByteBuffer datagram;
+        SocketAddress destination;
+
+        Pending(ByteBuffer datagram, SocketAddress destination) {
+            this.datagram = datagram;
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * <b><code>ChannelDatagramIO Constructor</code></b>. Switches the channel to
+     * non-blocking mode. The channel is registered with a selector of its own
+     * once a thread first waits in <b><code>receive</code></b>, so that sockets
+     * which are only polled through a <b><code>Transport.Poller</code></b> don't
+     * hold a selector each.
+     *
+     * @param channel bound channel
+     * @throws IOException if the channel could not be switched to non-blocking
+     */
+    ChannelDatagramIO(DatagramChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        pending = new ConcurrentLinkedQueue<Pending>();
+        received = new AtomicLong();
+        sent = new AtomicLong();
+        receiveCalls = new AtomicLong();
+        sendCalls = new AtomicLong();
+        receiveBatches = new AtomicLong();
+        sendBatches = new AtomicLong();
+        sendFailures = new AtomicLong();
+    }
+
+    @Override
+    public int receive(ByteBuffer[] buffers, InetSocketAddress[] senders, long timeoutMs) throws IOException {
+        int count = drain(buffers, senders);
+        if (count == 0) {
+            receiveCalls.incrementAndGet();
+            Selector selector = selector();
+            selector.select(timeoutMs);
+            selector.selectedKeys().clear();
+            if (!channel.isOpen())
+                throw new ClosedChannelException();
+            count = drain(buffers, senders);
+        }
+        if (count > 0)
+            receiveBatches.incrementAndGet();
+        return count;
+    }
+
+    /**
+     * Returns the selector of the channel, opening it the first time it is needed.
+     */
+    private synchronized Selector selector() throws IOException {
+        if (selector == null) {
+            Selector opened = Selector.open();
+            channel.register(opened, SelectionKey.OP_READ);
+            selector = opened;
+        }
+        return selector;
+    }
+
+    /**
+     * Receives datagrams until none are left or all buffers are filled.
+     */
+    private int drain(ByteBuffer[] buffers, InetSocketAddress[] senders) throws IOException {
+        int count = 0;
+        while (count < buffers.length) {
+            receiveCalls.incrementAndGet();
+            SocketAddress from = channel.receive(buffers[count]);
+            if (from == null)
+                break;
+            buffers[count].flip();
+            senders[count] = (InetSocketAddress) from;
+            count++;
+        }
+        received.addAndGet(count);
+        return count;
+    }
+
+    @Override
+    public int receiveNow(ByteBuffer[] buffers, InetSocketAddress[] senders) throws IOException {
+        int count = drain(buffers, senders);
+        if (count > 0)
+            receiveBatches.incrementAndGet();
+        return count;
+    }
+
+    @Override
+    public void queue(ByteBuffer datagram, SocketAddress destination) {
+        pending.add(new Pending(datagram, destination));
+    }
+
+    /**
+     * Sends queued datagrams until none are left or the socket buffer is full. A
+     * datagram which cannot be sent at all is dropped and counted, so that it
+     * doesn't hold up the datagrams queued behind it. Only a closed channel ends
+     * the flush with an exception.
+     */
+    @Override
+    public synchronized int flush() throws IOException {
+        int count = 0;
+        Pending next;
+        while ((next = pending.peek()) != null) {
+            sendCalls.incrementAndGet();
+            try {
+                if (channel.send(next.datagram, next.destination) == 0 && next.datagram.hasRemaining())
+                    break; // Socket buffer is full, try again on the next flush
+                count++;
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException | IllegalArgumentException e) {
+                sendFailures.incrementAndGet();
+                SocketAddress destination = next.destination;
+                Log.debug(() -> "Dropped a datagram to " + destination + ": " + e);
+            }
+            pending.poll();
+        }
+        if (count > 0) {
+            sent.addAndGet(count);
+            sendBatches.incrementAndGet();
+        }
+        return count;
+    }
+
+    @Override
+    public void wakeup() {
+        try {
+            selector().wakeup();
+        } catch (IOException e) {
+            // A closed channel has no thread waiting on it
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Selector selector = this.selector;
+        if (selector != null)
+            selector.wakeup();
+        channel.close();
+        if (selector != null)
+            selector.close();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Returns the channel, so that a <b><code>Transport.Poller</code></b> of the
+     * UDP transport can wait on it along with other channels.
+     *
+     * @return channel of this socket
+     */
+    DatagramChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    @Override
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    @Override
+    public long getReceiveCalls() {
+        return receiveCalls.get();
+    }
+
+    @Override
+    public long getSendCalls() {
+        return sendCalls.get();
+    }
+
+    @Override
+    public long getReceiveBatches() {
+        return receiveBatches.get();
+    }
+
+    @Override
+    public long getSendBatches() {
+        return sendBatches.get();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+}
@@ -0,0 +1,144 @@
+package Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Batched datagram I/O of a socket of a <b><code>Transport</code></b>, which
+ * the broker, publishers and subscribers send and receive all of their packets
+ * through. Received datagrams are drained in
+ * batches, as many as are available per wakeup, and datagrams to be sent are
+ * queued and flushed in bursts, so that an implementation with
+ * <b><code>recvmmsg/sendmmsg</code></b> style calls can move a whole batch per
+ * system call. The counters report how well batching works.
+ *
+ * @see Transport
+ * @see ChannelDatagramIO
+ */
+public interface DatagramIO {
+
+    /**
+     * Waits until at least one datagram is available, then receives as many
+     * datagrams as are available without waiting, up to the number of buffers.
+     * Each filled buffer is flipped, holding a datagram from index 0 up to its
+     * limit, and the address it came from is stored at the same index of
+     * <b><code>senders</code></b>.
+     *
+     * @param buffers   cleared buffers to receive into
+     * @param senders   array receiving the address of each datagram
+     * @param timeoutMs longest time to wait in ms, or 0 to wait until a datagram
+     *                  arrives or <b><code>wakeup()</code></b> is called
+     * @return number of datagrams received, which may be 0
+     * @throws IOException if the socket fails or was closed
+     */
+    int receive(ByteBuffer[] buffers, InetSocketAddress[] senders, long timeoutMs) throws IOException;
+
+    /**
+     * Same as <b><code>receive</code></b>, but never waits, returning 0 if no
+     * datagram is available. Used once a <b><code>Transport.Poller</code></b> has
+     * reported the socket as readable.
+     *
+     * @param buffers cleared buffers to receive into
+     * @param senders array receiving the address of each datagram
+     * @return number of datagrams received, which may be 0
+     * @throws IOException if the socket fails or was closed
+     */
+    int receiveNow(ByteBuffer[] buffers, InetSocketAddress[] senders) throws IOException;
+
+    /**
+     * Queues a datagram to be sent by the next <b><code>flush()</code></b>. May be
+     * called from any thread.
+     *
+     * @param datagram    buffer holding the datagram between its position and
+     *                    limit
+     * @param destination address to send the datagram to
+     */
+    void queue(ByteBuffer datagram, SocketAddress destination);
+
+    /**
+     * Sends the queued datagrams in as few calls as the implementation allows.
+     * Datagrams which the socket cannot take right now stay queued for the next
+     * flush. May be called from any thread.
+     *
+     * @return number of datagrams sent
+     * @throws IOException if the socket fails
+     */
+    int flush() throws IOException;
+
+    /**
+     * Makes a thread waiting in <b><code>receive</code></b> return.
+     */
+    void wakeup();
+
+    /**
+     * Closes the socket, making a waiting <b><code>receive</code></b> return.
+     *
+     * @throws IOException if the socket could not be closed
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns the address the socket is bound to.
+     *
+     * @return local address, with the port chosen if an ephemeral port was asked
+     *         for
+     * @throws IOException if the socket was closed
+     */
+    InetSocketAddress getLocalAddress() throws IOException;
+
+    /**
+     * Returns the number of datagrams received.
+     *
+     * @return received datagrams
+     */
+    long getReceivedCount();
+
+    /**
+     * Returns the number of datagrams sent.
+     *
+     * @return sent datagrams
+     */
+    long getSentCount();
+
+    /**
+     * Returns the number of system calls made for receiving, including waiting.
+     *
+     * @return receive system calls
+     */
+    long getReceiveCalls();
+
+    /**
+     * Returns the number of system calls made for sending.
+     *
+     * @return send system calls
+     */
+    long getSendCalls();
+
+    /**
+     * Returns the number of wakeups which received at least one datagram.
+     *
+     * @return receive batches
+     */
+    long getReceiveBatches();
+
+    /**
+     * Returns the number of flushes which sent at least one datagram.
+     *
+     * @return send batches
+     */
+    long getSendBatches();
+
+    /**
+     * Returns the number of queued datagrams which were dropped because sending
+     * them failed, for example because their destination was unreachable.
+     *
+     * @return failed datagrams
+     */
+    long getSendFailures();
+}
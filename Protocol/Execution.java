@@ -0,0 +1,103 @@
+package Protocol;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * This class decides what kind of threads the short-lived, blocking units of the
+ * protocol (senders and packet handlers) are ran on. By default they are ran on
+ * platform threads, but they can be switched to virtual threads on JVMs which
+ * support them (Java 21+), where a thread blocked waiting for an acknowledgement
+ * no longer holds on to an OS thread.
+ */
+public final class Execution {
+    private static volatile boolean virtualThreads = false;
+    private static volatile ThreadFactory virtualFactory = null;
+
+    /**
+     * Switches all senders and packet handlers started after this call to virtual
+     * or platform threads.
+     *
+     * @param enabled true for virtual threads, false for platform threads
+     * @return <b><code>true</code></b> if the requested mode is in effect <br>
+     *         </br>
+     *         <b><code>false</code></b> if virtual threads were requested but are
+     *         not supported by the running JVM
+     */
+    public static boolean setVirtualThreads(boolean enabled) {
+        if (enabled && virtualThreadFactory() == null) {
+            System.out.println(" [!] Virtual threads unavailable, using platform threads.");
+            virtualThreads = false;
+            return false;
+        }
+        virtualThreads = enabled;
+        return true;
+    }
+
+    /**
+     * Returns whether senders and packet handlers are ran on virtual threads.
+     *
+     * @return true if virtual threads are in use, else false
+     */
+    public static boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Starts the given unit of work on a new thread of the currently selected
+     * kind.
+     *
+     * @param task <b><code>Runnable</code></b> to be ran
+     * @return the started thread
+     */
+    public static Thread start(Runnable task) {
+        Thread t = virtualThreads ? virtualThreadFactory().newThread(task) : new Thread(task);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Returns a thread factory for pools of workers. Platform threads created by
+     * the factory are daemon threads named with the given prefix followed by a
+     * counter.
+     *
+     * @param virtual true if the factory should create virtual threads, falls back
+     *                to platform threads if they are not supported
+     * @param name    prefix of the platform thread names
+     * @return <b><code>ThreadFactory</code></b>
+     */
+    public static ThreadFactory threadFactory(boolean virtual, String name) {
+        if (virtual && virtualThreadFactory() != null)
+            return virtualThreadFactory();
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r);
+            t.setName(name + count.incrementAndGet() + ": \u001B[0m");
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Looks up the virtual thread factory reflectively, so that the protocol still
+     * compiles and runs on JVMs older than Java 21.
+     *
+     * @return virtual thread factory or null if not supported
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        if (virtualFactory == null) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                virtualFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory")
+                        .invoke(builder);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return virtualFactory;
+    }
+}
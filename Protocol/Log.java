@@ -0,0 +1,279 @@
+package Protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Logging of the protocol. Messages below the current level are discarded
+ * before they are built, as messages are passed as
+ * <b><code>Supplier</code></b>s which are only called if the level is enabled.
+ * Per-packet messages are logged at <b><code>TRACE</code></b>, which is off by
+ * default. <br>
+ * </br>
+ * By default messages are handed to an asynchronous appender: the logging
+ * thread puts the message into a ring buffer and returns, and a single
+ * appender thread writes the buffered messages to
+ * <b><code>System.out</code></b> in batches, so that handler threads never
+ * wait on the lock of <b><code>System.out</code></b>. If the ring buffer is
+ * full, the message is dropped rather than making the logging thread wait.
+ */
+public final class Log {
+    public static final int RING_CAPACITY = 8192;
+    private static final long IDLE_NANOS = 1_000_000;
+
+    /**
+     * Levels of log messages, from the most to the least detailed.
+     */
+    public enum Level {
+        /**
+         * Every step taken for every packet.
+         */
+        TRACE,
+        /**
+         * Changes to the state of the broker, such as new subscriptions.
+         */
+        DEBUG,
+        /**
+         * Starting and stopping of components.
+         */
+        INFO,
+        /**
+         * Packets which could not be handled or delivered.
+         */
+        WARN,
+        /**
+         * Failures of the component itself.
+         */
+        ERROR,
+        /**
+         * Nothing is logged.
+         */
+        OFF
+    }
+
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean async = true;
+
+    private static final AtomicReferenceArray<String> ring = new AtomicReferenceArray<String>(RING_CAPACITY);
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Thread appender;
+
+    private Log() {
+    }
+
+    /**
+     * Sets the least detailed level of messages which are still logged.
+     *
+     * @param newLevel level, or <b><code>OFF</code></b> to log nothing
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Returns the least detailed level of messages which are still logged.
+     *
+     * @return current level
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Checks if messages of the given level are logged.
+     *
+     * @param messageLevel level of a message
+     * @return true if the message would be logged, else false
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel != Level.OFF && messageLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Switches between the asynchronous appender and printing every message
+     * straight away on the logging thread. Messages already buffered are written
+     * out first.
+     *
+     * @param enabled true for the asynchronous appender, false to print directly
+     */
+    public static void setAsync(boolean enabled) {
+        if (!enabled)
+            flush();
+        async = enabled;
+    }
+
+    /**
+     * Logs the message built by the supplier at <b><code>TRACE</code></b>.
+     *
+     * @param message supplier of the message
+     */
+    public static void trace(Supplier<String> message) {
+        log(Level.TRACE, message);
+    }
+
+    /**
+     * Logs the message built by the supplier at <b><code>DEBUG</code></b>.
+     *
+     * @param message supplier of the message
+     */
+    public static void debug(Supplier<String> message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs the message built by the supplier at <b><code>INFO</code></b>.
+     *
+     * @param message supplier of the message
+     */
+    public static void info(Supplier<String> message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs the message at <b><code>INFO</code></b>.
+     *
+     * @param message message
+     */
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs the message built by the supplier at <b><code>WARN</code></b>.
+     *
+     * @param message supplier of the message
+     */
+    public static void warn(Supplier<String> message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Logs the message at <b><code>WARN</code></b>.
+     *
+     * @param message message
+     */
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Logs the message at <b><code>ERROR</code></b>.
+     *
+     * @param message message
+     */
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Logs the message built by the supplier if its level is enabled. The
+     * supplier is called on the logging thread, so it may refer to the name of
+     * the thread.
+     *
+     * @param messageLevel level of the message
+     * @param message      supplier of the message
+     */
+    public static void log(Level messageLevel, Supplier<String> message) {
+        if (isEnabled(messageLevel))
+            append(message.get());
+    }
+
+    /**
+     * Logs the message if its level is enabled.
+     *
+     * @param messageLevel level of the message
+     * @param message      message
+     */
+    public static void log(Level messageLevel, String message) {
+        if (isEnabled(messageLevel))
+            append(message);
+    }
+
+    /**
+     * Writes out every message buffered by the asynchronous appender.
+     */
+    public static synchronized void flush() {
+        StringBuilder batch = new StringBuilder();
+        drain(batch);
+        if (batch.length() > 0) {
+            System.out.print(batch);
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Returns the number of messages dropped because the ring buffer was full.
+     *
+     * @return dropped messages
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Puts the message into the ring buffer, claiming a slot by moving the head
+     * forward unless the buffer is full. A null message is written as "null", as
+     * <b><code>System.out</code></b> would print it, since an empty slot marks a
+     * message that is still being written.
+     */
+    private static void append(String message) {
+        if (message == null)
+            message = "null";
+        if (!async) {
+            System.out.println(message);
+            return;
+        }
+        if (appender == null)
+            startAppender();
+        long slot;
+        do {
+            slot = head.get();
+            if (slot - tail.get() >= RING_CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(slot, slot + 1));
+        ring.set((int) (slot % RING_CAPACITY), message);
+    }
+
+    /**
+     * Moves the messages written to the ring buffer into the batch, in the order
+     * their slots were claimed. Stops at a slot that was claimed but not written
+     * yet.
+     */
+    private static void drain(StringBuilder batch) {
+        long next = tail.get();
+        while (next < head.get()) {
+            int index = (int) (next % RING_CAPACITY);
+            String message = ring.get(index);
+            if (message == null)
+                break;
+            ring.set(index, null);
+            batch.append(message).append(System.lineSeparator());
+            tail.set(++next);
+        }
+    }
+
+    private static synchronized void startAppender() {
+        if (appender != null)
+            return;
+        appender = new Thread(() -> {
+            while (true) {
+                flush();
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        });
+        appender.setName("\u001B[33m<<Log Appender>>: \u001B[0m");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+}
@@ -0,0 +1,632 @@
+package Protocol;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * <b><code>Transport</code></b> which delivers datagrams between sockets of the
+ * same process, with no system calls, so that a broker and thousands of
+ * publishers and subscribers can be run in one JVM to profile the protocol
+ * itself. <br>
+ * </br>
+ * Time is kept by a virtual clock which only moves when
+ * <b><code>advance</code></b> is called, so timeouts and retransmissions depend
+ * on the clock alone and never on how threads happen to be scheduled. The same
+ * goes for scheduled tasks, such as the linger of publisher batches, the window
+ * of coalesced acknowledgements and the statistics of the broker, which run on
+ * the thread calling <b><code>advance</code></b> once the clock reaches them,
+ * so they never run while the clock stands still. Datagrams
+ * are delivered in the order they are flushed and none are lost, unless a drop
+ * rate is set, in which case datagrams are dropped by a seeded random sequence.
+ * As with UDP, datagrams to an address nobody is bound to and datagrams to a
+ * socket holding <b><code>RECEIVE_QUEUE</code></b> datagrams are dropped.
+ * <br>
+ * </br>
+ * A transport which is no longer used should be closed, which stops the
+ * <b><code>RequestLoop</code></b> thread of the transport.
+ */
+public final class MemoryTransport implements Transport {
+    public static final int RECEIVE_QUEUE = 65536; // Most datagrams waiting in a socket, like its receive buffer
+    private static final int FIRST_EPHEMERAL = 49152;
+    private static final int LAST_PORT = 65535;
+
+    private ConcurrentHashMap<InetSocketAddress, MemoryIO[]> bound; // Modified under the lock of this transport
+    private Set<Object> sleepers; // Sockets and pollers waiting for the clock
+    private AtomicLong clock;
+    private int nextPort; // Guarded by the lock of this transport
+
+    private volatile double dropRate;
+    private Random random; // Guarded by itself
+    private AtomicLong delivered;
+    private AtomicLong dropped;
+    private PriorityQueue<Task> tasks; // Guarded by itself
+    private long nextTask; // Guarded by the lock of the tasks
+    private Object runLock; // Held while running due tasks, so that they run one at a time
+
+    /**
+     * A task waiting for the clock to reach the time it is due at. Tasks due at
+     * the same time run in the order they were scheduled.
+     */
+    private static class Task implements Timeout, Comparable<Task> {
+        long due;
+        long order;
+        Runnable action;
+        volatile boolean cancelled;
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byTime = Long.compare(due, other.due);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * A datagram waiting in a socket.
+     */
+    private static class Datagram {
+        byte[] data;
+        InetSocketAddress from;
+
+        Datagram(byte[] data, InetSocketAddress from) {
+            this.data = data;
+            this.from = from;
+        }
+    }
+
+    /**
+     * A datagram waiting to be flushed.
+     */
+    private static class Pending {
+        ByteBuffer datagram;
+        SocketAddress destination;
+
+        Pending(ByteBuffer datagram, SocketAddress destination) {
+            this.datagram = datagram;
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * <b><code>MemoryTransport Constructor</code></b>. Starts the virtual clock at
+     * 0 with no datagrams dropped.
+     */
+    public MemoryTransport() {
+        bound = new ConcurrentHashMap<InetSocketAddress, MemoryIO[]>();
+        sleepers = ConcurrentHashMap.newKeySet();
+        clock = new AtomicLong();
+        nextPort = FIRST_EPHEMERAL;
+        random = new Random();
+        delivered = new AtomicLong();
+        dropped = new AtomicLong();
+        tasks = new PriorityQueue<Task>();
+        runLock = new Object();
+    }
+
+    /**
+     * Moves the virtual clock forward, waking up every socket and poller whose
+     * timeout has passed, and runs the scheduled tasks which are due.
+     *
+     * @param millis time to move the clock by in ms
+     */
+    public void advance(long millis) {
+        clock.addAndGet(millis * 1000000L);
+        for (Object sleeper : sleepers) {
+            synchronized (sleeper) {
+                sleeper.notifyAll();
+            }
+        }
+        runDueTasks();
+    }
+
+    /**
+     * Stops the <b><code>RequestLoop</code></b> of this transport and drops the
+     * tasks which haven't run yet. Sockets which are still open keep working.
+     *
+     * @see RequestLoop#close(Transport)
+     */
+    public void close() {
+        RequestLoop.close(this);
+        synchronized (tasks) {
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Sets the share of datagrams which are dropped instead of delivered, to
+     * exercise retransmissions. The datagrams dropped depend only on the seed and
+     * on the order datagrams are sent in.
+     *
+     * @param rate share of datagrams dropped, from 0 to 1
+     * @param seed seed of the sequence deciding which datagrams are dropped
+     */
+    public void setDropRate(double rate, long seed) {
+        synchronized (random) {
+            random.setSeed(seed);
+            dropRate = Math.max(0, Math.min(1, rate));
+        }
+    }
+
+    /**
+     * Returns the number of datagrams delivered to a socket.
+     *
+     * @return delivered datagrams
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped, whether by the drop rate, because
+     * nobody was bound to their address or because the socket was full.
+     *
+     * @return dropped datagrams
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public synchronized DatagramIO open(InetSocketAddress local, boolean reusePort) throws IOException {
+        InetAddress address = local == null ? new InetSocketAddress(0).getAddress() : local.getAddress();
+        int port = local == null ? 0 : local.getPort();
+        if (port == 0)
+            port = ephemeralPort(address);
+        InetSocketAddress key = new InetSocketAddress(address, port);
+        MemoryIO[] group = bound.get(key);
+        if (group != null && !(reusePort && group[0].reusePort))
+            throw new BindException("Address already in use: " + key);
+        // Datagrams from a socket bound to the wildcard address come from the loopback address
+        InetSocketAddress sender = address.isAnyLocalAddress()
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : key;
+        MemoryIO io = new MemoryIO(key, sender, reusePort);
+        group = group == null ? new MemoryIO[] { io } : Arrays.copyOf(group, group.length + 1);
+        group[group.length - 1] = io;
+        bound.put(key, group);
+        return io;
+    }
+
+    /**
+     * Returns the next port not bound on the address, in the ephemeral range.
+     */
+    private int ephemeralPort(InetAddress address) throws BindException {
+        for (int tries = FIRST_EPHEMERAL; tries <= LAST_PORT; tries++) {
+            int port = nextPort;
+            nextPort = port == LAST_PORT ? FIRST_EPHEMERAL : port + 1;
+            if (!bound.containsKey(new InetSocketAddress(address, port)))
+                return port;
+        }
+        throw new BindException("No ephemeral ports left on " + address);
+    }
+
+    /**
+     * Removes a closed socket from the sockets bound to its address.
+     */
+    private synchronized void unbind(MemoryIO io) {
+        MemoryIO[] group = bound.get(io.address);
+        if (group == null)
+            return;
+        ArrayList<MemoryIO> rest = new ArrayList<MemoryIO>(Arrays.asList(group));
+        rest.remove(io);
+        if (rest.isEmpty())
+            bound.remove(io.address);
+        else
+            bound.put(io.address, rest.toArray(new MemoryIO[0]));
+    }
+
+    /**
+     * Hands a datagram to the socket bound to its destination, or to the socket
+     * bound to the wildcard address on its port. When several sockets share the
+     * address, each sender always reaches the same one of them.
+     */
+    private void deliver(byte[] data, InetSocketAddress from, InetSocketAddress to) {
+        if (dropRate > 0) {
+            boolean drop;
+            synchronized (random) {
+                drop = random.nextDouble() < dropRate;
+            }
+            if (drop) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        MemoryIO[] group = bound.get(to);
+        if (group == null)
+            group = bound.get(new InetSocketAddress(to.getPort()));
+        if (group == null || !group[group.length == 1 ? 0 : Math.floorMod(from.hashCode(), group.length)]
+                .offer(new Datagram(data, from))) {
+            dropped.incrementAndGet();
+            return;
+        }
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public boolean supportsReusePort() {
+        return true;
+    }
+
+    @Override
+    public Poller poller() {
+        return new MemoryPoller();
+    }
+
+    /**
+     * Returns the time of the virtual clock, which starts at 0.
+     */
+    @Override
+    public long currentTimeMillis() {
+        return clock.get() / 1000000L;
+    }
+
+    @Override
+    public long nanoTime() {
+        return clock.get();
+    }
+
+    /**
+     * Schedules the task on the virtual clock. It runs on the thread calling
+     * <b><code>advance</code></b> once the clock reaches it.
+     */
+    @Override
+    public Timeout schedule(Runnable action, long delayMs) {
+        Task task = new Task();
+        task.action = action;
+        task.due = clock.get() + Math.max(0, delayMs) * 1000000L;
+        synchronized (tasks) {
+            task.order = nextTask++;
+            tasks.add(task);
+        }
+        return task;
+    }
+
+    /**
+     * Runs the tasks which are due, in the order they are due in. Tasks scheduled
+     * by a running task run too, if they are due already.
+     */
+    private void runDueTasks() {
+        synchronized (runLock) {
+            while (true) {
+                Task task;
+                synchronized (tasks) {
+                    task = tasks.peek();
+                    if (task == null || task.due - clock.get() > 0)
+                        return;
+                    tasks.poll();
+                }
+                if (task.cancelled)
+                    continue;
+                try {
+                    task.action.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits on the lock of the given sleeper until the condition holds, the
+     * virtual clock reaches the deadline or the sleeper is notified. The sleeper
+     * is listed while it waits, so that <b><code>advance</code></b> wakes it up.
+     * Must be called holding the lock of the sleeper.
+     *
+     * @param deadline time of the clock in ns to wait until, or
+     *                 <b><code>Long.MAX_VALUE</code></b> to wait for the condition
+     */
+    private void await(Object sleeper, long deadline, BooleanSupplier done) {
+        boolean timed = deadline != Long.MAX_VALUE;
+        if (timed)
+            sleepers.add(sleeper);
+        try {
+            while (!done.getAsBoolean() && (!timed || clock.get() - deadline < 0))
+                sleeper.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (timed)
+                sleepers.remove(sleeper);
+        }
+    }
+
+    /**
+     * Returns the time of the clock the given timeout ends at.
+     */
+    private long deadline(long timeoutMs) {
+        return timeoutMs <= 0 ? Long.MAX_VALUE : clock.get() + timeoutMs * 1000000L;
+    }
+
+    /**
+     * A socket of this transport. Received datagrams wait in a queue guarded by
+     * the lock of the socket, which the receiving thread waits on.
+     */
+    private final class MemoryIO implements DatagramIO {
+        private InetSocketAddress address;
+        private InetSocketAddress sender;
+        private boolean reusePort;
+        private ConcurrentLinkedQueue<Pending> pending;
+        private Object flushLock; // Never held along with the lock of this socket
+        private volatile boolean closed;
+
+        // Guarded by the lock of this socket.
+        private ArrayDeque<Datagram> inbound;
+        private HashMap<MemoryPoller, Object> pollers;
+        private boolean woken;
+
+        private AtomicLong received;
+        private AtomicLong sent;
+        private AtomicLong receiveCalls;
+        private AtomicLong sendCalls;
+        private AtomicLong receiveBatches;
+        private AtomicLong sendBatches;
+
+        MemoryIO(InetSocketAddress address, InetSocketAddress sender, boolean reusePort) {
+            this.address = address;
+            this.sender = sender;
+            this.reusePort = reusePort;
+            pending = new ConcurrentLinkedQueue<Pending>();
+            flushLock = new Object();
+            inbound = new ArrayDeque<Datagram>();
+            pollers = new HashMap<MemoryPoller, Object>();
+            received = new AtomicLong();
+            sent = new AtomicLong();
+            receiveCalls = new AtomicLong();
+            sendCalls = new AtomicLong();
+            receiveBatches = new AtomicLong();
+            sendBatches = new AtomicLong();
+        }
+
+        /**
+         * Adds a datagram to the queue of the socket and tells the pollers waiting
+         * on the socket.
+         *
+         * @return false if the socket is closed or full
+         */
+        boolean offer(Datagram datagram) {
+            ArrayList<Map.Entry<MemoryPoller, Object>> waiting;
+            synchronized (this) {
+                if (closed || inbound.size() >= RECEIVE_QUEUE)
+                    return false;
+                inbound.add(datagram);
+                notifyAll();
+                if (pollers.isEmpty())
+                    return true;
+                waiting = new ArrayList<Map.Entry<MemoryPoller, Object>>(pollers.entrySet());
+            }
+            for (Map.Entry<MemoryPoller, Object> registration : waiting)
+                registration.getKey().signal(registration.getValue());
+            return true;
+        }
+
+        @Override
+        public int receive(ByteBuffer[] buffers, InetSocketAddress[] senders, long timeoutMs) throws IOException {
+            synchronized (this) {
+                int count = drain(buffers, senders);
+                if (count == 0) {
+                    receiveCalls.incrementAndGet();
+                    await(this, deadline(timeoutMs), () -> !inbound.isEmpty() || woken || closed);
+                    woken = false;
+                    count = drain(buffers, senders);
+                }
+                if (count > 0)
+                    receiveBatches.incrementAndGet();
+                return count;
+            }
+        }
+
+        @Override
+        public synchronized int receiveNow(ByteBuffer[] buffers, InetSocketAddress[] senders) throws IOException {
+            int count = drain(buffers, senders);
+            if (count > 0)
+                receiveBatches.incrementAndGet();
+            return count;
+        }
+
+        /**
+         * Copies waiting datagrams into the buffers until none are left or all
+         * buffers are filled. Like UDP, a datagram longer than its buffer is cut
+         * short. Must be called holding the lock of this socket.
+         */
+        private int drain(ByteBuffer[] buffers, InetSocketAddress[] senders) throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            receiveCalls.incrementAndGet();
+            int count = 0;
+            Datagram datagram;
+            while (count < buffers.length && (datagram = inbound.poll()) != null) {
+                buffers[count].put(datagram.data, 0, Math.min(datagram.data.length, buffers[count].remaining()));
+                buffers[count].flip();
+                senders[count] = datagram.from;
+                count++;
+            }
+            received.addAndGet(count);
+            return count;
+        }
+
+        @Override
+        public void queue(ByteBuffer datagram, SocketAddress destination) {
+            pending.add(new Pending(datagram, destination));
+        }
+
+        /**
+         * Delivers the queued datagrams in order. Flushes are serialised by a lock
+         * of their own, as delivering takes the lock of the receiving socket.
+         */
+        @Override
+        public int flush() throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            int count = 0;
+            synchronized (flushLock) {
+                Pending next;
+                while ((next = pending.poll()) != null) {
+                    sendCalls.incrementAndGet();
+                    byte[] data = new byte[next.datagram.remaining()];
+                    next.datagram.get(data);
+                    deliver(data, sender, (InetSocketAddress) next.destination);
+                    count++;
+                }
+            }
+            if (count > 0) {
+                sent.addAndGet(count);
+                sendBatches.incrementAndGet();
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            woken = true;
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                inbound.clear();
+                notifyAll();
+            }
+            unbind(this);
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            return sender;
+        }
+
+        synchronized void register(MemoryPoller poller, Object attachment) throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            pollers.put(poller, attachment);
+            if (!inbound.isEmpty())
+                poller.signal(attachment);
+        }
+
+        synchronized Object deregister(MemoryPoller poller) {
+            return pollers.remove(poller);
+        }
+
+        @Override
+        public long getReceivedCount() {
+            return received.get();
+        }
+
+        @Override
+        public long getSentCount() {
+            return sent.get();
+        }
+
+        @Override
+        public long getReceiveCalls() {
+            return receiveCalls.get();
+        }
+
+        @Override
+        public long getSendCalls() {
+            return sendCalls.get();
+        }
+
+        @Override
+        public long getReceiveBatches() {
+            return receiveBatches.get();
+        }
+
+        @Override
+        public long getSendBatches() {
+            return sendBatches.get();
+        }
+
+        /**
+         * Handing a datagram to the transport never fails, datagrams which are
+         * lost on the way are counted by the transport instead.
+         */
+        @Override
+        public long getSendFailures() {
+            return 0;
+        }
+    }
+
+    /**
+     * Poller of this transport. Sockets add their attachment to the ready set of
+     * the poller when a datagram arrives, and <b><code>poll</code></b> hands out
+     * and clears the set.
+     */
+    private final class MemoryPoller implements Poller {
+        // Guarded by the lock of this poller.
+        private LinkedHashSet<Object> ready = new LinkedHashSet<Object>();
+        private boolean woken;
+
+        synchronized void signal(Object attachment) {
+            if (ready.add(attachment))
+                notifyAll();
+        }
+
+        @Override
+        public void register(DatagramIO io, Object attachment) throws IOException {
+            ((MemoryIO) io).register(this, attachment);
+        }
+
+        @Override
+        public void deregister(DatagramIO io) {
+            Object attachment = ((MemoryIO) io).deregister(this);
+            if (attachment != null) {
+                synchronized (this) {
+                    ready.remove(attachment);
+                }
+            }
+        }
+
+        @Override
+        public synchronized int poll(long timeoutMs, List<Object> ready) {
+            await(this, deadline(timeoutMs), () -> !this.ready.isEmpty() || woken);
+            woken = false;
+            int count = this.ready.size();
+            ready.addAll(this.ready);
+            this.ready.clear();
+            return count;
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            woken = true;
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package Protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Dominik Guzowski, 19334866
  */
@@ -39,9 +41,181 @@ public final class Protocol {
     public static final byte TOPIC_QRY      = (byte) 0xB5; // Not used
     public static final byte TOPIC_OWN      = (byte) 0xBA;
     public static final byte TOPIC_RES      = (byte) 0xBF; // Not used
+    public static final byte TOPIC_REG      = (byte) 0x40; // Requests a topic id, the ack carries the id as its payload
+    public static final byte BATCH          = (byte) 0x50; // Payload is a list of records, see Batch
+    public static final byte MULTI_ACK      = (byte) 0x60; // Payload is a list of acknowledgements, see AckCoalescer
     
     public static final int TOPIC_LEN       = 3; // Position in the header
 
+    // Extended Header Layout: [PacketType | EXTENDED, CacheReq, DataType, TopicLen, ...TopicBytes, ...SequenceBytes]
+    public static final byte EXTENDED       = (byte) 0x80; // Flag set on the PacketType
+    public static final int  SEQ_LEN        = 4; // Length of the sequence number following the topic bytes
+
+    // Topic Id Header Layout: [PacketType, CacheReq, DataType, 0, ...TopicIdBytes, ...EpochBytes]
+    // A TopicLen of 0 means the topic is given by the id registered with TOPIC_REG instead of its bytes.
+    // The epoch is picked at random by the broker on every start, so that ids assigned before a restart are refused.
+    public static final int  TOPIC_ID_LEN   = 2; // Length of the topic id replacing the topic bytes
+    public static final int  EPOCH_LEN      = 2; // Length of the broker epoch following the topic id
+
+    /**
+     * Returns the packet type of the given packet with the extended header flag
+     * removed, so that it can be compared to <b><code>BROKER</code></b>,
+     * <b><code>SUBSCRIBER</code></b> and <b><code>PUBLISHER</code></b>.
+     * @param data packet bytes
+     * @return packet type
+     */
+    public static byte packetType(byte[] data) {
+        return (byte) (data[PACKET_TYPE] & ~EXTENDED);
+    }
+
+    /**
+     * Checks whether the given packet uses the extended header, which carries a
+     * sequence number after the topic bytes.
+     * @param data packet bytes
+     * @return true if the header is extended, else false
+     */
+    public static boolean isExtended(byte[] data) {
+        return (data[PACKET_TYPE] & EXTENDED) != 0;
+    }
+
+    /**
+     * Returns the length of the header of the given packet, including the topic
+     * bytes and the sequence number if the header is extended. The payload starts
+     * at this position.
+     * @param data packet bytes
+     * @return length of the header
+     */
+    public static int headerLength(byte[] data) {
+        return HEADER_LEN + topicLength(data) + (isExtended(data) ? SEQ_LEN : 0);
+    }
+
+    /**
+     * Checks whether the given packet refers to its topic by a registered topic id
+     * instead of carrying the topic bytes.
+     * @param data packet bytes
+     * @return true if the packet carries a topic id, else false
+     */
+    public static boolean hasTopicId(byte[] data) {
+        return data[TOPIC_LEN] == 0;
+    }
+
+    /**
+     * Returns the number of bytes the topic takes up in the header of the given
+     * packet, which is either the length of the topic or the length of a topic id
+     * along with the epoch of the broker that assigned it.
+     * @param data packet bytes
+     * @return length of the topic bytes
+     */
+    public static int topicLength(byte[] data) {
+        return hasTopicId(data) ? TOPIC_ID_LEN + EPOCH_LEN : 0xFF & data[TOPIC_LEN];
+    }
+
+    /**
+     * Returns the topic id of a packet which refers to its topic by id.
+     * @param data packet bytes
+     * @return topic id
+     * @see #hasTopicId(byte[])
+     */
+    public static int topicId(byte[] data) {
+        return ((0xFF & data[HEADER_LEN]) << 8) + (0xFF & data[HEADER_LEN + 1]);
+    }
+
+    /**
+     * Returns the epoch of the broker which assigned the topic id of a packet
+     * which refers to its topic by id.
+     * @param data packet bytes
+     * @return broker epoch
+     * @see #hasTopicId(byte[])
+     */
+    public static int topicEpoch(byte[] data) {
+        return ((0xFF & data[HEADER_LEN + TOPIC_ID_LEN]) << 8) + (0xFF & data[HEADER_LEN + TOPIC_ID_LEN + 1]);
+    }
+
+    /**
+     * Returns the sequence number of a packet with an extended header.
+     * @param data packet bytes
+     * @return sequence number
+     */
+    public static int sequence(byte[] data) {
+        int position = HEADER_LEN + topicLength(data);
+        int value = 0;
+        for (int i = 0; i < SEQ_LEN; i++) {
+            value <<= 8;
+            value += 0xFF & data[position + i];
+        }
+        return value;
+    }
+
+    /**
+     * Same as <b><code>packetType(byte[])</code></b>, for a packet held in a
+     * buffer starting at index 0.
+     * @param data packet buffer
+     * @return packet type
+     */
+    public static byte packetType(ByteBuffer data) {
+        return (byte) (data.get(PACKET_TYPE) & ~EXTENDED);
+    }
+
+    /**
+     * Same as <b><code>isExtended(byte[])</code></b>, for a packet held in a
+     * buffer starting at index 0.
+     * @param data packet buffer
+     * @return true if the header is extended, else false
+     */
+    public static boolean isExtended(ByteBuffer data) {
+        return (data.get(PACKET_TYPE) & EXTENDED) != 0;
+    }
+
+    /**
+     * Same as <b><code>headerLength(byte[])</code></b>, for a packet held in a
+     * buffer starting at index 0.
+     * @param data packet buffer
+     * @return length of the header
+     */
+    public static int headerLength(ByteBuffer data) {
+        return HEADER_LEN + topicLength(data) + (isExtended(data) ? SEQ_LEN : 0);
+    }
+
+    /**
+     * Same as <b><code>hasTopicId(byte[])</code></b>, for a packet held in a
+     * buffer starting at index 0.
+     * @param data packet buffer
+     * @return true if the packet carries a topic id, else false
+     */
+    public static boolean hasTopicId(ByteBuffer data) {
+        return data.get(TOPIC_LEN) == 0;
+    }
+
+    /**
+     * Same as <b><code>topicLength(byte[])</code></b>, for a packet held in a
+     * buffer starting at index 0.
+     * @param data packet buffer
+     * @return length of the topic bytes
+     */
+    public static int topicLength(ByteBuffer data) {
+        return hasTopicId(data) ? TOPIC_ID_LEN + EPOCH_LEN : 0xFF & data.get(TOPIC_LEN);
+    }
+
+    /**
+     * Same as <b><code>topicId(byte[])</code></b>, for a packet held in a buffer
+     * starting at index 0.
+     * @param data packet buffer
+     * @return topic id
+     */
+    public static int topicId(ByteBuffer data) {
+        return ((0xFF & data.get(HEADER_LEN)) << 8) + (0xFF & data.get(HEADER_LEN + 1));
+    }
+
+    /**
+     * Same as <b><code>topicEpoch(byte[])</code></b>, for a packet held in a
+     * buffer starting at index 0.
+     * @param data packet buffer
+     * @return broker epoch
+     */
+    public static int topicEpoch(ByteBuffer data) {
+        return ((0xFF & data.get(HEADER_LEN + TOPIC_ID_LEN)) << 8) + (0xFF & data.get(HEADER_LEN + TOPIC_ID_LEN + 1));
+    }
+
     /**
      * Shorthand helper function that is used in the protocol components to identify threads by their name.
      * @return current thread name
@@ -0,0 +1,75 @@
+package Protocol.Publisher;
+
+import Protocol.Protocol;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Outcome of publishing a message, given to the application once the broker
+ * acknowledged the packet carrying it.
+ */
+public class PublishResult {
+    private byte ackType;
+    private int attempts;
+    private long latencyNanos;
+
+    /**
+     * <b><code>PublishResult Constructor</code></b>.
+     *
+     * @param ackType      <b><code>POS_ACK</code></b> or
+     *                     <b><code>NEG_ACK</code></b> received from the broker
+     * @param attempts     number of times the packet was sent
+     * @param latencyNanos time between the first send and the acknowledgement
+     */
+    public PublishResult(byte ackType, int attempts, long latencyNanos) {
+        this.ackType = ackType;
+        this.attempts = attempts;
+        this.latencyNanos = latencyNanos;
+    }
+
+    /**
+     * Checks whether the broker accepted the message.
+     *
+     * @return true if the broker sent a <b><code>POS_ACK</code></b>, false if it
+     *         sent a <b><code>NEG_ACK</code></b>
+     */
+    public boolean isAccepted() {
+        return ackType == Protocol.POS_ACK;
+    }
+
+    /**
+     * Returns the type of the acknowledgement received from the broker.
+     *
+     * @return <b><code>POS_ACK</code></b> or <b><code>NEG_ACK</code></b>
+     */
+    public byte getAckType() {
+        return ackType;
+    }
+
+    /**
+     * Returns the number of times the packet was sent before it was acknowledged.
+     *
+     * @return number of attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the time between the first send of the packet and its
+     * acknowledgement.
+     *
+     * @return latency in nanoseconds
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return (isAccepted() ? "POS_ACK" : "NEG_ACK") + " after " + attempts + " attempt(s), "
+                + (latencyNanos / 1000) + "us";
+    }
+}
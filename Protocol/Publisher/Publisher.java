@@ -1,5 +1,12 @@
 package Protocol.Publisher;
 
+import java.util.concurrent.CompletableFuture;
+
+import Protocol.DatagramIO;
+import Protocol.RequestLoop;
+
+import Protocol.TopicDictionary;
+import Protocol.Transport;
 import Protocol.Connection.Connection;
 
 /**
@@ -12,6 +19,15 @@ public class Publisher {
 
     private Connection destination;
 
+    private volatile TopicDictionary topicIds;
+
+    private volatile PublisherBatcher batcher;
+
+    private Transport transport;
+
+    private DatagramIO channel; // Guarded by the lock of this publisher
+    private boolean closed;
+
     /**
      * <b><code>Publisher Constructor</code></b>. Takes in the connection to the
      * broker as well as the main topic that the publisher will be publishing to.
@@ -20,8 +36,33 @@ public class Publisher {
      * @param topic       main topic for publishing
      */
     public Publisher(Connection destination, String topic) {
+        this(destination, topic, Transport.udp());
+    }
+
+    /**
+     * <b><code>Publisher Constructor</code></b>. Same as above, but sends its
+     * packets over the given transport instead of UDP.
+     * 
+     * @param destination <b><code>Connection</code></b> to the broker
+     * @param topic       main topic for publishing
+     * @param transport   <b><code>Transport</code></b> the broker is reached over
+     */
+    public Publisher(Connection destination, String topic, Transport transport) {
         this.destination = destination;
         this.topic = topic;
+        this.transport = transport;
+        topicIds = new TopicDictionary();
+    }
+
+    /**
+     * Sets whether the publisher registers its topics with the broker and sends
+     * the assigned topic ids instead of the topic bytes. Enabled by default. The
+     * first packet to a topic costs an extra round trip for the registration; if
+     * the broker doesn't support topic ids, the topic bytes are used.
+     * @param enabled true to use topic ids, false to always send the topic bytes
+     */
+    public void useTopicIds(boolean enabled) {
+        topicIds = enabled ? new TopicDictionary() : null;
     }
 
     /**
@@ -36,9 +77,7 @@ public class Publisher {
      * @param cache   true if caching requested, else false.
      */
     public void publish(String topic, String content, boolean cache) {
-        PublisherSender sender = new PublisherSender(topic, destination, content, cache);
-        Thread t = new Thread(sender);
-        t.start();
+        publishAsync(topic, content, cache);
     }
 
     /**
@@ -53,9 +92,7 @@ public class Publisher {
      * @param cache   true if caching requested, else false.
      */
     public void publish(String topic, Integer content, boolean cache) {
-        PublisherSender sender = new PublisherSender(topic, destination, content, cache);
-        Thread t = new Thread(sender);
-        t.start();
+        publishAsync(topic, content, cache);
     }
 
     /**
@@ -69,9 +106,7 @@ public class Publisher {
      * @param cache   true if caching requested, else false.
      */
     public void publish(String content, boolean cache) {
-        PublisherSender sender = new PublisherSender(topic, destination, content, cache);
-        Thread t = new Thread(sender);
-        t.start();
+        publishAsync(topic, content, cache);
     }
 
     /**
@@ -85,8 +120,120 @@ public class Publisher {
      * @param cache   true if caching requested, else false.
      */
     public void publish(Integer content, boolean cache) {
-        PublisherSender sender = new PublisherSender(topic, destination, content, cache);
-        Thread t = new Thread(sender);
-        t.start();
+        publishAsync(topic, content, cache);
+    }
+
+    /**
+     * Same as <b><code>publish</code></b>, but returns a future which is completed
+     * once the broker acknowledges the packet carrying the content. The future is
+     * completed exceptionally if the content cannot be sent or the broker never
+     * acknowledges it.
+     * @param topic   custom topic to which to publish content
+     * @param content string content
+     * @param cache   true if caching requested, else false.
+     * @return future of the outcome of publishing
+     * @see PublishResult
+     */
+    public CompletableFuture<PublishResult> publishAsync(String topic, String content, boolean cache) {
+        return send(topic, content, cache);
+    }
+
+    /**
+     * Same as <b><code>publish</code></b>, but returns a future which is completed
+     * once the broker acknowledges the packet carrying the content. The future is
+     * completed exceptionally if the content cannot be sent or the broker never
+     * acknowledges it.
+     * @param topic   custom topic to which to publish content
+     * @param content integer content
+     * @param cache   true if caching requested, else false.
+     * @return future of the outcome of publishing
+     * @see PublishResult
+     */
+    public CompletableFuture<PublishResult> publishAsync(String topic, Integer content, boolean cache) {
+        return send(topic, content, cache);
+    }
+
+    /**
+     * Turns on batching, where published content, possibly under different
+     * topics, is collected into a single <b><code>BATCH</code></b> packet which is
+     * acknowledged once. A batch is sent <b><code>lingerMs</code></b> after its
+     * first content was published, or earlier once it holds
+     * <b><code>maxBatchBytes</code></b> of content. Content with different caching
+     * requests is sent in separate batches.
+     * <br></br>
+     * Each piece of content takes up 4 bytes along with its topic and content bytes.
+     * @param lingerMs      how long content may wait for more content to be published
+     * @param maxBatchBytes maximum size of a batch, limited to a single packet
+     */
+    public void enableBatching(int lingerMs, int maxBatchBytes) {
+        PublisherBatcher previous = batcher;
+        batcher = new PublisherBatcher(destination, channel(), transport, lingerMs, maxBatchBytes);
+        if (previous != null) previous.close();
+    }
+
+    /**
+     * Turns off batching, sending any content still waiting in a batch.
+     */
+    public void disableBatching() {
+        PublisherBatcher previous = batcher;
+        batcher = null;
+        if (previous != null) previous.close();
+    }
+
+    /**
+     * Sends the current batch without waiting for the linger time. Does nothing if
+     * batching is off.
+     */
+    public void flush() {
+        PublisherBatcher current = batcher;
+        if (current != null) current.flush();
+    }
+
+    /**
+     * Sends the content on its own packet through the shared request loop, or adds
+     * it to the current batch if batching is on.
+     */
+    private CompletableFuture<PublishResult> send(String topic, Object content, boolean cache) {
+        PublisherBatcher current = batcher;
+        if (current != null)
+            return current.add(topic, PublisherBatcher.dataType(content), PublisherBatcher.payload(content), cache);
+        CompletableFuture<PublishResult> result = new CompletableFuture<PublishResult>();
+        PublisherSender sender = new PublisherSender(topic, destination, content, cache, topicIds, result);
+        sender.sendAsync(channel(), transport);
+        return result;
+    }
+
+    /**
+     * Sends any content still waiting in a batch and closes the channel the
+     * publisher sends from. Content published afterwards is sent from a channel of
+     * its own.
+     */
+    public void close() {
+        disableBatching();
+        synchronized (this) {
+            closed = true;
+            if (channel != null)
+                RequestLoop.of(transport).close(channel);
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns the channel every packet of the publisher is sent from, opening it
+     * the first time it is needed, so that no socket is set up per packet.
+     *
+     * @return channel bound to an ephemeral port, or null if it could not be
+     *         opened or the publisher was closed
+     */
+    private synchronized DatagramIO channel() {
+        if (channel == null && !closed) {
+            try {
+                channel = transport.open(null, false);
+            } catch (Exception e) {
+                System.out.println(" [!] Could not open publisher channel.");
+                channel = null;
+            }
+        }
+        return channel;
     }
 }
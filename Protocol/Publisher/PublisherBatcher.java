@@ -0,0 +1,128 @@
+package Protocol.Publisher;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import Protocol.Batch;
+import Protocol.DatagramIO;
+import Protocol.Protocol;
+import Protocol.Transport;
+import Protocol.Connection.Connection;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+class PublisherBatcher {
+    private Connection destination;
+    private DatagramIO channel;
+    private Transport transport;
+    private int lingerMs;
+    private int maxBatchBytes;
+
+    // Guarded by the lock of this batcher.
+    private Batch batch;
+    private String firstTopic;
+    private boolean cache;
+    private ArrayList<CompletableFuture<PublishResult>> results;
+    private Transport.Timeout scheduledFlush;
+
+    /**
+     * <b><code>PublisherBatcher Constructor</code></b>. Collects published
+     * messages, possibly under different topics, into <b><code>BATCH</code></b>
+     * packets. A batch is sent once it is <b><code>lingerMs</code></b> old or once
+     * the next message would make it longer than <b><code>maxBatchBytes</code></b>.
+     *
+     * @param destination   <b><code>Connection</code></b> to the broker
+     * @param channel       channel of the publisher the batches are sent from, or
+     *                      null to open a channel per batch
+     * @param transport     <b><code>Transport</code></b> of the publisher, whose
+     *                      clock times the linger
+     * @param lingerMs      how long the first message of a batch waits for others
+     * @param maxBatchBytes maximum length of the records of a batch
+     */
+    PublisherBatcher(Connection destination, DatagramIO channel, Transport transport, int lingerMs,
+            int maxBatchBytes) {
+        this.destination = destination;
+        this.channel = channel;
+        this.transport = transport;
+        this.lingerMs = Math.max(0, lingerMs);
+        this.maxBatchBytes = maxBatchBytes;
+        results = new ArrayList<CompletableFuture<PublishResult>>();
+    }
+
+    /**
+     * Adds a message to the current batch, sending the batch first if the message
+     * doesn't fit or asks for different caching.
+     *
+     * @param topic    topic to which to publish the message
+     * @param dataType <b><code>STR</code></b> or <b><code>INT</code></b>
+     * @param payload  content bytes of the message
+     * @param cache    true if caching requested, else false
+     * @return future completed once the batch carrying the message is acknowledged
+     */
+    synchronized CompletableFuture<PublishResult> add(String topic, byte dataType, byte[] payload, boolean cache) {
+        CompletableFuture<PublishResult> result = new CompletableFuture<PublishResult>();
+        byte[] topicBytes = topic.getBytes();
+        if (topic.isEmpty() || topic.contains("*") || topicBytes.length > 0xFF) {
+            result.completeExceptionally(new IllegalArgumentException("Invalid topic '" + topic + "'"));
+            return result;
+        }
+        if (batch != null && (cache != this.cache || !batch.add(dataType, topicBytes, payload)))
+            flush();
+        if (batch == null) {
+            batch = new Batch(Math.min(maxBatchBytes, Batch.capacity(topicBytes.length)));
+            if (!batch.add(dataType, topicBytes, payload)) {
+                batch = null;
+                result.completeExceptionally(new IllegalArgumentException("Message exceeds maximum batch size"));
+                return result;
+            }
+            firstTopic = topic;
+            this.cache = cache;
+            scheduledFlush = transport.schedule(this::flush, lingerMs);
+        }
+        results.add(result);
+        return result;
+    }
+
+    /**
+     * Sends the current batch, if any, without waiting for the linger time.
+     */
+    synchronized void flush() {
+        if (batch == null)
+            return;
+        scheduledFlush.cancel();
+        new PublisherSender(firstTopic, destination, batch, cache, results).sendAsync(channel, transport);
+        batch = null;
+        results = new ArrayList<CompletableFuture<PublishResult>>();
+    }
+
+    /**
+     * Sends the current batch, cancelling its linger timer.
+     */
+    void close() {
+        flush();
+    }
+
+    /**
+     * Returns the data type of the given content.
+     *
+     * @param content <b><code>String</code></b> or <b><code>Integer</code></b>
+     * @return <b><code>STR</code></b> or <b><code>INT</code></b>
+     */
+    static byte dataType(Object content) {
+        return content instanceof Integer ? Protocol.INT : Protocol.STR;
+    }
+
+    /**
+     * Returns the bytes of the given content.
+     *
+     * @param content <b><code>String</code></b> or <b><code>Integer</code></b>
+     * @return content bytes
+     */
+    static byte[] payload(Object content) {
+        if (content instanceof Integer)
+            return PublisherSender.integerToMinimalByteArray((Integer) content);
+        return content.toString().getBytes();
+    }
+}
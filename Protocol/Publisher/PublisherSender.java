@@ -1,10 +1,20 @@
 package Protocol.Publisher;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
+import Protocol.Batch;
+import Protocol.DatagramIO;
+import Protocol.Log;
 import Protocol.Connection.Connection;
 import Protocol.Protocol;
+import Protocol.RequestLoop;
+import Protocol.TopicDictionary;
+import Protocol.Transport;
 
 /**
  * @author Dominik Guzowski, 19334866
@@ -22,6 +32,10 @@ public class PublisherSender implements Runnable {
     private Object nonSerializedContent;
     private byte[] content;
     private byte type;
+    private TopicDictionary topicIds;
+    private List<CompletableFuture<PublishResult>> results;
+    private DatagramIO channel;
+    private Transport transport;
 
     /**
      * <b><code>PublisherSender Constructor</code></b>. Takes in the topic to which
@@ -37,6 +51,48 @@ public class PublisherSender implements Runnable {
      * @see #integerToMinimalByteArray(int)
      */
     public PublisherSender(String topic, Connection destination, Object content, boolean cache) {
+        this(topic, destination, content, cache, null);
+    }
+
+    /**
+     * <b><code>PublisherSender Constructor</code></b>. Same as above, but refers to
+     * the topic by the id the broker assigned to it, registering the topic first
+     * if it has no id yet.
+     * 
+     * @param topic       to which to publish content
+     * @param destination <b><code>Connection</code></b> to the broker
+     * @param content     <b><code>String</code></b> or <b><code>Integer</code></b>
+     *                    content
+     * @param cache       true if caching requested, else false
+     * @param topicIds    ids the broker assigned to topics of this publisher, or
+     *                    null to always send the topic bytes
+     * @see TopicDictionary
+     */
+    public PublisherSender(String topic, Connection destination, Object content, boolean cache,
+            TopicDictionary topicIds) {
+        this(topic, destination, content, cache, topicIds, null);
+    }
+
+    /**
+     * <b><code>PublisherSender Constructor</code></b>. Same as above, and
+     * completes the given future once the broker acknowledges the packet.
+     * 
+     * @param topic       to which to publish content
+     * @param destination <b><code>Connection</code></b> to the broker
+     * @param content     <b><code>String</code></b> or <b><code>Integer</code></b>
+     *                    content
+     * @param cache       true if caching requested, else false
+     * @param topicIds    ids the broker assigned to topics of this publisher, or
+     *                    null to always send the topic bytes
+     * @param result      future completed with the outcome, or null
+     * @see PublishResult
+     */
+    public PublisherSender(String topic, Connection destination, Object content, boolean cache,
+            TopicDictionary topicIds, CompletableFuture<PublishResult> result) {
+        results = new ArrayList<CompletableFuture<PublishResult>>();
+        if (result != null)
+            results.add(result);
+        this.topicIds = topicIds;
         this.topic = topic;
         this.destination = destination;
         this.cache = cache;
@@ -46,13 +102,36 @@ public class PublisherSender implements Runnable {
             this.type = Protocol.STR;
         } else if (content.getClass().getSimpleName().equals("Integer")) {
             this.content = integerToMinimalByteArray(((Integer) content).intValue());
-            this.type = Protocol.STR;
+            this.type = Protocol.INT;
         } else {
             this.content = new byte[0];
             type = 0;
         }
     }
 
+    /**
+     * <b><code>PublisherSender Constructor</code></b>. Sends a
+     * <b><code>BATCH</code></b> packet carrying many messages, completing the
+     * future of every message once the broker acknowledges the packet.
+     * 
+     * @param topic       topic of the first message of the batch
+     * @param destination <b><code>Connection</code></b> to the broker
+     * @param batch       records of the messages
+     * @param cache       true if caching requested for all messages, else false
+     * @param results     futures of the messages, completed with the outcome
+     * @see PublisherBatcher
+     */
+    PublisherSender(String topic, Connection destination, Batch batch, boolean cache,
+            List<CompletableFuture<PublishResult>> results) {
+        this.topic = topic;
+        this.destination = destination;
+        this.cache = cache;
+        this.results = results;
+        nonSerializedContent = batch.size() + " messages";
+        content = batch.toByteArray();
+        type = Protocol.BATCH;
+    }
+
     /**
      * Takes in an integer and returns a byte array of necessary length to represent
      * the value of the integer, rather than always being 4 bytes.
@@ -60,7 +139,7 @@ public class PublisherSender implements Runnable {
      * @param value integer to be converted to a byte array
      * @return byte array representing the integer value in least bytes necessary
      */
-    private byte[] integerToMinimalByteArray(int value) {
+    static byte[] integerToMinimalByteArray(int value) {
         int len = 4;
         for (int i = 0; i < 4; i++) {
             if ((value & (0xFF000000 >>> (8 * i))) == 0) {
@@ -109,81 +188,276 @@ public class PublisherSender implements Runnable {
     }
 
     /**
-     * Thread run method. Assembles a packet and sends it on to the broker. Then
-     * waits for an acknowledgement and if none is received or if the
-     * acknowledgement is invalid, resends the packet. Continues to do so until a
-     * valid acknowledgement is received or the maximum number of attempts is
-     * exceeded.
+     * Sends the packet through the shared <b><code>RequestLoop</code></b> from a
+     * UDP channel of its own. Same as
+     * <b><code>sendAsync(null, Transport.udp())</code></b>.
      * 
-     * @see Thread#run()
+     * @see #sendAsync(DatagramIO, Transport)
      */
-    @Override
-    public void run() {
-        if (topic.length() > 255) {
-            System.out.println(" [!] Topic length exceeds maximum length of 255 characters.");
-            System.out.println(" [!] Publisher packet not sent.");
-            return;
-        }
-        if (type == 0 || content.length == 0) {
-            System.out.println(" [!] Invalid content type.");
-            System.out.println(" [!] Publisher packet not sent.");
-            return;
-        }
-        if (topic.length() + content.length > MTU) {
-            System.out.println(" [!] Topic and content exceed maximum packet size of " + (MTU - Protocol.HEADER_LEN)
-                    + " by " + (topic.length() + content.length - MTU - Protocol.HEADER_LEN) + " bytes.");
+    void sendAsync() {
+        sendAsync(null, Transport.udp());
+    }
+
+    /**
+     * Sends the packet through the shared <b><code>RequestLoop</code></b> instead
+     * of blocking a thread, registering the topic first if topic ids are used and
+     * the topic has none yet. The futures given to this sender are completed once
+     * the broker acknowledges the packet. <br>
+     * </br>
+     * If a channel is given, the packets are sent from it with an extended header,
+     * whose sequence number lets the loop tell apart the acknowledgements of the
+     * many requests sharing the channel. The channel is left open.
+     * 
+     * @param channel   long-lived channel of the publisher, or null to open a
+     *                  channel only for this packet
+     * @param transport <b><code>Transport</code></b> of the channel, whose
+     *                  <b><code>RequestLoop</code></b> sends the packet
+     * @see RequestLoop
+     */
+    void sendAsync(DatagramIO channel, Transport transport) {
+        this.channel = channel;
+        this.transport = transport;
+        String error = validate();
+        if (error != null) {
+            System.out.println(" [!] " + error + ".");
             System.out.println(" [!] Publisher packet not sent.");
+            fail(new IllegalArgumentException(error));
             return;
         }
-        byte[] header = assembleHeader();
-        byte[] buffer = new byte[header.length + content.length];
-        System.arraycopy(header, 0, buffer, 0, header.length);
-        System.arraycopy(content, 0, buffer, header.length, content.length);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, destination.getAddress(),
-                destination.getPort());
-        try {
-            DatagramSocket socket = new DatagramSocket();
-            boolean ackReceived = false;
-            int attempts = 0;
-            while (!ackReceived && attempts < MAX_ATTEMPTS) {
-                attempts++;
-                byte[] ackBuffer = new byte[header.length];
-                DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                System.out.println(" $ Sending packet containing: " + nonSerializedContent);
-                socket.send(packet);
-                socket.setSoTimeout(ACK_TIMEOUT);
-                try {
-                    socket.receive(ackPacket);
-                    ackReceived = verifyAcknowledgement(buffer, ackPacket.getData());
-                    if (ackReceived) {
-                        if(ackPacket.getData()[Protocol.DATA_TYPE] == Protocol.NEG_ACK) System.out.println(" > Ack received! Publishing failed. Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
-                        else System.out.println(" > Ack received! Publishing successful. Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
+        RequestLoop loop = RequestLoop.of(transport);
+        InetSocketAddress broker = new InetSocketAddress(destination.getAddress(), destination.getPort());
+        if (type == Protocol.BATCH) // Sent from the linger timer, which must not wait on System.out
+            Log.debug(() -> " $ Sending batch of " + nonSerializedContent + ".");
+        else
+            System.out.println(" $ Sending packet containing: " + nonSerializedContent);
+        publish(loop, broker, true).whenComplete((result, e) -> {
+            if (e == null)
+                complete(result);
+            else
+                fail(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        });
+    }
+
+    /**
+     * Sends the packet, referring to the topic by its id if it has one. A broker
+     * which has restarted since it assigned the id refuses it, in which case the
+     * id is forgotten, the topic is registered again and the packet is resent
+     * once with the new id. The callbacks run on the thread of the loop, so they
+     * only log through <b><code>Log</code></b>, which never blocks.
+     *
+     * @param loop       request loop the packets are sent through
+     * @param broker     address of the broker
+     * @param reregister true if a refused id may be registered again
+     * @return future completed with the outcome of the last packet sent
+     */
+    private CompletableFuture<PublishResult> publish(RequestLoop loop, InetSocketAddress broker,
+            boolean reregister) {
+        return topicReference(loop, broker).thenCompose(reference ->
+            request(loop, assemblePacket(reference), broker).thenCompose(reply -> {
+                if (reply.ackType() == Protocol.NEG_ACK && reference != TopicDictionary.NO_ID) {
+                    if (topicIds.reference(topic) == reference)
+                        topicIds.remove(topic);
+                    if (reregister) {
+                        Log.debug(() -> " > Topic id refused by the broker, registering the topic again.");
+                        return publish(loop, broker, false);
                     }
-                    else
-                        System.out.println(" [!] Received invalid ack! Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
-                } catch (Exception e) {
-                    System.out.println(" [!] Didn't receive ack! Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
                 }
+                return CompletableFuture.completedFuture(
+                        new PublishResult(reply.ackType(), reply.attempts, reply.latencyNanos));
+            }));
+    }
+
+    /**
+     * Returns the id the broker assigned to the topic along with its epoch,
+     * registering the topic with a <b><code>TOPIC_REG</code></b> request if it has
+     * no id yet.
+     *
+     * @param loop   request loop the registration is sent through
+     * @param broker address of the broker
+     * @return future completed with the reference to the topic, or
+     *         <b><code>TopicDictionary.NO_ID</code></b> to send the topic bytes
+     * @see TopicDictionary#reference(String)
+     */
+    private CompletableFuture<Integer> topicReference(RequestLoop loop, InetSocketAddress broker) {
+        int known = topicIds == null ? TopicDictionary.NO_ID : topicIds.reference(topic);
+        if (topicIds == null || known != TopicDictionary.NO_ID)
+            return CompletableFuture.completedFuture(known);
+        byte[] registration = assembleRegistration();
+        return request(loop, registration, broker).handle((reply, e) -> {
+            if (e != null || reply.ackType() != Protocol.POS_ACK
+                    || reply.data.length != registration.length + Protocol.TOPIC_ID_LEN + Protocol.EPOCH_LEN) {
+                Log.warn(" [!] Topic not registered, sending topic bytes instead.");
+                return TopicDictionary.NO_ID;
             }
-            socket.close();
+            int offset = registration.length;
+            int id = ((0xFF & reply.data[offset]) << 8) + (0xFF & reply.data[offset + 1]);
+            int epoch = ((0xFF & reply.data[offset + 2]) << 8) + (0xFF & reply.data[offset + 3]);
+            topicIds.put(topic, id, epoch);
+            Log.debug(() -> " > Topic '" + topic + "' registered as id " + id + ".");
+            return TopicDictionary.reference(id, epoch);
+        });
+    }
+
+    /**
+     * Sends a packet through the loop from the channel of the publisher, or from
+     * a channel of its own, which is closed once the packet is acknowledged.
+     */
+    private CompletableFuture<RequestLoop.Reply> request(RequestLoop loop, byte[] packet, InetSocketAddress broker) {
+        if (channel != null)
+            return loop.request(channel, packet, broker, MAX_ATTEMPTS, ACK_TIMEOUT, false);
+        try {
+            DatagramIO own = transport.open(null, false);
+            return loop.request(own, packet, broker, MAX_ATTEMPTS, ACK_TIMEOUT, true);
         } catch (Exception e) {
-            System.out.println(" [!] Socket error.");
-            System.out.println(" [!] Publisher packet not sent.");
+            CompletableFuture<RequestLoop.Reply> failed = new CompletableFuture<RequestLoop.Reply>();
+            failed.completeExceptionally(e);
+            return failed;
         }
     }
 
     /**
-     * Puts together the header of the packet including the topic bytes.
+     * Checks whether the packet can be sent.
+     * 
+     * @return description of the problem, or null if the packet can be sent
+     */
+    private String validate() {
+        if (topic.length() > 255)
+            return "Topic length exceeds maximum length of 255 characters";
+        if (topic.isEmpty())
+            return "Topic may not be empty";
+        if (type == 0 || content.length == 0)
+            return "Invalid content type";
+        if (topic.length() + content.length > MTU)
+            return "Topic and content exceed maximum packet size of " + (MTU - Protocol.HEADER_LEN) + " by "
+                    + (topic.length() + content.length - MTU - Protocol.HEADER_LEN) + " bytes";
+        return null;
+    }
+
+    /**
+     * Thread run method. Sends the packet through the shared
+     * <b><code>RequestLoop</code></b> and waits until it is acknowledged or the
+     * maximum number of attempts is exceeded.
+     * 
+     * @see Thread#run()
+     * @see #sendAsync()
+     */
+    @Override
+    public void run() {
+        CompletableFuture<PublishResult> done = new CompletableFuture<PublishResult>();
+        results.add(done);
+        sendAsync();
+        try {
+            PublishResult result = done.join();
+            System.out.println(" > Ack received! Publishing " + (result.isAccepted() ? "successful" : "failed")
+                    + ". Attempt " + result.getAttempts() + "/" + MAX_ATTEMPTS + ".");
+        } catch (Exception e) {
+            if (e.getCause() instanceof TimeoutException)
+                System.out.println(" [!] Didn't receive ack! Publisher packet not acknowledged.");
+        }
+    }
+
+    /**
+     * Completes the futures of all messages carried by the packet.
+     * 
+     * @param result outcome of sending the packet
+     */
+    private void complete(PublishResult result) {
+        for (CompletableFuture<PublishResult> future : results)
+            future.complete(result);
+    }
+
+    /**
+     * Completes the futures of all messages carried by the packet exceptionally.
+     * 
+     * @param cause reason the packet was not acknowledged
+     */
+    private void fail(Throwable cause) {
+        for (CompletableFuture<PublishResult> future : results)
+            future.completeExceptionally(cause);
+    }
+
+    /**
+     * Puts together the whole packet, referring to the topic by id if it has one.
+     * 
+     * @param reference id of the topic along with the epoch it was assigned in,
+     *                  or <b><code>TopicDictionary.NO_ID</code></b>
+     * @return packet byte array including header and content
+     * @see TopicDictionary#reference(int, int)
+     */
+    byte[] assemblePacket(int reference) {
+        byte[] header = reference == TopicDictionary.NO_ID ? assembleHeader() : assembleHeader(reference);
+        byte[] buffer = new byte[header.length + content.length];
+        System.arraycopy(header, 0, buffer, 0, header.length);
+        System.arraycopy(content, 0, buffer, header.length, content.length);
+        return buffer;
+    }
+
+    /**
+     * Puts together a <b><code>TOPIC_REG</code></b> packet for the topic.
+     * 
+     * @return registration packet byte array
+     */
+    private byte[] assembleRegistration() {
+        byte[] header = assembleHeader();
+        header[Protocol.CACHE_REQ] = Protocol.CACHE_N;
+        header[Protocol.DATA_TYPE] = Protocol.TOPIC_REG;
+        return header;
+    }
+
+    /**
+     * Puts together the header of the packet including the topic bytes, followed
+     * by room for the sequence number if the header is extended.
      * 
      * @return header byte array including topic bytes
      */
     private byte[] assembleHeader() {
-        byte[] header = new byte[(0xFF & Protocol.HEADER_LEN) + topic.length()];
-        header[Protocol.PACKET_TYPE] = Protocol.PUBLISHER;
+        byte[] header = new byte[(0xFF & Protocol.HEADER_LEN) + topic.length() + sequenceLength()];
+        header[Protocol.PACKET_TYPE] = packetType();
         header[Protocol.CACHE_REQ] = cache ? Protocol.CACHE_Y : Protocol.CACHE_N;
         header[Protocol.DATA_TYPE] = type;
         header[Protocol.TOPIC_LEN] = (byte) topic.length();
         System.arraycopy(topic.getBytes(), 0, header, Protocol.HEADER_LEN, topic.length());
         return header;
     }
+
+    /**
+     * Puts together the header of the packet with the topic id and the epoch of
+     * the broker in place of the topic bytes.
+     * 
+     * @param reference id the broker assigned to the topic along with its epoch
+     * @return header byte array including the topic id
+     */
+    private byte[] assembleHeader(int reference) {
+        int topicId = reference & TopicDictionary.MAX_ID;
+        int epoch = reference >>> 16;
+        byte[] header = new byte[Protocol.HEADER_LEN + Protocol.TOPIC_ID_LEN + Protocol.EPOCH_LEN + sequenceLength()];
+        header[Protocol.PACKET_TYPE] = packetType();
+        header[Protocol.CACHE_REQ] = cache ? Protocol.CACHE_Y : Protocol.CACHE_N;
+        header[Protocol.DATA_TYPE] = type;
+        header[Protocol.TOPIC_LEN] = 0;
+        header[Protocol.HEADER_LEN] = (byte) (topicId >>> 8);
+        header[Protocol.HEADER_LEN + 1] = (byte) topicId;
+        header[Protocol.HEADER_LEN + 2] = (byte) (epoch >>> 8);
+        header[Protocol.HEADER_LEN + 3] = (byte) epoch;
+        return header;
+    }
+
+    /**
+     * Returns the packet type, with the extended header flag set if the packet is
+     * sent from the long-lived channel of the publisher.
+     * 
+     * @return packet type of the header
+     */
+    private byte packetType() {
+        return channel == null ? Protocol.PUBLISHER : (byte) (Protocol.PUBLISHER | Protocol.EXTENDED);
+    }
+
+    /**
+     * Returns the number of bytes reserved for the sequence number in the header.
+     * 
+     * @return <b><code>SEQ_LEN</code></b> if the header is extended, else 0
+     */
+    private int sequenceLength() {
+        return channel == null ? 0 : Protocol.SEQ_LEN;
+    }
 }
@@ -0,0 +1,511 @@
+package Protocol;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Single thread shared by all publishers and subscribers of the process on the
+ * same <b><code>Transport</code></b>, which sends their requests to brokers,
+ * retransmits them until they are acknowledged and completes a future with the
+ * acknowledgement. Requests never block the caller and no thread is started
+ * per request. Timeouts are measured by the clock of the transport. <br>
+ * </br>
+ * An acknowledgement is matched to the oldest outstanding request on the same
+ * channel whose header it echoes, the same check the blocking senders do.
+ * Requests with an extended header are given a sequence number unique within
+ * the loop, which the broker echoes, so that many requests with the same
+ * header can be outstanding on one long-lived channel at once. Their
+ * acknowledgements are looked up by that number rather than compared to every
+ * outstanding request. <br>
+ * </br>
+ * The futures of requests are completed on the thread of the loop, so any
+ * callback attached to them runs there too and must not block or print to
+ * <b><code>System.out</code></b>, or every other request of the process waits
+ * behind it. Callbacks which may block should be attached with an
+ * <b><code>Executor</code></b>, e.g. through
+ * <b><code>thenApplyAsync</code></b>. <br>
+ * </br>
+ * A loop runs until <b><code>close(Transport)</code></b> is called for its
+ * transport, which a transport other than UDP should be once it is discarded,
+ * so that its thread and poller don't outlive it.
+ */
+public final class RequestLoop implements Runnable {
+    private static final int MTU = 1500;
+    private static final int TICK = 50; // Longest time between two checks for timed out requests, in ms
+    private static HashMap<Transport, RequestLoop> loops = new HashMap<Transport, RequestLoop>();
+
+    private Transport transport;
+    private Transport.Poller poller;
+    private ConcurrentLinkedQueue<Request> submitted;
+    private ConcurrentLinkedQueue<DatagramIO> closing;
+    private volatile boolean running;
+
+    // Only modified by the loop thread.
+    private HashMap<DatagramIO, Pending> channels; // Outstanding requests of every registered channel
+    private LinkedHashSet<Request> outstanding;
+    private ArrayList<Runnable> completions;
+    private int nextSequence;
+    private long lastScan;
+
+    /**
+     * Reply of the broker to a request.
+     */
+    public static final class Reply {
+        public final byte[] data; // Acknowledgement bytes, including any payload after the header
+        public final int attempts;
+        public final long latencyNanos; // Measured by the clock of the transport, from the first attempt
+
+        private Reply(byte[] data, int attempts, long latencyNanos) {
+            this.data = data;
+            this.attempts = attempts;
+            this.latencyNanos = latencyNanos;
+        }
+
+        /**
+         * Returns the type of the acknowledgement.
+         * @return <b><code>POS_ACK</code></b> or <b><code>NEG_ACK</code></b>
+         */
+        public byte ackType() {
+            return data[Protocol.DATA_TYPE];
+        }
+    }
+
+    /**
+     * A request which is waiting to be sent or acknowledged.
+     */
+    private static class Request {
+        DatagramIO channel;
+        ByteBuffer packet;
+        byte[] bytes;
+        SocketAddress destination;
+        int maxAttempts;
+        int timeoutMs;
+        boolean closeChannel;
+        CompletableFuture<Reply> result = new CompletableFuture<Reply>();
+        int attempts;
+        long start;
+        long deadline;
+        int sequence;
+    }
+
+    /**
+     * Requests outstanding on one channel. Requests with an extended header are
+     * looked up by the sequence number their acknowledgement echoes, so that a
+     * channel with many outstanding requests doesn't have every acknowledgement
+     * compared to each of them. Other requests are kept oldest first and matched
+     * by their header.
+     */
+    private static class Pending {
+        ArrayDeque<Request> plain = new ArrayDeque<Request>();
+        LinkedHashMap<Integer, Request> extended = new LinkedHashMap<Integer, Request>();
+
+        void add(Request request) {
+            if(Protocol.isExtended(request.bytes)) extended.put(request.sequence, request);
+            else plain.add(request);
+        }
+
+        void remove(Request request) {
+            if(Protocol.isExtended(request.bytes)) extended.remove(request.sequence, request);
+            else plain.remove(request);
+        }
+
+        boolean isEmpty() {
+            return plain.isEmpty() && extended.isEmpty();
+        }
+
+        ArrayList<Request> all() {
+            ArrayList<Request> all = new ArrayList<Request>(plain);
+            all.addAll(extended.values());
+            return all;
+        }
+    }
+
+    private RequestLoop(Transport transport) throws Exception {
+        this.transport = transport;
+        poller = transport.poller();
+        submitted = new ConcurrentLinkedQueue<Request>();
+        closing = new ConcurrentLinkedQueue<DatagramIO>();
+        channels = new HashMap<DatagramIO, Pending>();
+        outstanding = new LinkedHashSet<Request>();
+        completions = new ArrayList<Runnable>();
+        running = true;
+    }
+
+    /**
+     * Returns the loop shared by the whole process over UDP, starting its thread
+     * the first time it is needed.
+     * @return shared request loop
+     * @see Transport#udp()
+     */
+    public static RequestLoop shared() {
+        return of(Transport.udp());
+    }
+
+    /**
+     * Returns the loop shared by everything in the process using the given
+     * transport, starting its thread the first time it is needed.
+     * @param transport transport the requests are sent over
+     * @return request loop of the transport
+     */
+    public static synchronized RequestLoop of(Transport transport) {
+        RequestLoop loop = loops.get(transport);
+        if(loop == null) {
+            try {
+                loop = new RequestLoop(transport);
+            } catch(Exception e) {
+                throw new IllegalStateException("Could not open poller", e);
+            }
+            loops.put(transport, loop);
+            Thread t = new Thread(loop);
+            t.setName("\u001B[33m<<Request Loop>>: \u001B[0m");
+            t.setDaemon(true);
+            t.start();
+        }
+        return loop;
+    }
+
+    /**
+     * Stops the loop of the given transport, if it has one. Requests still
+     * outstanding fail with a <b><code>ClosedChannelException</code></b>, the
+     * channels the loop was asked to close are closed and its thread ends. A
+     * later <b><code>of</code></b> starts a new loop for the transport.
+     * @param transport transport which is no longer used
+     */
+    public static void close(Transport transport) {
+        RequestLoop loop;
+        synchronized(RequestLoop.class) {
+            loop = loops.remove(transport);
+        }
+        if(loop != null) {
+            loop.running = false;
+            loop.poller.wakeup();
+        }
+    }
+
+    /**
+     * Sends the packet from the given channel and retransmits it every
+     * <b><code>timeoutMs</code></b> until an acknowledgement echoing its header
+     * arrives on the channel, or until it was sent <b><code>maxAttempts</code></b>
+     * times, in which case the future completes with a
+     * <b><code>TimeoutException</code></b>. If the packet has an extended header,
+     * its sequence number is overwritten with the id of the request.
+     * @param channel      channel of the transport of this loop the packet is
+     *                     sent from
+     * @param packet       packet bytes
+     * @param destination  address of the broker
+     * @param maxAttempts  maximum number of times the packet is sent
+     * @param timeoutMs    time to wait for an acknowledgement before resending
+     * @param closeChannel true if the channel should be closed once it has no
+     *                     outstanding requests left
+     * @return future of the acknowledgement
+     */
+    public CompletableFuture<Reply> request(DatagramIO channel, byte[] packet, SocketAddress destination,
+            int maxAttempts, int timeoutMs, boolean closeChannel) {
+        Request request = new Request();
+        request.channel = channel;
+        request.bytes = packet;
+        request.packet = ByteBuffer.wrap(packet);
+        request.destination = destination;
+        request.maxAttempts = maxAttempts;
+        request.timeoutMs = timeoutMs;
+        request.closeChannel = closeChannel;
+        submitted.add(request);
+        poller.wakeup();
+        if(!running) failSubmitted(); // The loop may have stopped before seeing the request
+        return request.result;
+    }
+
+    /**
+     * Closes a channel that was kept open between requests, failing any requests
+     * still outstanding on it.
+     * @param channel channel to be closed
+     */
+    public void close(DatagramIO channel) {
+        if(!running) {
+            try {
+                channel.close();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        closing.add(channel);
+        poller.wakeup();
+    }
+
+    /**
+     * Thread run method. Sends submitted requests, matches acknowledgements to
+     * outstanding requests and resends requests whose acknowledgement timed out,
+     * until the loop is closed.
+     *
+     * @see Thread#run()
+     * @see #close(Transport)
+     */
+    @Override
+    public void run() {
+        ByteBuffer[] ackBuffers = { ByteBuffer.allocate(MTU) };
+        InetSocketAddress[] senders = new InetSocketAddress[1];
+        ArrayList<Object> ready = new ArrayList<Object>();
+        while(running) {
+            try {
+                ready.clear();
+                poller.poll(TICK, ready);
+                closeChannels();
+                sendSubmitted();
+                for(Object channel : ready) {
+                    if(channels.containsKey(channel)) {
+                        receiveAcknowledgements((DatagramIO) channel, ackBuffers, senders);
+                    }
+                }
+                resendTimedOut();
+                runCompletions();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+        shutdown();
+    }
+
+    /**
+     * Fails every request the loop still holds, closes the channels it was asked
+     * to close and closes the poller.
+     */
+    private void shutdown() {
+        closeChannels();
+        for(Request request : new ArrayList<Request>(outstanding)) {
+            fail(request, new ClosedChannelException());
+        }
+        try {
+            runCompletions();
+            poller.close();
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+        failSubmitted();
+    }
+
+    /**
+     * Fails the requests submitted after the loop stopped. Safe to call from any
+     * thread, as every request is taken off the queue once.
+     */
+    private void failSubmitted() {
+        Request request;
+        while((request = submitted.poll()) != null) {
+            request.result.completeExceptionally(new ClosedChannelException());
+            closeIfAsked(request);
+        }
+    }
+
+    /**
+     * Completes the futures of the requests finished during this pass. Closed
+     * channels were deregistered before being closed, so their ports are free
+     * again by the time the application reacts to the completion.
+     */
+    private void runCompletions() throws Exception {
+        for(Runnable completion : completions) {
+            completion.run();
+        }
+        completions.clear();
+    }
+
+    /**
+     * Closes the channels which are no longer needed by their owners.
+     */
+    private void closeChannels() {
+        DatagramIO channel;
+        while((channel = closing.poll()) != null) {
+            Pending requests = channels.remove(channel);
+            if(requests != null) {
+                for(Request request : requests.all()) {
+                    fail(request, new ClosedChannelException());
+                }
+                poller.deregister(channel);
+            }
+            try {
+                channel.close();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the sequence number into the extended header of the packet.
+     */
+    private void setSequence(byte[] packet, int sequence) {
+        int position = Protocol.HEADER_LEN + Protocol.topicLength(packet);
+        for(int i = 0; i < Protocol.SEQ_LEN; i++) {
+            packet[position + i] = (byte) (sequence >>> (8 * (Protocol.SEQ_LEN - i - 1)));
+        }
+    }
+
+    /**
+     * Registers the channels of newly submitted requests and sends them.
+     */
+    private void sendSubmitted() {
+        Request request;
+        while((request = submitted.poll()) != null) {
+            try {
+                Pending requests = channels.get(request.channel);
+                if(requests == null) {
+                    poller.register(request.channel, request.channel);
+                    requests = new Pending();
+                    channels.put(request.channel, requests);
+                }
+                if(Protocol.isExtended(request.bytes)) {
+                    request.sequence = nextSequence++;
+                    setSequence(request.bytes, request.sequence);
+                }
+                requests.add(request);
+                outstanding.add(request);
+                request.start = transport.nanoTime();
+                transmit(request);
+            } catch(Exception e) {
+                fail(request, e);
+            }
+        }
+    }
+
+    /**
+     * Reads every acknowledgement available on the channel and completes the
+     * request each of them belongs to, including each of the acknowledgements
+     * packed into a <b><code>MULTI_ACK</code></b> packet.
+     */
+    private void receiveAcknowledgements(DatagramIO channel, ByteBuffer[] ackBuffers, InetSocketAddress[] senders)
+            throws Exception {
+        while(true) {
+            Pending requests = channels.get(channel);
+            if(requests == null) return; // Closed once its last request finished
+            ackBuffers[0].clear();
+            if(channel.receiveNow(ackBuffers, senders) == 0) return;
+            for(byte[] ack : AckCoalescer.unpack(ackBuffers[0].array(), ackBuffers[0].limit())) {
+                Request request = match(requests, ack);
+                if(request == null) {
+                    Log.warn(" [!] Received invalid ack!");
+                    continue;
+                }
+                Reply reply = new Reply(ack, request.attempts, transport.nanoTime() - request.start);
+                finish(request);
+                completions.add(() -> request.result.complete(reply));
+            }
+        }
+    }
+
+    /**
+     * Returns the request whose header the acknowledgement echoes. An extended
+     * acknowledgement is looked up by its sequence number, any other is matched
+     * to the oldest request with the same header. Only an extended header cut
+     * short, which carries no sequence number, is compared to every extended
+     * request.
+     */
+    private Request match(Pending requests, byte[] ack) {
+        if(ack.length < Protocol.HEADER_LEN || (byte) (ack[Protocol.PACKET_TYPE] & ~Protocol.EXTENDED) != Protocol.BROKER
+                || (ack[Protocol.DATA_TYPE] != Protocol.POS_ACK && ack[Protocol.DATA_TYPE] != Protocol.NEG_ACK))
+            return null;
+        if(!Protocol.isExtended(ack)) return match(requests.plain, ack);
+        if(ack.length < Protocol.headerLength(ack)) return match(requests.extended.values(), ack);
+        Request request = requests.extended.get(Protocol.sequence(ack));
+        return request != null && echoes(request.bytes, ack) ? request : null;
+    }
+
+    private Request match(Collection<Request> requests, byte[] ack) {
+        for(Request request : requests) {
+            if(echoes(request.bytes, ack)) return request;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the acknowledgement echoes the header of the sent packet.
+     */
+    private boolean echoes(byte[] sent, byte[] ack) {
+        int headerLength = Math.min(Protocol.headerLength(sent), sent.length); // A header cut short is echoed as sent
+        if(ack.length < headerLength || sent[Protocol.CACHE_REQ] != ack[Protocol.CACHE_REQ]) return false;
+        if((sent[Protocol.PACKET_TYPE] & Protocol.EXTENDED) != (ack[Protocol.PACKET_TYPE] & Protocol.EXTENDED)) return false;
+        for(int i = Protocol.TOPIC_LEN; i < headerLength; i++) {
+            if(sent[i] != ack[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Resends every request whose acknowledgement timed out, failing the ones
+     * which ran out of attempts.
+     */
+    private void resendTimedOut() {
+        long now = transport.nanoTime();
+        if(now - lastScan < TICK * 1000000L) return;
+        lastScan = now;
+        ArrayList<Request> expired = new ArrayList<Request>();
+        for(Request request : outstanding) {
+            if(now - request.deadline >= 0) expired.add(request);
+        }
+        for(Request request : expired) {
+            if(request.attempts >= request.maxAttempts) {
+                fail(request, new TimeoutException("No ack after " + request.attempts + " attempts"));
+                continue;
+            }
+            try {
+                transmit(request);
+            } catch(Exception e) {
+                fail(request, e);
+            }
+        }
+    }
+
+    private void transmit(Request request) throws Exception {
+        request.attempts++;
+        request.packet.rewind();
+        request.channel.queue(request.packet, request.destination);
+        request.channel.flush();
+        request.deadline = transport.nanoTime() + request.timeoutMs * 1000000L;
+    }
+
+    private void fail(Request request, Exception cause) {
+        finish(request);
+        completions.add(() -> request.result.completeExceptionally(cause));
+    }
+
+    /**
+     * Removes a request from the outstanding requests, closing its channel if
+     * asked to and no other request is waiting on it.
+     */
+    private void finish(Request request) {
+        outstanding.remove(request);
+        Pending requests = channels.get(request.channel);
+        if(requests == null) {
+            closeIfAsked(request);
+            return;
+        }
+        requests.remove(request);
+        if(requests.isEmpty() && request.closeChannel) {
+            channels.remove(request.channel);
+            poller.deregister(request.channel);
+            closeIfAsked(request);
+        }
+    }
+
+    private void closeIfAsked(Request request) {
+        if(!request.closeChannel) return;
+        try {
+            request.channel.close();
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package Protocol;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Circular buffer holding the most recent items of a topic in the order they
+ * were added. Appending an item and evicting the oldest item are both O(1). The
+ * backing array starts small and doubles in size until it reaches the limit it
+ * is asked to keep, so large limits do not cost memory for topics with little
+ * content. Not thread-safe, the owning <b><code>Cache</code></b> node locks
+ * around it.
+ */
+class RingBuffer<T> {
+    private final int INITIAL_CAPACITY = 4;
+
+    private Object[] items;
+    private int head; // Position of the oldest item
+    private int size;
+
+    /**
+     * <b><code>RingBuffer Constructor</code></b>. Creates an empty buffer.
+     */
+    RingBuffer() {
+        items = new Object[INITIAL_CAPACITY];
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Appends an item, evicting the oldest items if the buffer already holds the
+     * given limit.
+     *
+     * @param item  item to be appended
+     * @param limit maximum number of items kept
+     */
+    void add(T item, int limit) {
+        while (size >= limit && size > 0)
+            removeOldest();
+        if (size == items.length)
+            grow(limit);
+        items[(head + size) % items.length] = item;
+        size++;
+    }
+
+    /**
+     * Removes the first occurrence of the given item, shifting newer items back by
+     * one position. O(n), used only for removing subscribers.
+     *
+     * @param item item to be removed
+     * @return true if the item was found and removed, else false
+     */
+    boolean remove(Object item) {
+        for (int i = 0; i < size; i++) {
+            if (items[(head + i) % items.length].equals(item)) {
+                for (int j = i; j < size - 1; j++) {
+                    items[(head + j) % items.length] = items[(head + j + 1) % items.length];
+                }
+                items[(head + size - 1) % items.length] = null;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of items in the buffer.
+     *
+     * @return number of items
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Runs the action on every item from oldest to newest without copying the
+     * buffer.
+     *
+     * @param action action to be ran on each item
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super T> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept((T) items[(head + i) % items.length]);
+        }
+    }
+
+    /**
+     * Returns a copy of the items from oldest to newest.
+     *
+     * @return ArrayList of the items
+     */
+    ArrayList<T> toArrayList() {
+        ArrayList<T> list = new ArrayList<T>(size);
+        forEach(list::add);
+        return list;
+    }
+
+    private void removeOldest() {
+        items[head] = null;
+        head = (head + 1) % items.length;
+        size--;
+    }
+
+    /**
+     * Doubles the backing array, without going past the limit, and moves the
+     * oldest item to the start.
+     *
+     * @param limit maximum number of items kept
+     */
+    private void grow(int limit) {
+        Object[] grown = new Object[Math.max(items.length + 1, Math.min(items.length * 2, limit))];
+        for (int i = 0; i < size; i++) {
+            grown[i] = items[(head + i) % items.length];
+        }
+        items = grown;
+        head = 0;
+    }
+}
@@ -2,8 +2,9 @@ package Protocol.Subscriber;
 
 import java.lang.Runnable;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 
+import Protocol.Batch;
 import Protocol.Protocol;
 
 /**
@@ -33,12 +34,31 @@ public class PacketHandler implements Runnable {
     public void run() {
         sendAcknowledgement(Protocol.POS_ACK);
         byte[] data = unpack();
-        String topic = getTopic(data);
+        if (Protocol.isExtended(data) && !subscriber.markReceived((InetSocketAddress) packet.getSocketAddress(),
+                Protocol.sequence(data)))
+            return; // Retransmission of a packet whose acknowledgement was lost
+        if (data[Protocol.DATA_TYPE] == Protocol.BATCH) {
+            for (Batch.Record record : Batch.decode(data, Protocol.headerLength(data), data.length))
+                addContent(record.topic, record.dataType, record.payload);
+            return;
+        }
+        addContent(getTopic(data), data[Protocol.DATA_TYPE], getContent(data));
+    }
+
+    /**
+     * Decodes the payload according to its data type and adds it to the
+     * subscriber's cache under the given topic.
+     * 
+     * @param topic    topic of the content
+     * @param dataType <b><code>STR</code></b> or <b><code>INT</code></b>
+     * @param payload  content bytes
+     */
+    private void addContent(String topic, byte dataType, byte[] payload) {
         Object content;
-        if (data[Protocol.DATA_TYPE] == Protocol.STR) {
-            content = new String(getContent(data));
-        } else if (data[Protocol.DATA_TYPE] == Protocol.INT) {
-            content = integerContent(getContent(data));
+        if (dataType == Protocol.STR) {
+            content = new String(payload);
+        } else if (dataType == Protocol.INT) {
+            content = integerContent(payload);
         } else {
             System.out.println(" [!] Received unknown data type. Discarding packet.");
             return;
@@ -72,7 +92,7 @@ public class PacketHandler implements Runnable {
      * @see #unpack()
      */
     private byte[] getContent(byte[] data) {
-        int headerLength = (Protocol.HEADER_LEN + (0xFF & data[Protocol.TOPIC_LEN]));
+        int headerLength = Protocol.headerLength(data);
         byte[] bytes = new byte[data.length - headerLength];
         System.arraycopy(data, headerLength, bytes, 0, bytes.length);
         return bytes;
@@ -107,7 +127,8 @@ public class PacketHandler implements Runnable {
     }
 
     /**
-     * Sends an acknowledgement to the sender of the current packet. Regardless of
+     * Sends an acknowledgement to the sender of the current packet from the
+     * receiving socket of the subscriber. Regardless of
      * the <b><code>ackType</code></b>, an acknoweledgement confirms that the packet
      * was received.
      * 
@@ -118,17 +139,11 @@ public class PacketHandler implements Runnable {
      *                <b><code>NEG_ACK</code></b> for a NO answer.
      */
     private void sendAcknowledgement(byte ackType) {
-        byte[] header = new byte[Protocol.HEADER_LEN + (0xFF & packet.getData()[Protocol.TOPIC_LEN])];
+        byte[] header = new byte[Protocol.headerLength(packet.getData())];
         System.arraycopy(packet.getData(), 0, header, 0, header.length);
-        header[Protocol.PACKET_TYPE] = Protocol.SUBSCRIBER;
+        header[Protocol.PACKET_TYPE] = (byte) (Protocol.SUBSCRIBER
+                | (header[Protocol.PACKET_TYPE] & Protocol.EXTENDED));
         header[Protocol.DATA_TYPE] = ackType;
-        try {
-            DatagramPacket p = new DatagramPacket(header, header.length, packet.getAddress(), packet.getPort());
-            DatagramSocket socket = new DatagramSocket();
-            socket.send(p);
-            socket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        subscriber.acknowledge(header, (InetSocketAddress) packet.getSocketAddress());
     }
 }
@@ -1,9 +1,15 @@
 package Protocol.Subscriber;
 
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import Protocol.Cache;
+import Protocol.Transport;
 import Protocol.Connection.Connection;
 
 /**
@@ -11,6 +17,7 @@ import Protocol.Connection.Connection;
  */
 
 public class Subscriber {
+    private final int RECEIVED_HISTORY = 4096;
 
     private SubscriberSender sender;
 
@@ -19,6 +26,8 @@ public class Subscriber {
     private Thread receiverThread;
     private boolean showNotif;
     private Object recentMessage;
+    private LinkedHashMap<String, Boolean> received;
+    private volatile BiConsumer<String, Object> listener;
 
     /**
      * <b><code>Subscriber Constructor</code></b>. Takes in a local connection to
@@ -29,21 +38,41 @@ public class Subscriber {
      * @param destinationConnection connection to the broker
      */
     public Subscriber(Connection localConnection, Connection destinationConnection) {
+        this(localConnection, destinationConnection, Transport.udp());
+    }
+
+    /**
+     * <b><code>Subscriber Constructor</code></b>. Same as above, but receives
+     * content and sends its requests over the given transport instead of UDP.
+     * 
+     * @param localConnection       connection to the receiver
+     * @param destinationConnection connection to the broker
+     * @param transport             <b><code>Transport</code></b> the broker is
+     *                              reached over
+     */
+    public Subscriber(Connection localConnection, Connection destinationConnection, Transport transport) {
         cache = new Cache<Object>();
-        receiver = new SubscriberReceiver(localConnection, this);
-        sender = new SubscriberSender(destinationConnection, localConnection, this);
-        receiverThread = new Thread(receiver);
-        receiverThread.start();
         showNotif = true;
         recentMessage = null;
+        received = new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > RECEIVED_HISTORY;
+            }
+        };
+        receiver = new SubscriberReceiver(localConnection, this, transport);
+        sender = new SubscriberSender(destinationConnection, localConnection, this, transport);
+        receiverThread = new Thread(receiver);
+        receiverThread.start();
     }
 
     /**
      * Forces the receiver to stop listening for new broker packets and closes the
-     * socket.
+     * sockets.
      */
     public void close() {
         receiver.stop();
+        sender.close();
     }
 
     /**
@@ -71,10 +100,35 @@ public class Subscriber {
         sender.unsubscribe(topic);
     }
 
+    /**
+     * Same as <b><code>subscribe</code></b>, but returns immediately with a future
+     * which is completed once the broker acknowledges the subscription.
+     * 
+     * @param topic to which the subscriber is subscribing
+     * @param cache true if caching requested else false
+     * @return future of the outcome of the subscription
+     * @see SubscribeResult
+     */
+    public CompletableFuture<SubscribeResult> subscribeAsync(String topic, boolean cache) {
+        return sender.subscribeAsync(topic, cache);
+    }
+
+    /**
+     * Same as <b><code>unsubscribe</code></b>, but returns immediately with a
+     * future which is completed once the broker acknowledges the unsubscription.
+     * 
+     * @param topic from which to unsubscribe from
+     * @return future of the outcome of the unsubscription
+     * @see SubscribeResult
+     */
+    public CompletableFuture<SubscribeResult> unsubscribeAsync(String topic) {
+        return sender.unsubscribeAsync(topic);
+    }
+
     /**
      * After receiving a content packet from the broker, adds the content to this
      * subscriber's cache. If notifications are enabled, will print < ! > every time
-     * new content is added.
+     * new content is added. The content listener, if any, is called last.
      * 
      * @param topic   of the content
      * @param content <b><code>String</code></b> or <b><code>Integer</code></b>
@@ -85,6 +139,60 @@ public class Subscriber {
         recentMessage = content;
         if (showNotif)
             System.out.print("<!>");
+        BiConsumer<String, Object> current = listener;
+        if (current != null)
+            current.accept(topic, content);
+    }
+
+    /**
+     * Sets a listener which is called with the topic and content of every piece of
+     * content this subscriber receives, once it has been added to the cache. The
+     * listener is called on the thread that handled the packet, so it may be
+     * called by several threads at once.
+     * 
+     * @param listener listener of received content, or null to remove it
+     */
+    public void setContentListener(BiConsumer<String, Object> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how long acknowledgements of received packets wait for others to the
+     * same broker, so that they are sent together in one
+     * <b><code>MULTI_ACK</code></b> packet. A window of 0, the default, sends
+     * every acknowledgement straight away.
+     * 
+     * @param windowMs window in ms
+     */
+    public void setAckWindow(int windowMs) {
+        receiver.getAcks().setWindow(windowMs);
+    }
+
+    /**
+     * Sends an acknowledgement to a broker from the receiving socket.
+     * 
+     * @param ack    bytes of the acknowledgement
+     * @param broker address of the broker
+     */
+    void acknowledge(byte[] ack, InetSocketAddress broker) {
+        receiver.getAcks().acknowledge(ack, broker);
+    }
+
+    /**
+     * Records that a packet with an extended header has been received. Used to
+     * discard retransmissions of packets whose acknowledgement was lost, as the
+     * broker may have many packets in flight to this subscriber at once. Packets
+     * are told apart by the address and port they came from along with their
+     * sequence number, so that brokers on the same host don't collide, and a
+     * restarted broker starts its sequence numbers at a random point.
+     * 
+     * @param broker   address and port of the broker that sent the packet
+     * @param sequence sequence number of the packet
+     * @return true if the packet is new, false if it was already received
+     */
+    synchronized boolean markReceived(InetSocketAddress broker, int sequence) {
+        return received.put(broker.getAddress().getHostAddress() + ":" + broker.getPort() + "#" + sequence,
+                Boolean.TRUE) == null;
     }
 
     /**
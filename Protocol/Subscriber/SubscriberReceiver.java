@@ -1,8 +1,14 @@
 package Protocol.Subscriber;
 
 import java.lang.Runnable;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 
+import Protocol.AckCoalescer;
+import Protocol.DatagramIO;
+import Protocol.Execution;
+import Protocol.Transport;
 import Protocol.Connection.Connection;
 
 import java.net.DatagramPacket;
@@ -13,29 +19,44 @@ import java.net.DatagramPacket;
 
 class SubscriberReceiver implements Runnable {
     private final int MTU = 1500;
+    private final int BATCH = 32; // Most packets received per wakeup
     private Connection local;
     private Subscriber subscriber;
+    private Transport transport;
     private boolean listen;
-    private DatagramSocket socket;
+    private volatile DatagramIO io;
+    private AckCoalescer acks;
 
     /**
      * <b><code>SubscriberReceiver Constructor</b></code>. Takes in a connection to
      * which brokers will be sending content packets. Also takes in a reference to
-     * its parent subscriber.
+     * its parent subscriber and the transport the receiving socket is opened on.
+     * Acknowledgements are sent from the receiving socket.
      * 
      * @param local      <b><code>Connection</b></code> to the receiving port of the
      *                   subscriber
      * @param subscriber reference to the parent <b><code>Subscriber</b></code>
+     * @param transport  <b><code>Transport</b></code> of the receiving socket
      */
-    SubscriberReceiver(Connection local, Subscriber subscriber) {
+    SubscriberReceiver(Connection local, Subscriber subscriber, Transport transport) {
         this.local = local;
         this.subscriber = subscriber;
+        this.transport = transport;
+        acks = new AckCoalescer((ack, peer) -> {
+            try {
+                io.queue(ByteBuffer.wrap(ack), peer);
+                io.flush();
+            } catch (ClosedChannelException e) {
+                // Packets still being handled after the receiver stopped are not acknowledged
+            }
+        }, transport);
     }
 
     /**
      * Thread run method. Runs indefinitely until stopped, listening for packets
      * from brokers, and instanciating handlers to deal with the packets
-     * appropriately once received.
+     * appropriately once received. Every wakeup drains up to
+     * <b><code>BATCH</b></code> packets.
      * 
      * @see Thread#run()
      * @see PacketHandler
@@ -45,25 +66,40 @@ class SubscriberReceiver implements Runnable {
         listen = true;
         try {
             System.out.println("\u001B[1m\nSubscriber receiver running...\u001B[0m");
-            socket = new DatagramSocket(local.getPort(), local.getAddress());
+            io = transport.open(new InetSocketAddress(local.getAddress(), local.getPort()), false);
+            ByteBuffer[] buffers = new ByteBuffer[BATCH];
+            InetSocketAddress[] senders = new InetSocketAddress[BATCH];
+            for (int i = 0; i < BATCH; i++)
+                buffers[i] = ByteBuffer.allocate(MTU);
             while (listen) {
-                byte[] buffer = new byte[MTU];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                int received;
                 try {
-                    socket.receive(packet);
+                    received = io.receive(buffers, senders, 0);
                 } catch (Exception e) {
                     continue;
                 }
-                Thread thread = new Thread(new PacketHandler(packet, subscriber));
-                thread.start();
+                for (int i = 0; i < received; i++) {
+                    byte[] data = new byte[buffers[i].limit()];
+                    buffers[i].get(data).clear();
+                    Execution.start(new PacketHandler(new DatagramPacket(data, data.length, senders[i]), subscriber));
+                }
             }
-            socket.close();
+            io.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
         System.out.println("Subscriber listener stopped.");
     }
 
+    /**
+     * Returns the coalescer sending the acknowledgements of received packets.
+     * 
+     * @return <b><code>AckCoalescer</b></code> of the receiving socket
+     */
+    AckCoalescer getAcks() {
+        return acks;
+    }
+
     /**
      * Sets the listen boolean to false and forcibly attempts to close the listening
      * socket, causing an exception, which effectively causes the listener to stop
@@ -71,7 +107,12 @@ class SubscriberReceiver implements Runnable {
      */
     void stop() {
         listen = false;
-        if (socket != null)
-            socket.close();
+        acks.flush();
+        try {
+            if (io != null)
+                io.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -1,10 +1,16 @@
 package Protocol.Subscriber;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 import Protocol.Connection.Connection;
+import Protocol.DatagramIO;
 import Protocol.Protocol;
+import Protocol.RequestLoop;
+import Protocol.Transport;
 
 /**
  * @author Dominik Guzowski, 19334866
@@ -15,6 +21,9 @@ public class SubscriberSender {
     private final int ACK_TIMEOUT = 500;
     private Connection connection;
     private Connection local;
+    private Transport transport;
+    private DatagramIO channel; // Guarded by the lock of this sender
+    private boolean closed;
     public final static byte BROKER = (byte) 0x7F;
 
     /**
@@ -27,8 +36,22 @@ public class SubscriberSender {
      * @param subscriber reference to the parent Subscriber
      */
     public SubscriberSender(Connection connection, Connection local, Subscriber subscriber) {
+        this(connection, local, subscriber, Transport.udp());
+    }
+
+    /**
+     * <b><code>SubscriberSender Constructor</code></b>. Same as above, but sends
+     * its requests over the given transport instead of UDP.
+     * 
+     * @param connection <b><code>Connection</code></b> to the destination broker
+     * @param local      <b><code>Connection</code></b> of the subscriber
+     * @param subscriber reference to the parent Subscriber
+     * @param transport  <b><code>Transport</code></b> the broker is reached over
+     */
+    public SubscriberSender(Connection connection, Connection local, Subscriber subscriber, Transport transport) {
         this.connection = connection;
         this.local = local;
+        this.transport = transport;
     }
 
     /**
@@ -36,121 +59,154 @@ public class SubscriberSender {
      * for the specified topic and information regarding whether the subscription is
      * to be cached or not. Caching means that the subscriber will be receiving
      * future content that is yet to be published and not caching works like a GET
-     * Request and gets only currently cached content from the broker. <br>
+     * Request and gets only currently cached content from the broker. Blocks until
+     * the broker acknowledges the subscription or all attempts are used up. <br>
      * </br>
      * Topic length may not exceed 255 characters.
      * 
      * @param topic that the subscriber wants to subscribe to
      * @param cache true if caching requested else false
+     * @see #subscribeAsync(String, boolean)
      */
     public void subscribe(String topic, boolean cache) {
-        if (topic.length() > 255) {
-            System.out.println(" [!] Topic length exceeds maximum length of 255 characters.");
-            System.out.println(" [!] Subscription not sent.");
-            return;
-        }
-
-        byte[] header = assembleHeader(true, cache, topic.length());
-        byte[] topicBytes = topic.getBytes();
-        byte[] buffer = new byte[header.length + topicBytes.length];
-        System.arraycopy(header, 0, buffer, 0, header.length);
-        System.arraycopy(topicBytes, 0, buffer, header.length, topicBytes.length);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, connection.getAddress(),
-                connection.getPort());
-        try {
-            DatagramSocket socket = new DatagramSocket(local.getPort() - 1, local.getAddress());
-            boolean ackReceived = false;
-            int attempts = 0;
-            while (!ackReceived && attempts < MAX_ATTEMPTS) {
-                attempts++;
-                byte[] ackBuffer = new byte[buffer.length];
-                DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                System.out.println(" $ Sending subscription.");
-                socket.send(packet);
-                socket.setSoTimeout(ACK_TIMEOUT);
-                try {
-                    socket.receive(ackPacket);
-                    ackReceived = verifyAcknowledgement(buffer, ackPacket);
-                    if (ackReceived)
-                        if (ackPacket.getData()[Protocol.DATA_TYPE] == Protocol.POS_ACK)
-                            System.out.println(" > Ack Received! Subscription successful. Attempt " + attempts + "/"
-                                    + MAX_ATTEMPTS + ".");
-                        else
-                            System.out.println(" > Ack Received! Subscription failed. Attempt " + attempts + "/"
-                                    + MAX_ATTEMPTS + ".");
-                    else
-                        System.out.println(" [!] Received invalid ack! Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
-                } catch (Exception e) {
-                    System.out.println(" [!] Didn't receive ack! Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
-                }
-            }
-            socket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println(" [!] Socket error.");
-            System.out.println(" [!] Subscription not sent.");
-        }
+        await(subscribeAsync(topic, cache), "Subscription");
     }
 
     /**
      * Unsubscribe function that sends an unsubscription packet to the broker for a
      * given topic, after which the broker will no longer be sending new content to
-     * this subscriber. <br>
+     * this subscriber. Blocks until the broker acknowledges the unsubscription or
+     * all attempts are used up. <br>
      * </br>
      * Topic length may not exceed 255 characters.
      * 
      * @param topic from which the subscriber wants to unsubscribe from
+     * @see #unsubscribeAsync(String)
      */
     public void unsubscribe(String topic) {
-        if (topic.length() > 255) {
-            System.out.println(" [!] Topic length exceeds maximum length of 255 characters.");
-            System.out.println(" [!] Unsubscription not sent.");
-            return;
+        await(unsubscribeAsync(topic), "Unsubscription");
+    }
+
+    /**
+     * Same as <b><code>subscribe</code></b>, but returns immediately with a future
+     * which is completed once the broker acknowledges the subscription. The future
+     * is completed exceptionally if the subscription cannot be sent or is never
+     * acknowledged.
+     * 
+     * @param topic that the subscriber wants to subscribe to
+     * @param cache true if caching requested else false
+     * @return future of the outcome of the subscription
+     * @see SubscribeResult
+     */
+    public CompletableFuture<SubscribeResult> subscribeAsync(String topic, boolean cache) {
+        return send(topic, true, cache, "Subscription");
+    }
+
+    /**
+     * Same as <b><code>unsubscribe</code></b>, but returns immediately with a
+     * future which is completed once the broker acknowledges the unsubscription.
+     * 
+     * @param topic from which the subscriber wants to unsubscribe from
+     * @return future of the outcome of the unsubscription
+     * @see SubscribeResult
+     */
+    public CompletableFuture<SubscribeResult> unsubscribeAsync(String topic) {
+        return send(topic, false, false, "Unsubscription");
+    }
+
+    /**
+     * Queues a subscription or unsubscription packet to be sent through the
+     * <b><code>RequestLoop</code></b> of the transport. Requests are sent from the
+     * port just below the receiving port of the subscriber, as the broker sends
+     * content to the port after the one the request came from. The channel bound
+     * to that port is kept open and shared by all requests, which carry an
+     * extended header so that any number of them can wait for their
+     * acknowledgements at once.
+     * 
+     * @param topic topic of the request
+     * @param sub   true if subscribing, false if unsubscribing
+     * @param cache true if caching requested else false
+     * @param name  name of the request used in messages
+     * @return future of the outcome of the request
+     */
+    private CompletableFuture<SubscribeResult> send(String topic, boolean sub, boolean cache, String name) {
+        String error = topic.isEmpty() ? "Topic may not be empty"
+                : topic.length() > 255 ? "Topic length exceeds maximum length of 255 characters" : null;
+        if (error != null) {
+            System.out.println(" [!] " + error + ".");
+            System.out.println(" [!] " + name + " not sent.");
+            CompletableFuture<SubscribeResult> failed = new CompletableFuture<SubscribeResult>();
+            failed.completeExceptionally(new IllegalArgumentException(error));
+            return failed;
         }
 
-        byte[] header = assembleHeader(false, false, topic.length());
+        byte[] header = assembleHeader(sub, cache, topic.length());
         byte[] topicBytes = topic.getBytes();
-        byte[] buffer = new byte[header.length + topicBytes.length];
+        byte[] buffer = new byte[header.length + topicBytes.length + Protocol.SEQ_LEN];
         System.arraycopy(header, 0, buffer, 0, header.length);
         System.arraycopy(topicBytes, 0, buffer, header.length, topicBytes.length);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, connection.getAddress(),
-                connection.getPort());
+        InetSocketAddress broker = new InetSocketAddress(connection.getAddress(), connection.getPort());
+        CompletableFuture<RequestLoop.Reply> reply;
         try {
-            DatagramSocket socket = new DatagramSocket(local.getPort() - 1, local.getAddress());
-            boolean ackReceived = false;
-            int attempts = 0;
-            while (!ackReceived && attempts < MAX_ATTEMPTS) {
-                attempts++;
-                byte[] ackBuffer = new byte[buffer.length];
-                DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                System.out.println(" $ Sending unsubscription.");
-                socket.send(packet);
-                socket.setSoTimeout(ACK_TIMEOUT);
-                try {
-                    socket.receive(ackPacket);
-                    ackReceived = verifyAcknowledgement(buffer, ackPacket);
-                    if (ackReceived)
-                        if (ackPacket.getData()[Protocol.DATA_TYPE] == Protocol.POS_ACK)
-                            System.out.println(" > Ack Received! Unsubscription successful. Attempt " + attempts + "/"
-                                    + MAX_ATTEMPTS + ".");
-                        else
-                            System.out.println(" > Ack Received! Unsubscription failed. Attempt " + attempts + "/"
-                                    + MAX_ATTEMPTS + ".");
-                    else
-                        System.out.println(" [!] Received invalid ack! Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
-                } catch (Exception e) {
-                    System.out.println(" [!] Didn't receive ack! Attempt " + attempts + "/" + MAX_ATTEMPTS + ".");
-                }
-            }
-            socket.close();
+            System.out.println(" $ Sending " + name.toLowerCase() + ".");
+            reply = RequestLoop.of(transport).request(channel(), buffer, broker, MAX_ATTEMPTS, ACK_TIMEOUT, false);
         } catch (Exception e) {
             System.out.println(" [!] Socket error.");
-            System.out.println(" [!] Unubscription not sent.");
+            System.out.println(" [!] " + name + " not sent.");
+            reply = new CompletableFuture<RequestLoop.Reply>();
+            reply.completeExceptionally(e);
         }
+        return reply.thenApply(ack -> new SubscribeResult(ack.ackType(), ack.attempts, ack.latencyNanos));
     }
 
     /**
-     * Puts together the header of the packet excluding the topic bytes.
+     * Returns the channel requests are sent from, binding it the first time it is
+     * needed.
+     * 
+     * @return channel bound to the port below the receiving port
+     * @throws Exception if the port cannot be bound or the sender was closed
+     */
+    private synchronized DatagramIO channel() throws Exception {
+        if (closed)
+            throw new ClosedChannelException();
+        if (channel == null)
+            channel = transport.open(new InetSocketAddress(local.getAddress(), local.getPort() - 1), false);
+        return channel;
+    }
+
+    /**
+     * Closes the channel requests are sent from, failing any requests still
+     * waiting for an acknowledgement.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (channel != null)
+            RequestLoop.of(transport).close(channel);
+        channel = null;
+    }
+
+    /**
+     * Waits for the request to finish and prints its outcome. Printing is left to
+     * the waiting thread, as the future is completed on the thread of the
+     * <b><code>RequestLoop</code></b>.
+     * 
+     * @param request future of the request
+     * @param name    name of the request used in messages
+     */
+    private void await(CompletableFuture<SubscribeResult> request, String name) {
+        try {
+            SubscribeResult result = request.join();
+            System.out.println(" > Ack Received! " + name + (result.isAccepted() ? " successful" : " failed")
+                    + ". Attempt " + result.getAttempts() + "/" + MAX_ATTEMPTS + ".");
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException)
+                System.out.println(" [!] Didn't receive ack after " + MAX_ATTEMPTS + " attempts.");
+        }
+    }
+
+    /**
+     * Puts together the header of the packet excluding the topic bytes and the
+     * sequence number.
      * 
      * @param sub   true if subscribing, false if unsubscribing
      * @param cache true if caching requested else false
@@ -158,38 +214,8 @@ public class SubscriberSender {
      * @return header byte array
      */
     private byte[] assembleHeader(boolean sub, boolean cache, int len) {
-        byte[] header = { Protocol.SUBSCRIBER, cache ? Protocol.CACHE_Y : Protocol.CACHE_N,
+        byte[] header = { (byte) (Protocol.SUBSCRIBER | Protocol.EXTENDED), cache ? Protocol.CACHE_Y : Protocol.CACHE_N,
                 sub ? Protocol.SUB : Protocol.UNSUB, (byte) len };
         return header;
     }
-
-    /**
-     * Takes in byte array buffer that was used to send the packet and the received
-     * acknowledgement packet. Compares the headers of the two and checks if
-     * appropriate bytes have been changed to represent an acknowledgement.
-     * 
-     * @param buffer    with header and payload of the packet that was sent
-     * @param ackPacket acknowledgement packet that was received in response to
-     *                  sending a content packet
-     * @return <br>
-     *         </br>
-     *         <b><code>true</code></b> if the acknowledgement packet was valid <br>
-     *         </br>
-     *         <b><code>false</code></b> if the acknowledgement packet was not valid
-     */
-    private boolean verifyAcknowledgement(byte[] buffer, DatagramPacket ackPacket) {
-        byte[] data = new byte[ackPacket.getLength()];
-        System.arraycopy(ackPacket.getData(), 0, data, 0, data.length);
-
-        if (data[Protocol.PACKET_TYPE] != Protocol.BROKER
-                || (data[Protocol.DATA_TYPE] != Protocol.POS_ACK && data[Protocol.DATA_TYPE] != Protocol.NEG_ACK))
-            return false;
-
-        for (int i = 3; i < data.length; i++) {
-            if (data[i] != buffer[i]) {
-                return false;
-            }
-        }
-        return true;
-    }
 }
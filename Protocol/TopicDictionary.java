@@ -0,0 +1,194 @@
+package Protocol;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Two way mapping between topics and the compact ids that a broker assigns to
+ * them, so that packets can carry a 2 byte <b><code>TOPIC_ID</code></b> instead
+ * of up to 255 topic bytes. The broker assigns ids with
+ * <b><code>register</code></b>, while publishers remember the ids assigned to
+ * them with <b><code>put</code></b>. <br>
+ * </br>
+ * Ids are only valid together with the <b><code>epoch</code></b> of the
+ * dictionary that assigned them, which is picked at random whenever a broker
+ * starts. A restarted broker assigns ids from 0 again, so it refuses ids sent
+ * with an old epoch, and a publisher that is given a new epoch forgets every id
+ * it was given before. Every topic is kept as a single canonical
+ * <b><code>String</code></b> instance, so a topic resolved from an id has its
+ * hash already computed and compares equal by reference in the maps it is used
+ * as a key of. Safe to use from many threads at once.
+ */
+public class TopicDictionary {
+    public static final int NO_ID = -1;
+    public static final int MAX_ID = 0xFFFF; // Largest id that fits in TOPIC_ID_LEN bytes
+    public static final int MAX_EPOCH = 0x7FFF; // Largest epoch that keeps a reference non-negative
+
+    private final int INITIAL_CAPACITY = 64;
+
+    private ConcurrentHashMap<String, Integer> ids;
+    private volatile AtomicReferenceArray<String> topics;
+    private int nextId;
+    private volatile int epoch;
+
+    /**
+     * <b><code>TopicDictionary Constructor</code></b>. Creates an empty
+     * dictionary with a random epoch.
+     */
+    public TopicDictionary() {
+        ids = new ConcurrentHashMap<String, Integer>();
+        topics = new AtomicReferenceArray<String>(INITIAL_CAPACITY);
+        nextId = 0;
+        epoch = ThreadLocalRandom.current().nextInt(MAX_EPOCH + 1);
+    }
+
+    /**
+     * Returns the epoch the ids of this dictionary are valid in.
+     * @return epoch of the broker that assigned the ids
+     */
+    public int epoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the id of the topic, assigning the next free id to it if it doesn't
+     * have one yet.
+     * @param topic topic/subtopics, without the * and ** operators
+     * @return id of the topic, or <b><code>NO_ID</code></b> if all ids are taken
+     */
+    public int register(String topic) {
+        Integer id = ids.get(topic);
+        if(id != null) return id;
+        synchronized(this) {
+            id = ids.get(topic);
+            if(id != null) return id;
+            if(nextId > MAX_ID) return NO_ID;
+            store(topic, nextId);
+            return nextId++;
+        }
+    }
+
+    /**
+     * Remembers the id that a broker assigned to the topic. If the broker has a
+     * different epoch than the ids remembered so far, it has restarted since and
+     * they are all forgotten.
+     * @param topic topic/subtopics
+     * @param id    id assigned by the broker
+     * @param epoch epoch of the broker
+     */
+    public synchronized void put(String topic, int id, int epoch) {
+        if(id < 0 || id > MAX_ID) return;
+        if(epoch != this.epoch) {
+            ids.clear();
+            topics = new AtomicReferenceArray<String>(INITIAL_CAPACITY);
+            this.epoch = epoch;
+        }
+        String previous = topic(id);
+        if(previous != null) ids.remove(previous);
+        store(topic, id);
+    }
+
+    /**
+     * Forgets the id of the topic, for example after the broker refused it.
+     * @param topic topic/subtopics
+     */
+    public synchronized void remove(String topic) {
+        Integer id = ids.remove(topic);
+        if(id != null) topics.set(id, null);
+    }
+
+    /**
+     * Returns the id of the topic together with the epoch it was assigned in,
+     * read at once so that an id is never paired with the epoch of a broker that
+     * was not the one to assign it.
+     * @param topic topic/subtopics
+     * @return reference to the topic, or <b><code>NO_ID</code></b> if it has no id
+     * @see #reference(int, int)
+     */
+    public synchronized int reference(String topic) {
+        Integer id = ids.get(topic);
+        return id == null ? NO_ID : reference(id, epoch);
+    }
+
+    /**
+     * Packs a topic id and the epoch it was assigned in into a single value.
+     * @param id    topic id
+     * @param epoch epoch of the broker that assigned the id
+     * @return non-negative reference, with the epoch above the 16 bits of the id
+     */
+    public static int reference(int id, int epoch) {
+        return (epoch << 16) | id;
+    }
+
+    /**
+     * Returns the id of the topic.
+     * @param topic topic/subtopics
+     * @return id of the topic, or <b><code>NO_ID</code></b> if it has none
+     */
+    public int id(String topic) {
+        Integer id = ids.get(topic);
+        return id == null ? NO_ID : id;
+    }
+
+    /**
+     * Returns the canonical instance of the topic with the given id.
+     * @param id topic id
+     * @return topic/subtopics, or null if no topic has the id
+     */
+    public String topic(int id) {
+        AtomicReferenceArray<String> current = topics;
+        return id >= 0 && id < current.length() ? current.get(id) : null;
+    }
+
+    /**
+     * Returns the canonical instance of the topic with the given id, if the id
+     * was assigned in the given epoch.
+     * @param id    topic id
+     * @param epoch epoch the id was assigned in
+     * @return topic/subtopics, or null if no topic has the id in this epoch
+     */
+    public String topic(int id, int epoch) {
+        return epoch == this.epoch ? topic(id) : null;
+    }
+
+    /**
+     * Returns the canonical instance of the topic if it has an id, so that
+     * equal topics decoded from different packets share one instance.
+     * @param topic topic/subtopics
+     * @return canonical instance of the topic, or the topic itself if it has no id
+     */
+    public String intern(String topic) {
+        String canonical = topic(id(topic));
+        return canonical != null ? canonical : topic;
+    }
+
+    /**
+     * Returns the number of topics that have an id.
+     * @return number of topics
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Stores the mapping in both directions, growing the id table if needed. Must
+     * be called while holding the lock of this dictionary.
+     */
+    private void store(String topic, int id) {
+        AtomicReferenceArray<String> current = topics;
+        if(id >= current.length()) {
+            int length = current.length();
+            while(length <= id) length *= 2;
+            AtomicReferenceArray<String> grown = new AtomicReferenceArray<String>(Math.min(length, MAX_ID + 1));
+            for(int i = 0; i < current.length(); i++) grown.set(i, current.get(i));
+            topics = current = grown;
+        }
+        current.set(id, topic);
+        ids.put(topic, id);
+    }
+}
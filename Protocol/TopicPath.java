@@ -0,0 +1,210 @@
+package Protocol;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * This class walks topic paths such as <b>"TopicName/SubTopic/*"</b> in place,
+ * using offsets into the topic string instead of splitting it, so that topics
+ * can be parsed and matched on every packet without creating garbage. Empty
+ * segments are skipped, so <b>"A//B/"</b> is walked as <b>"A/B"</b>.
+ */
+public final class TopicPath {
+    public static final char SEPARATOR = '/';
+
+    /**
+     * Returns the position of the first character of the segment starting at or
+     * after the given position, skipping any separators.
+     * @param path topic path
+     * @param from position to start looking from
+     * @return start of the next segment, or the length of the path if there are
+     *         no more segments
+     */
+    public static int segmentStart(CharSequence path, int from) {
+        while (from < path.length() && path.charAt(from) == SEPARATOR) from++;
+        return from;
+    }
+
+    /**
+     * Returns the position just after the last character of the segment starting
+     * at the given position.
+     * @param path  topic path
+     * @param start start of the segment
+     * @return end of the segment (exclusive)
+     */
+    public static int segmentEnd(CharSequence path, int start) {
+        while (start < path.length() && path.charAt(start) != SEPARATOR) start++;
+        return start;
+    }
+
+    /**
+     * Returns the number of non-empty segments of the path.
+     * @param path topic path
+     * @return number of segments
+     */
+    public static int segmentCount(CharSequence path) {
+        int count = 0;
+        int start = segmentStart(path, 0);
+        while (start < path.length()) {
+            count++;
+            start = segmentStart(path, segmentEnd(path, start));
+        }
+        return count;
+    }
+
+    /**
+     * Returns the main topic of the path, which is its first segment.
+     * @param path topic path
+     * @return main topic
+     */
+    public static String mainTopic(String path) {
+        int start = segmentStart(path, 0);
+        int end = segmentEnd(path, start);
+        return start == 0 && end == path.length() ? path : path.substring(start, end);
+    }
+
+    /**
+     * Checks if the segment of the path between the given positions is the * or **
+     * operator.
+     * @param path  topic path
+     * @param start start of the segment
+     * @param end   end of the segment (exclusive)
+     * @return true if the segment is * or **, else false
+     */
+    public static boolean isWildcard(CharSequence path, int start, int end) {
+        int length = end - start;
+        return (length == 1 || length == 2) && path.charAt(start) == '*' && path.charAt(end - 1) == '*';
+    }
+
+    /**
+     * Compares two segments character by character.
+     * @return true if the segments are equal, else false
+     */
+    public static boolean segmentEquals(CharSequence a, int aStart, int aEnd, CharSequence b, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) return false;
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (a.charAt(aStart + i) != b.charAt(bStart + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares a topic to a subscribed topic to check whether they match, either
+     * directly or with the use of the * and ** operators. <br>
+     * </br>
+     * * means get all subtopics excluding the given topic. TopicName/* returns all
+     * subtopics of TopicName but not TopicName itself. <br>
+     * </br>
+     * ** means get all subtopics including the given topic. TopicName/** returns
+     * all subtopics of TopicName and TopicName itself.
+     * @param topic    topic to which content is published
+     * @param subTopic subscribed topic to be compared to the topic
+     * @return true if the topics match, else false
+     */
+    public static boolean matches(CharSequence topic, CharSequence subTopic) {
+        int topicCount = segmentCount(topic);
+        int subCount = segmentCount(subTopic);
+        int lastEnd = subTopic.length();
+        while (lastEnd > 0 && subTopic.charAt(lastEnd - 1) == SEPARATOR) lastEnd--;
+        int lastStart = lastEnd;
+        while (lastStart > 0 && subTopic.charAt(lastStart - 1) != SEPARATOR) lastStart--;
+        boolean lastWildcard = subCount > 0 && isWildcard(subTopic, lastStart, lastEnd);
+        boolean lastAll = lastWildcard && lastEnd - lastStart == 2;
+
+        if (subCount - topicCount > 1) return false;
+        if (subCount - topicCount == 1 && !lastWildcard) return false;
+
+        int t = segmentStart(topic, 0);
+        int s = segmentStart(subTopic, 0);
+        for (int i = 0; i < topicCount; i++) {
+            int tEnd = segmentEnd(topic, t);
+            if (i < subCount) {
+                int sEnd = segmentEnd(subTopic, s);
+                if (!isWildcard(subTopic, s, sEnd) && !segmentEquals(topic, t, tEnd, subTopic, s, sEnd)) return false;
+                s = segmentStart(subTopic, sEnd);
+            } else {
+                return lastWildcard;
+            }
+            t = segmentStart(topic, tEnd);
+        }
+        return topicCount >= subCount || lastAll;
+    }
+
+    /**
+     * A segment of a topic path used as a key of the subtopic maps. Hashes and
+     * compares equal to any other segment with the same characters, so a single
+     * reusable segment can be pointed at part of a topic path to look up a
+     * subtopic without creating a substring.
+     */
+    public static final class Segment implements CharSequence {
+        private CharSequence source;
+        private int start;
+        private int end;
+        private int hash;
+
+        /**
+         * Creates an empty segment, to be pointed at a path with set().
+         */
+        public Segment() {
+            set("", 0, 0);
+        }
+
+        /**
+         * Creates a segment holding the given name.
+         * @param name segment name
+         */
+        public Segment(String name) {
+            set(name, 0, name.length());
+        }
+
+        /**
+         * Points this segment at part of a path.
+         * @param source path
+         * @param start  start of the segment
+         * @param end    end of the segment (exclusive)
+         * @return this segment
+         */
+        public Segment set(CharSequence source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            int h = 0;
+            for (int i = start; i < end; i++) h = 31 * h + source.charAt(i);
+            hash = h;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return source.subSequence(start + from, start + to);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Segment)) return false;
+            Segment other = (Segment) o;
+            return hash == other.hash && segmentEquals(source, start, end, other.source, other.start, other.end);
+        }
+
+        @Override
+        public String toString() {
+            return source.subSequence(start, end).toString();
+        }
+    }
+}
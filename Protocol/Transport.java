@@ -0,0 +1,155 @@
+package Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * The network the broker, publishers and subscribers send their packets over,
+ * along with the clock their timeouts, retransmissions and timers are measured
+ * by.
+ * Every socket of the protocol is opened through a transport, so the same
+ * broker and clients can run over real UDP sockets or entirely in memory. <br>
+ * </br>
+ * <b><code>udp()</code></b> is the default of every constructor which isn't
+ * given a transport. <b><code>MemoryTransport</code></b> delivers datagrams
+ * between sockets of the same process and keeps a virtual clock, so that a
+ * broker and thousands of clients can be run in one JVM without real sockets
+ * and without timing noise.
+ *
+ * @see DatagramIO
+ * @see MemoryTransport
+ */
+public interface Transport {
+
+    /**
+     * Opens a socket bound to the given address.
+     *
+     * @param local     address to bind to, or null to bind to an ephemeral port
+     *                  of the wildcard address
+     * @param reusePort true if several sockets may share the address, each
+     *                  receiving datagrams of a share of the senders
+     * @return batched I/O of the bound socket
+     * @throws IOException if the address is in use or cannot be bound
+     */
+    DatagramIO open(InetSocketAddress local, boolean reusePort) throws IOException;
+
+    /**
+     * Checks whether several sockets can share an address on this transport.
+     *
+     * @return true if <b><code>open</code></b> supports
+     *         <b><code>reusePort</code></b>, else false
+     */
+    boolean supportsReusePort();
+
+    /**
+     * Opens a poller which a single thread can wait on many sockets of this
+     * transport with.
+     *
+     * @return new poller
+     * @throws IOException if the poller could not be opened
+     */
+    Poller poller() throws IOException;
+
+    /**
+     * Returns the current time of the clock of this transport, which timeouts
+     * and retransmissions are measured by.
+     *
+     * @return time in ms
+     */
+    long currentTimeMillis();
+
+    /**
+     * Returns the current time of the clock of this transport with nanosecond
+     * precision, only meaningful as a difference between two calls.
+     *
+     * @return time in ns
+     */
+    long nanoTime();
+
+    /**
+     * Runs the task once the given time has passed on the clock of this
+     * transport. Tasks run one at a time on a thread of the transport, so they
+     * must not block.
+     *
+     * @param task    task to be run
+     * @param delayMs time to wait before running the task in ms
+     * @return timeout which cancels the task if it hasn't run yet
+     */
+    Timeout schedule(Runnable task, long delayMs);
+
+    /**
+     * Returns the transport over UDP sockets of the operating system, whose clock
+     * is the system clock.
+     *
+     * @return shared UDP transport
+     */
+    static Transport udp() {
+        return UdpTransport.INSTANCE;
+    }
+
+    /**
+     * A task scheduled on the clock of a transport.
+     */
+    interface Timeout {
+
+        /**
+         * Stops the task from running, if it hasn't run yet.
+         */
+        void cancel();
+    }
+
+    /**
+     * Waits on many sockets of a transport at once, reporting which of them have
+     * datagrams to receive. Each socket is registered with an attachment, which
+     * is what <b><code>poll</code></b> reports. Only the thread polling may
+     * register and deregister sockets.
+     */
+    interface Poller {
+
+        /**
+         * Starts waiting on the socket.
+         *
+         * @param io         socket opened by the transport of this poller
+         * @param attachment object reported when the socket is readable
+         * @throws IOException if the socket was closed
+         */
+        void register(DatagramIO io, Object attachment) throws IOException;
+
+        /**
+         * Stops waiting on the socket, so that it can be closed.
+         *
+         * @param io registered socket
+         */
+        void deregister(DatagramIO io);
+
+        /**
+         * Waits until at least one registered socket has datagrams to receive, the
+         * timeout passes on the clock of the transport or
+         * <b><code>wakeup()</code></b> is called.
+         *
+         * @param timeoutMs longest time to wait in ms
+         * @param ready     list receiving the attachment of every readable socket
+         * @return number of readable sockets
+         * @throws IOException if the poller fails
+         */
+        int poll(long timeoutMs, List<Object> ready) throws IOException;
+
+        /**
+         * Makes a thread waiting in <b><code>poll</code></b> return. May be called
+         * from any thread.
+         */
+        void wakeup();
+
+        /**
+         * Closes the poller.
+         *
+         * @throws IOException if the poller could not be closed
+         */
+        void close() throws IOException;
+    }
+}
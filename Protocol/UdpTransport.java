@@ -0,0 +1,149 @@
+package Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * <b><code>Transport</code></b> over non-blocking UDP channels of the operating
+ * system, timed by the system clock. Pollers wait on the channels with a
+ * <b><code>Selector</code></b>, and scheduled tasks run on a single timer
+ * thread, started the first time a task is scheduled.
+ */
+final class UdpTransport implements Transport {
+    static final UdpTransport INSTANCE = new UdpTransport();
+
+    private ScheduledThreadPoolExecutor timer; // Guarded by the lock of this transport
+
+    private UdpTransport() {
+    }
+
+    @Override
+    public DatagramIO open(InetSocketAddress local, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(local);
+            return new ChannelDatagramIO(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean supportsReusePort() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Poller poller() throws IOException {
+        return new SelectorPoller(Selector.open());
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delayMs) {
+        ScheduledFuture<?> future = timer().schedule(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return () -> future.cancel(false);
+    }
+
+    private synchronized ScheduledThreadPoolExecutor timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, Execution.threadFactory(false, "\u001B[33mTimer "));
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Poller waiting on the channels of the registered sockets with a selector.
+     */
+    private static final class SelectorPoller implements Poller {
+        private Selector selector;
+
+        SelectorPoller(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void register(DatagramIO io, Object attachment) throws IOException {
+            ((ChannelDatagramIO) io).channel().register(selector, SelectionKey.OP_READ, attachment);
+        }
+
+        /**
+         * Cancels the key of the channel and deregisters it from the selector
+         * straight away, so that its port is free as soon as the channel is closed.
+         */
+        @Override
+        public void deregister(DatagramIO io) {
+            SelectionKey key = ((ChannelDatagramIO) io).channel().keyFor(selector);
+            if (key == null)
+                return;
+            key.cancel();
+            try {
+                selector.selectNow();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public int poll(long timeoutMs, List<Object> ready) throws IOException {
+            selector.select(timeoutMs);
+            int count = 0;
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    ready.add(key.attachment());
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void wakeup() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void close() throws IOException {
+            selector.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import Protocol.Broker.BrokerBench;
+import Protocol.Publisher.PublisherBench;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Microbenchmarks of the hot paths of the protocol. Every case is run for a
+ * number of warm-up iterations, so that the JIT has compiled it, and then for a
+ * number of measured iterations of a fixed length, reporting the mean time per
+ * operation, its standard deviation across iterations and the bytes allocated
+ * per operation. <br>
+ * </br>
+ * The parameter sets of every case are fixed and its inputs are generated from
+ * <b><code>SEED</code></b>, so that runs on the same machine can be compared
+ * before and after a change. Benchmarks that need package-private parts of the
+ * protocol live in the same package under bench/.
+ */
+public final class Bench {
+    public static final long SEED = 19334866;
+    private static final int CALLS_PER_CHECK = 1024;
+
+    private static volatile long sink;
+
+    /**
+     * An operation being measured. Returns a value derived from its result, which
+     * the harness accumulates, so that the JIT cannot discard the work.
+     */
+    public interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @param i number of the call, used to cycle through prepared inputs
+         * @return value derived from the result
+         */
+        long run(int i);
+    }
+
+    /**
+     * A benchmarked operation with one set of parameters.
+     */
+    public static final class Case {
+        private final String name;
+        private final String params;
+        private final Supplier<Operation> setup;
+
+        /**
+         * <b><code>Case Constructor</code></b>.
+         *
+         * @param name   name of the benchmark
+         * @param params parameters of this case, such as "subscribers=1000"
+         * @param setup  prepares the inputs and returns the operation, only called
+         *               if the case is run
+         */
+        public Case(String name, String params, Supplier<Operation> setup) {
+            this.name = name;
+            this.params = params;
+            this.setup = setup;
+        }
+    }
+
+    private Bench() {
+    }
+
+    public static void main(String[] args) {
+        // args[0] = (optional) regex selecting cases by name and parameters
+        // args[1] = (optional) number of warm-up iterations
+        // args[2] = (optional) number of measured iterations
+        // args[3] = (optional) length of each iteration in ms
+
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".");
+        int warmups = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int millis = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+
+        List<Case> cases = new ArrayList<Case>();
+        cases.addAll(CacheBench.cases());
+        cases.addAll(BrokerBench.cases());
+        cases.addAll(PublisherBench.cases());
+
+        System.out.println("java " + System.getProperty("java.version") + ", " + warmups + " warm-up and "
+                + iterations + " measured iterations of " + millis + "ms, seed " + SEED);
+        System.out.println(String.format("%-36s %-32s %12s %10s %10s", "benchmark", "params", "ns/op", "+-",
+                "bytes/op"));
+        for (Case c : cases) {
+            if (!filter.matcher(c.name + " " + c.params).find())
+                continue;
+            double[] result = measure(c.setup.get(), warmups, iterations, millis);
+            System.out.println(String.format("%-36s %-32s %12.1f %10.1f %10.1f", c.name, c.params, result[0],
+                    result[1], result[2]));
+        }
+    }
+
+    /**
+     * Runs the operation for the warm-up iterations and then for the measured
+     * ones.
+     *
+     * @return mean ns per operation, its standard deviation and bytes allocated
+     *         per operation
+     */
+    private static double[] measure(Operation op, int warmups, int iterations, int millis) {
+        for (int i = 0; i < warmups; i++)
+            iterate(op, millis);
+        double[] nanosPerOp = new double[iterations];
+        long ops = 0;
+        long allocated = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long[] run = iterate(op, millis);
+            nanosPerOp[i] = (double) run[1] / run[0];
+            ops += run[0];
+        }
+        allocated = allocatedBytes() - allocated;
+
+        double mean = 0;
+        for (double value : nanosPerOp)
+            mean += value / iterations;
+        double variance = 0;
+        for (double value : nanosPerOp)
+            variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+        return new double[] { mean, Math.sqrt(variance), allocated < 0 ? Double.NaN : (double) allocated / ops };
+    }
+
+    /**
+     * Calls the operation until the iteration has lasted the given time, checking
+     * the clock only every <b><code>CALLS_PER_CHECK</code></b> calls.
+     *
+     * @return number of calls and the ns they took
+     */
+    private static long[] iterate(Operation op, int millis) {
+        long deadline = millis * 1_000_000L;
+        long result = 0;
+        int calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < CALLS_PER_CHECK; i++)
+                result += op.run(calls++);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < deadline);
+        sink += result;
+        return new long[] { calls, elapsed };
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread so far, or -1 if the JVM
+     * doesn't track them.
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import Protocol.Cache;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Benchmarks of the topic tree the broker keeps content and subscribers in.
+ * Topics are spread over <b><code>MAIN_TOPICS</code></b> main topics, each
+ * with 16 subtopics holding the rest of the topics below them, and every topic
+ * holds a full cache of content.
+ */
+class CacheBench {
+    private static final int MAIN_TOPICS = 8;
+    private static final int[] TOPICS = { 64, 4096 };
+
+    static List<Bench.Case> cases() {
+        List<Bench.Case> cases = new ArrayList<Bench.Case>();
+        for (int topics : TOPICS) {
+            String params = "topics=" + topics;
+            cases.add(new Bench.Case("cache.addContent", params, () -> {
+                Cache<Object> cache = filledCache(topics);
+                String[] paths = topics(topics);
+                return i -> {
+                    cache.addContent(paths[i & (paths.length - 1)], "content");
+                    return 1;
+                };
+            }));
+            cases.add(new Bench.Case("cache.get", params, () -> {
+                Cache<Object> cache = filledCache(topics);
+                String[] paths = topics(topics);
+                return i -> cache.get(paths[i & (paths.length - 1)]).size();
+            }));
+            cases.add(new Bench.Case("cache.get/*", params, () -> {
+                Cache<Object> cache = filledCache(topics);
+                String[] paths = subtopicPatterns();
+                return i -> cache.get(paths[i & (paths.length - 1)]).size();
+            }));
+            cases.add(new Bench.Case("cache.getAll", params, () -> {
+                Cache<Object> cache = filledCache(topics);
+                return i -> cache.getAll("M" + (i % MAIN_TOPICS)).size();
+            }));
+        }
+        return cases;
+    }
+
+    /**
+     * Returns the topics of a tree of the given size, a power of two.
+     */
+    static String[] topics(int count) {
+        String[] topics = new String[count];
+        for (int i = 0; i < count; i++)
+            topics[i] = "M" + (i % MAIN_TOPICS) + "/s" + (i / MAIN_TOPICS % 16) + "/t" + i;
+        return topics;
+    }
+
+    /**
+     * Returns a <b><code>main/subtopic/*</code></b> pattern for every subtopic.
+     */
+    private static String[] subtopicPatterns() {
+        String[] patterns = new String[MAIN_TOPICS * 16];
+        for (int i = 0; i < patterns.length; i++)
+            patterns[i] = "M" + (i % MAIN_TOPICS) + "/s" + (i / MAIN_TOPICS) + "/*";
+        return patterns;
+    }
+
+    private static Cache<Object> filledCache(int count) {
+        Cache<Object> cache = new Cache<Object>();
+        cache.setMaxCacheLength(8);
+        for (String topic : topics(count)) {
+            for (int i = 0; i < 8; i++)
+                cache.addContent(topic, "content " + i);
+        }
+        return cache;
+    }
+}
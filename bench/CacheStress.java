@@ -0,0 +1,95 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Protocol.Cache;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Stress test of the topic tree under concurrent use. Writer threads add
+ * content to the subtopics of a single main topic while reader threads keep
+ * reading them back, both through a wildcard and a single subtopic. <br>
+ * </br>
+ * Fails with exit status 1 if any thread throws or if the cache doesn't hold
+ * every added content once the writers finish, then checks that a cache of
+ * bounded length only retains its most recent content.
+ */
+public final class CacheStress {
+    private static final int SUBTOPICS = 10;
+
+    private CacheStress() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // args[0] = (optional) number of writer threads
+        // args[1] = (optional) number of reader threads
+        // args[2] = (optional) number of contents added by each writer
+
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int perWriter = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+
+        Cache<Integer> cache = new Cache<Integer>();
+        cache.setMaxCacheLength(writers * perWriter);
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch writing = new CountDownLatch(writers);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < writers; w++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perWriter; i++)
+                        cache.addContent("T/s" + (i % SUBTOPICS), i);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    errors.incrementAndGet();
+                }
+                writing.countDown();
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (writing.getCount() > 0) {
+                        cache.get("T/*");
+                        cache.get("T/s1");
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    errors.incrementAndGet();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        long retained = 0;
+        for (ArrayList<Integer> contents : cache.get("T/*").values())
+            retained += contents.size();
+        long expected = (long) writers * perWriter;
+        System.out.println(writers + " writers, " + readers + " readers, " + ms + "ms: errors=" + errors.get()
+                + " retained=" + retained + " expected=" + expected);
+
+        Cache<Integer> bounded = new Cache<Integer>();
+        bounded.setMaxCacheLength(3);
+        for (int i = 0; i < 10; i++)
+            bounded.addContent("A/b", i);
+        ArrayList<Integer> kept = bounded.get("A/b").get("A/b");
+        boolean boundedOk = kept != null && kept.size() == 3 && kept.get(0) == 7 && kept.get(2) == 9;
+        System.out.println("bounded cache of 3 retained " + kept);
+
+        if (errors.get() > 0 || retained != expected || !boundedOk) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,163 @@
+package Protocol.Broker;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import Protocol.Protocol;
+import Protocol.Connection.Connection;
+import bench.Bench;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Benchmarks of the broker: matching published topics against subscribed
+ * topics, both one pair at a time and across all subscribers, and reading the
+ * header and content of received publisher packets. <br>
+ * </br>
+ * Content is published to <b><code>PUBLISHED</code></b> topics spread over 8
+ * main topics. With exact patterns every subscriber subscribes to one of these
+ * topics, with mixed patterns a third do, a third subscribe to
+ * <b><code>main/subtopic/*</code></b> and a third to
+ * <b><code>main/**</code></b>.
+ */
+public class BrokerBench {
+    private static final int PUBLISHED = 1024;
+    private static final int[] SUBSCRIBERS = { 10, 1000, 10000, 100000 };
+    private static final String[] PATTERNS = { "exact", "mixed" };
+
+    public static List<Bench.Case> cases() {
+        List<Bench.Case> cases = new ArrayList<Bench.Case>();
+        for (String patterns : new String[] { "exact", "*", "**" }) {
+            cases.add(new Bench.Case("broker.matchesTopic", "pattern=" + patterns, () -> {
+                String[] topics = topics();
+                String[] subscribed = new String[topics.length];
+                for (int i = 0; i < topics.length; i++) {
+                    String topic = topics[(i * 7) & (topics.length - 1)];
+                    subscribed[i] = patterns.equals("exact") ? topic
+                            : topic.substring(0, topic.lastIndexOf('/') + 1) + patterns;
+                }
+                return i -> Broker.matchesTopic(topics[i & (topics.length - 1)],
+                        subscribed[i & (topics.length - 1)]) ? 1 : 0;
+            }));
+        }
+        for (String patterns : PATTERNS) {
+            for (int subscribers : SUBSCRIBERS) {
+                String params = "subscribers=" + subscribers + " patterns=" + patterns;
+                cases.add(new Bench.Case("broker.confirmedSubscribers", params, () -> {
+                    SubscriptionIndex index = new SubscriptionIndex();
+                    String[] subscribed = subscriptions(subscribers, patterns);
+                    for (int i = 0; i < subscribers; i++)
+                        index.add(subscribed[i], subscriber(i, subscribed[i]));
+                    String[] topics = topics();
+                    return i -> index.match(topics[i & (topics.length - 1)]).size();
+                }));
+                cases.add(new Bench.Case("broker.confirmedSubscribers.linear", params, () -> {
+                    String[] subscribed = subscriptions(subscribers, patterns);
+                    String[] topics = topics();
+                    return i -> {
+                        String topic = topics[i & (topics.length - 1)];
+                        int matched = 0;
+                        for (String pattern : subscribed) {
+                            if (Broker.matchesTopic(topic, pattern))
+                                matched++;
+                        }
+                        return matched;
+                    };
+                }));
+            }
+        }
+        cases.add(new Bench.Case("broker.matchCache.hit", "topics=" + PUBLISHED, () -> {
+            MatchCache cache = new MatchCache(MatchCache.DEFAULT_CAPACITY);
+            String[] topics = topics();
+            Connection[] subscribers = new Connection[] { subscriber(0, topics[0]).getConnection() };
+            for (String topic : topics)
+                cache.put(topic, subscribers, cache.getGeneration());
+            return i -> cache.get(topics[i & (topics.length - 1)]).length;
+        }));
+        for (String content : new String[] { "str", "int" }) {
+            cases.add(new Bench.Case("handler.parse", "content=" + content, () -> {
+                ByteBuffer[] packets = packets(content.equals("str"));
+                PacketHandler[] handlers = new PacketHandler[packets.length];
+                for (int i = 0; i < packets.length; i++)
+                    handlers[i] = new PacketHandler(packets[i], null, null, null, null);
+                return i -> {
+                    ByteBuffer packet = packets[i & (packets.length - 1)];
+                    PacketHandler handler = handlers[i & (packets.length - 1)];
+                    int offset = Protocol.headerLength(packet);
+                    String topic = handler.stringContent(Protocol.HEADER_LEN, 0xFF & packet.get(Protocol.TOPIC_LEN));
+                    long value = packet.get(Protocol.DATA_TYPE) == Protocol.STR
+                            ? handler.stringContent(offset, packet.limit() - offset).length()
+                            : handler.integerContent(offset, packet.limit() - offset);
+                    return Protocol.packetType(packet) + topic.length() + value;
+                };
+            }));
+        }
+        return cases;
+    }
+
+    /**
+     * Returns the topics content is published to.
+     */
+    private static String[] topics() {
+        String[] topics = new String[PUBLISHED];
+        for (int i = 0; i < PUBLISHED; i++)
+            topics[i] = "M" + (i % 8) + "/s" + (i / 8 % 16) + "/t" + i;
+        return topics;
+    }
+
+    /**
+     * Returns the subscribed topic of every subscriber.
+     */
+    private static String[] subscriptions(int subscribers, String patterns) {
+        String[] topics = topics();
+        Random random = new Random(Bench.SEED);
+        String[] subscribed = new String[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            String topic = topics[random.nextInt(PUBLISHED)];
+            int kind = patterns.equals("exact") ? 0 : i % 3;
+            if (kind == 0)
+                subscribed[i] = topic;
+            else if (kind == 1)
+                subscribed[i] = topic.substring(0, topic.lastIndexOf('/')) + "/*";
+            else
+                subscribed[i] = topic.substring(0, topic.indexOf('/')) + "/**";
+        }
+        return subscribed;
+    }
+
+    private static SubscriberData subscriber(int i, String topic) {
+        return new SubscriberData(new Connection(InetAddress.getLoopbackAddress(), 20000 + i), topic);
+    }
+
+    /**
+     * Returns publisher packets to every published topic, with string content or
+     * integer content in its minimal form.
+     */
+    private static ByteBuffer[] packets(boolean strings) {
+        String[] topics = topics();
+        Random random = new Random(Bench.SEED);
+        ByteBuffer[] packets = new ByteBuffer[256];
+        for (int i = 0; i < packets.length; i++) {
+            byte[] topic = topics[i].getBytes();
+            byte[] content = strings ? ("content " + random.nextInt()).getBytes() : minimal(random.nextInt());
+            ByteBuffer packet = ByteBuffer.allocate(Protocol.HEADER_LEN + topic.length + content.length);
+            packet.put(Protocol.PUBLISHER).put(Protocol.CACHE_Y).put(strings ? Protocol.STR : Protocol.INT)
+                    .put((byte) topic.length).put(topic).put(content).flip();
+            packets[i] = packet;
+        }
+        return packets;
+    }
+
+    private static byte[] minimal(int value) {
+        int length = 4 - Integer.numberOfLeadingZeros(value) / 8;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (value >>> (8 * (length - i - 1)));
+        return bytes;
+    }
+}
@@ -0,0 +1,49 @@
+package Protocol.Publisher;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import Protocol.TopicDictionary;
+import Protocol.Connection.Connection;
+import bench.Bench;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Benchmarks of the publisher: converting integer content to its minimal form
+ * and putting together publisher packets, with the topic bytes or a topic id in
+ * the header.
+ */
+public class PublisherBench {
+    private static final int VALUES = 1024;
+
+    public static List<Bench.Case> cases() {
+        List<Bench.Case> cases = new ArrayList<Bench.Case>();
+        for (int bits : new int[] { 8, 16, 32 }) {
+            cases.add(new Bench.Case("publisher.integerToMinimalByteArray", "bits=" + bits, () -> {
+                Random random = new Random(Bench.SEED);
+                int[] values = new int[VALUES];
+                for (int i = 0; i < VALUES; i++)
+                    values[i] = bits == 32 ? random.nextInt() : random.nextInt(1 << bits);
+                return i -> PublisherSender.integerToMinimalByteArray(values[i & (VALUES - 1)]).length;
+            }));
+        }
+        for (String content : new String[] { "str", "int" }) {
+            for (String header : new String[] { "topic", "id" }) {
+                cases.add(new Bench.Case("publisher.assemblePacket", "content=" + content + " header=" + header,
+                        () -> {
+                            Connection broker = new Connection(InetAddress.getLoopbackAddress(), 12345);
+                            Object value = content.equals("str") ? (Object) "21.5 degrees" : (Object) 215;
+                            PublisherSender sender = new PublisherSender("TEMP/room1/sensor", broker, value, true);
+                            int id = header.equals("id") ? 1 : TopicDictionary.NO_ID;
+                            return i -> sender.assemblePacket(id).length;
+                        }));
+            }
+        }
+        return cases;
+    }
+}
@@ -1,6 +1,10 @@
 package src;
 
 import Protocol.Broker.Broker;
+import Protocol.Broker.FsyncPolicy;
+import Protocol.Broker.OverloadPolicy;
+import Protocol.Execution;
+import Protocol.Log;
 import Protocol.Connection.Connection;
 
 /**
@@ -11,17 +15,85 @@ public class BrokerServer {
     public static void main(String[] args) {
         // args[0] = this broker's port
         // args[1] = list of other brokers: 123.45.6.7:8910@123.45.6.7:8910@...
+        // args[2] = (optional) number of packet handling workers
+        // args[3] = (optional) capacity of the packet dispatch queue
+        // args[4] = (optional) thread mode: platform/virtual
+        // args[5] = (optional) overload policy: drop_oldest/neg_ack/block
+        // args[6] = (optional) number of receivers sharing the port
+        // args[7] = (optional) store of retained content: heap/offheap
+        // args[8] = (optional) directory of the retained content log, or none
+        // args[9] = (optional) fsync policy of the log: always/interval/never
+        // args[10] = (optional) log level: trace/debug/info/warn/error/off
+        // args[11] = (optional) interval in ms of the $SYS statistics, 0 to disable
+        // args[12] = (optional) delivery window: packets in flight to each subscriber or broker, 1 is stop-and-wait
+        // args[13] = (optional) batching of content sent to the same subscriber at once: on/off
+        // args[14] = (optional) ack window in ms in which acknowledgements to a peer are packed into one MULTI_ACK, 0 to disable
+
+        if(args.length > 10) {
+            try {
+                Log.setLevel(Log.Level.valueOf(args[10].toUpperCase()));
+            } catch(IllegalArgumentException e) {
+                System.out.println("Invalid log level.");
+                return;
+            }
+        }
 
         int port = Integer.parseInt(args[0]);
         Connection[] brokers = getBrokers(args[1]);
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int queueCapacity = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+        boolean virtualThreads = args.length > 4 && args[4].equalsIgnoreCase("virtual");
+        if(virtualThreads) {
+            virtualThreads = Execution.setVirtualThreads(true);
+        }
+        OverloadPolicy policy = OverloadPolicy.NEG_ACK;
+        if(args.length > 5) {
+            try {
+                policy = OverloadPolicy.valueOf(args[5].toUpperCase());
+            } catch(IllegalArgumentException e) {
+                System.out.println("Invalid overload policy.");
+                return;
+            }
+        }
+       
+        int receivers = args.length > 6 ? Integer.parseInt(args[6]) : 1;
        
         Broker broker;
         try {
-            broker = new Broker(port);
+            broker = new Broker(port, workers, queueCapacity, virtualThreads, policy, receivers);
         } catch(Exception e) {
             System.out.println("Error: Port already in use.");
             return;
         }
+        if(args.length > 7 && args[7].equalsIgnoreCase("offheap")) {
+            broker.useOffHeapStore();
+        }
+        if(args.length > 8 && !args[8].equalsIgnoreCase("none")) {
+            try {
+                FsyncPolicy fsync = args.length > 9 ? FsyncPolicy.valueOf(args[9].toUpperCase()) : FsyncPolicy.INTERVAL;
+                broker.usePersistentStore(args[8], fsync);
+            } catch(IllegalArgumentException e) {
+                System.out.println("Invalid fsync policy.");
+                broker.stopListening();
+                return;
+            } catch(Exception e) {
+                System.out.println("Error: Could not open the retained content log.");
+                broker.stopListening();
+                return;
+            }
+        }
+        if(args.length > 11) {
+            broker.setMetricsInterval(Integer.parseInt(args[11]));
+        }
+        if(args.length > 12) {
+            broker.setDeliveryWindow(Integer.parseInt(args[12]));
+        }
+        if(args.length > 13) {
+            broker.setBatching(!args[13].equalsIgnoreCase("off"));
+        }
+        if(args.length > 14) {
+            broker.setAckWindow(Integer.parseInt(args[14]));
+        }
         for(Connection conn : brokers) {
             broker.addBroker(conn);
         }
@@ -0,0 +1,435 @@
+package src;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import Protocol.Execution;
+import Protocol.MemoryTransport;
+import Protocol.TopicPath;
+import Protocol.Transport;
+import Protocol.Broker.Broker;
+import Protocol.Broker.OverloadPolicy;
+import Protocol.Connection.Connection;
+import Protocol.Publisher.Publisher;
+import Protocol.Subscriber.SubscribeResult;
+import Protocol.Subscriber.Subscriber;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Load generator which runs publishers and subscribers over loopback against
+ * one or more running brokers and measures the broker end to end. Publishers and
+ * subscribers are spread across the brokers round robin. Subscribers subscribe
+ * either to a single topic or, with the given probability, to all subtopics of a
+ * main topic with * or **. Publishers publish at a fixed total rate to topics
+ * picked from a Zipf distribution, which is uniform with a skew of 0. <br>
+ * </br>
+ * Every message carries the time it was published at, so that subscribers in
+ * this process can measure its end-to-end latency. Reports throughput, how many
+ * messages were acknowledged, refused or never acknowledged, how many were
+ * retransmitted, how many expected deliveries arrived, the latency
+ * percentiles and the peak number of live threads, to compare packet handlers
+ * on platform and virtual threads. Retransmissions of the brokers are read from their
+ * <b><code>$SYS</code></b> statistics, if they publish them. <br>
+ * </br>
+ * Given <b><code>memory</code></b> instead of a list of brokers, a broker is
+ * started in this process and every packet goes over a
+ * <b><code>MemoryTransport</code></b>, so that the protocol itself is measured
+ * without any system calls. The virtual clock of the transport follows real
+ * time, so that timeouts behave as they would over UDP.
+ */
+public class LoadGen {
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final int MEMORY_PORT = 12345;
+
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder acked = new LongAdder();
+    private static final LongAdder refused = new LongAdder();
+    private static final LongAdder lost = new LongAdder();
+    private static final LongAdder retransmissions = new LongAdder();
+    private static final LongAdder expected = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder duplicates = new LongAdder();
+    private static final Histogram endToEnd = new Histogram();
+    private static final Histogram ackLatency = new Histogram();
+    private static final ConcurrentHashMap<String, Integer> brokerStats = new ConcurrentHashMap<String, Integer>();
+
+    public static void main(String[] args) throws Exception {
+        // args[0] = brokers to load: 123.45.6.7:8910@123.45.6.7:8910@..., or memory for a broker in this process
+        // args[1] = (optional) number of publishers
+        // args[2] = (optional) number of subscribers
+        // args[3] = (optional) total messages published per second
+        // args[4] = (optional) length of the run in seconds
+        // args[5] = (optional) number of main topics
+        // args[6] = (optional) number of subtopics of every main topic
+        // args[7] = (optional) fraction of subscribers using * or **, 0 to 1
+        // args[8] = (optional) skew of the topic distribution, 0 for uniform
+        // args[9] = (optional) first local port used by the subscribers
+        // args[10] = (optional) platform or virtual threads for packet handlers of the clients and in-memory broker
+        // args[11] = (optional) delivery window of the in-memory broker, 1 is stop-and-wait
+        // args[12] = (optional) batching of the in-memory broker: on/off
+        // args[13] = (optional) ack window in ms of the in-memory broker, 0 acknowledges every packet at once
+        // args[14] = (optional) ack window in ms of the subscribers, 0 acknowledges every packet at once
+
+        boolean memory = args.length > 0 && args[0].equalsIgnoreCase("memory");
+        Connection[] brokers = memory ? null : BrokerServer.getBrokers(args.length > 0 ? args[0] : "localhost:12345");
+        int publishers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int subscribers = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int rate = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int mainTopics = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+        int subtopics = args.length > 6 ? Integer.parseInt(args[6]) : 16;
+        double wildcards = args.length > 7 ? Double.parseDouble(args[7]) : 0.25;
+        double skew = args.length > 8 ? Double.parseDouble(args[8]) : 0;
+        int port = args.length > 9 ? Integer.parseInt(args[9]) : 50000;
+        boolean virtualThreads = args.length > 10 && args[10].equalsIgnoreCase("virtual");
+        if (virtualThreads)
+            virtualThreads = Execution.setVirtualThreads(true);
+        int deliveryWindow = args.length > 11 ? Integer.parseInt(args[11]) : 1;
+        boolean batching = args.length <= 12 || !args[12].equalsIgnoreCase("off");
+        int brokerAckWindow = args.length > 13 ? Integer.parseInt(args[13]) : 0;
+        int ackWindow = args.length > 14 ? Integer.parseInt(args[14]) : 0;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Silences the clients
+
+        Transport transport = Transport.udp();
+        MemoryTransport memoryTransport = null;
+        if (memory) {
+            memoryTransport = new MemoryTransport();
+            brokers = new Connection[] {
+                    memoryBroker(memoryTransport, virtualThreads, deliveryWindow, batching, brokerAckWindow) };
+            transport = memoryTransport;
+        }
+
+        Random random = new Random(19334866);
+        String[] topics = new String[mainTopics * subtopics];
+        for (int i = 0; i < topics.length; i++)
+            topics[i] = "LOAD" + (i % mainTopics) + "/s" + (i / mainTopics);
+
+        for (int i = 0; i < brokers.length; i++) {
+            Subscriber stats = new Subscriber(local(port, memory), brokers[i], transport);
+            port += 2;
+            String broker = brokers[i].toString();
+            stats.setNotifs(false);
+            stats.setContentListener((topic, content) -> {
+                if (content instanceof Integer)
+                    brokerStats.merge(broker + " " + topic, (Integer) content, Math::max);
+            });
+            stats.subscribeAsync("$SYS/packets/*", true);
+        }
+
+        String[] patterns = new String[subscribers];
+        ArrayList<CompletableFuture<SubscribeResult>> subscriptions;
+        subscriptions = new ArrayList<CompletableFuture<SubscribeResult>>();
+        for (int i = 0; i < subscribers; i++) {
+            String mainTopic = "LOAD" + random.nextInt(mainTopics);
+            if (random.nextDouble() >= wildcards)
+                patterns[i] = mainTopic + "/s" + random.nextInt(subtopics);
+            else
+                patterns[i] = mainTopic + (random.nextBoolean() ? "/*" : "/**");
+            Subscriber subscriber = new Subscriber(local(port, memory), brokers[i % brokers.length], transport);
+            port += 2;
+            subscriber.setNotifs(false);
+            subscriber.setAckWindow(ackWindow);
+            Set<Long> seen = ConcurrentHashMap.newKeySet();
+            subscriber.setContentListener((topic, content) -> received(content, seen));
+            subscriptions.add(subscriber.subscribeAsync(patterns[i], true));
+        }
+        int subscribed = 0;
+        for (int i = 0; i < subscribers; i++) {
+            try {
+                if (subscriptions.get(i).get().isAccepted()) {
+                    subscribed++;
+                    continue;
+                }
+            } catch (Exception e) {
+                // Counted as not subscribed
+            }
+            patterns[i] = null;
+        }
+        int[] matches = new int[topics.length];
+        for (int t = 0; t < topics.length; t++) {
+            for (String pattern : patterns) {
+                if (pattern != null && TopicPath.matches(topics[t], pattern))
+                    matches[t]++;
+            }
+        }
+
+        Publisher[] senders = new Publisher[publishers];
+        for (int i = 0; i < publishers; i++)
+            senders[i] = new Publisher(brokers[i % brokers.length], "LOAD" + (i % mainTopics), transport);
+        double[] cumulative = zipf(topics.length, skew);
+
+        console.println("brokers=" + (memory ? "memory" : brokers.length) + " publishers=" + publishers
+                + " subscribers=" + subscribed + "/" + subscribers + " rate=" + rate + "/s topics=" + topics.length + " wildcards=" + wildcards
+                + " skew=" + skew);
+        console.println((memory ? "window=" + deliveryWindow + " batching=" + (batching ? "on" : "off")
+                + " broker ack window=" + brokerAckWindow + "ms " : "") + "subscriber ack window=" + ackWindow + "ms");
+        Thread.sleep(1000);
+        ConcurrentHashMap<String, Integer> statsBefore = new ConcurrentHashMap<String, Integer>(brokerStats);
+        long datagramsBefore = memory ? memoryTransport.getDeliveredCount() : 0;
+
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long report = start + TimeUnit.SECONDS.toNanos(1);
+        for (long k = 0;; k++) {
+            long due = start + k * period;
+            long now = System.nanoTime();
+            if (due >= end)
+                break;
+            if (due > now)
+                LockSupport.parkNanos(due - now);
+            if (System.nanoTime() >= report) {
+                console.println(String.format("t=%2ds published=%d acked=%d delivered=%d/%d",
+                        TimeUnit.NANOSECONDS.toSeconds(report - start), published.sum(), acked.sum(),
+                        delivered.sum(), expected.sum()));
+                report += TimeUnit.SECONDS.toNanos(1);
+            }
+            int topic = pick(cumulative, random.nextDouble());
+            publish(senders[(int) (k % publishers)], topics[topic], k, matches[topic]);
+        }
+        long elapsed = System.nanoTime() - start;
+        long drainEnd = System.nanoTime() + DRAIN_NANOS;
+        while (System.nanoTime() < drainEnd && (acked.sum() + refused.sum() + lost.sum() < published.sum()
+                || delivered.sum() < expected.sum()))
+            Thread.sleep(10);
+
+        double runSeconds = elapsed / 1e9;
+        long messages = published.sum();
+        console.println();
+        console.println(String.format("published     %d (%.0f/s)", messages, messages / runSeconds));
+        console.println(String.format("acked         %d, refused %d, never acked %d (%.3f%%)", acked.sum(),
+                refused.sum(), lost.sum(), 100.0 * lost.sum() / Math.max(1, messages)));
+        console.println("retransmitted " + retransmissions.sum() + " by publishers" + brokerDelta(statsBefore));
+        if (memory)
+            console.println("packets       " + (memoryTransport.getDeliveredCount() - datagramsBefore)
+                    + " datagrams delivered in memory, all peers, acknowledgements and $SYS included");
+        console.println(String.format("delivered     %d of %d expected (%.3f%%), %.0f/s, %d duplicates",
+                delivered.sum(), expected.sum(), 100.0 * delivered.sum() / Math.max(1, expected.sum()),
+                delivered.sum() / runSeconds, duplicates.sum()));
+        console.println("end to end    " + endToEnd.describe());
+        console.println("ack           " + ackLatency.describe());
+        console.println("threads       peak " + ManagementFactory.getThreadMXBean().getPeakThreadCount()
+                + " live during the run, " + (virtualThreads ? "virtual" : "platform") + " handlers");
+
+        for (Publisher sender : senders)
+            sender.close();
+        System.exit(0); // Subscribers stop with the process
+    }
+
+    /**
+     * Starts a broker in this process on the in-memory transport, along with a
+     * thread moving the virtual clock of the transport forward with real time.
+     * The broker publishes its <b><code>$SYS</code></b> statistics every second,
+     * so that the counts reported at the end of a run are recent.
+     *
+     * @param virtualThreads true if the broker handles packets on virtual threads
+     * @param window         packets in flight to each subscriber
+     * @param batching       true if content sent at once is batched
+     * @param ackWindow      window in ms in which acknowledgements are coalesced
+     * @return connection to the broker
+     */
+    private static Connection memoryBroker(MemoryTransport transport, boolean virtualThreads, int window,
+            boolean batching, int ackWindow) throws Exception {
+        Broker broker = new Broker(MEMORY_PORT, 16, 4096, virtualThreads, OverloadPolicy.NEG_ACK, 1, transport);
+        broker.setDeliveryWindow(window);
+        broker.setBatching(batching);
+        broker.setAckWindow(ackWindow);
+        broker.setMetricsInterval(1000);
+        broker.listen();
+        Thread clock = new Thread(() -> {
+            long last = System.nanoTime();
+            while (true) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                long millis = (System.nanoTime() - last) / 1000000;
+                if (millis > 0) {
+                    transport.advance(millis);
+                    last += millis * 1000000;
+                }
+            }
+        });
+        clock.setDaemon(true);
+        clock.start();
+        return new Connection(InetAddress.getLocalHost(), MEMORY_PORT);
+    }
+
+    /**
+     * Returns the local connection of a subscriber. Over UDP the port is checked
+     * to be free, which the in-memory transport doesn't need.
+     */
+    private static Connection local(int port, boolean memory) throws Exception {
+        return memory ? new Connection(InetAddress.getLocalHost(), port) : new Connection(port);
+    }
+
+    /**
+     * Publishes a message stamped with the current time and counts the
+     * deliveries expected for it.
+     */
+    private static void publish(Publisher sender, String topic, long id, int matches) {
+        published.increment();
+        expected.add(matches);
+        sender.publishAsync(topic, id + ":" + System.nanoTime(), false).whenComplete((result, failure) -> {
+            if (failure != null) {
+                lost.increment();
+                return;
+            }
+            if (result.isAccepted())
+                acked.increment();
+            else
+                refused.increment();
+            retransmissions.add(result.getAttempts() - 1);
+            ackLatency.record(result.getLatencyNanos());
+        });
+    }
+
+    /**
+     * Content listener of the subscribers, measuring the latency of every message
+     * from the time stamped into it. Messages the subscriber has already received,
+     * because the broker retransmitted them, are only counted as duplicates.
+     */
+    private static void received(Object content, Set<Long> seen) {
+        if (!(content instanceof String))
+            return;
+        String message = (String) content;
+        int separator = message.indexOf(':');
+        if (separator < 0)
+            return;
+        try {
+            long sentAt = Long.parseLong(message.substring(separator + 1));
+            if (!seen.add(Long.parseLong(message.substring(0, separator)))) {
+                duplicates.increment();
+                return;
+            }
+            delivered.increment();
+            endToEnd.record(System.nanoTime() - sentAt);
+        } catch (NumberFormatException e) {
+            // Not a load generator message
+        }
+    }
+
+    /**
+     * Describes how many packets the brokers sent, retransmitted and gave up on
+     * during the run, according to their latest <b><code>$SYS</code></b> statistics.
+     */
+    private static String brokerDelta(ConcurrentHashMap<String, Integer> before) {
+        long sent = 0, retransmitted = 0, abandoned = 0;
+        boolean seen = false;
+        for (String key : brokerStats.keySet()) {
+            long delta = brokerStats.get(key) - before.getOrDefault(key, 0);
+            if (key.endsWith("$SYS/packets/sent")) {
+                sent += delta;
+            } else if (key.endsWith("$SYS/packets/retransmitted")) {
+                retransmitted += delta;
+                seen = true;
+            } else if (key.endsWith("$SYS/packets/abandoned")) {
+                abandoned += delta;
+            }
+        }
+        if (!seen)
+            return ", brokers n/a (no $SYS statistics)";
+        return ", " + retransmitted + " by brokers (" + abandoned + " abandoned) of " + sent
+                + " sent, as of their last $SYS update";
+    }
+
+    /**
+     * Returns the cumulative distribution of a Zipf distribution over the given
+     * number of ranks.
+     */
+    private static double[] zipf(int ranks, double skew) {
+        double[] cumulative = new double[ranks];
+        double total = 0;
+        for (int i = 0; i < ranks; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < ranks; i++)
+            cumulative[i] /= total;
+        return cumulative;
+    }
+
+    /**
+     * Returns the first rank whose cumulative probability reaches the sample.
+     */
+    private static int pick(double[] cumulative, double sample) {
+        int low = 0, high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < sample)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Histogram of latencies in us, exact below 64us and within about 3% above,
+     * with 32 buckets for every power of two. Recording is a single atomic
+     * increment, so it can be shared by all client threads.
+     */
+    private static class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private LongAdder total = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int index;
+            if (micros < SUB_BUCKETS) {
+                index = (int) micros;
+            } else {
+                int exponent = 63 - Long.numberOfLeadingZeros(micros);
+                int sub = (int) ((micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+                index = (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+            }
+            counts.incrementAndGet(Math.min(index, counts.length() - 1));
+            total.increment();
+        }
+
+        /**
+         * Returns the lowest latency of the bucket holding the given percentile.
+         */
+        long percentile(double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(total.sum() * percentile));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return lowest(i);
+            }
+            return lowest(counts.length() - 1);
+        }
+
+        private static long lowest(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int shift = index / SUB_BUCKETS - 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        }
+
+        String describe() {
+            if (total.sum() == 0)
+                return "n=0";
+            return String.format("n=%d p50=%dus p99=%dus p999=%dus max=%dus", total.sum(), percentile(0.5),
+                    percentile(0.99), percentile(0.999), percentile(1));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package src;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Protocol.Log;
+import Protocol.Log.Level;
+import Protocol.Protocol;
+import Protocol.Broker.Broker;
+import Protocol.Broker.OverloadPolicy;
+
+/**
+ * @author Dominik Guzowski, 19334866
+ */
+
+/**
+ * Local load generator which measures how many publisher packets a broker
+ * acknowledges per second with 1 up to N receivers sharing its port. Every
+ * client publishes from a socket of its own, keeping a window of packets in
+ * flight, so that the kernel can spread the clients across the receivers. The
+ * measurement can be repeated for several log modes, to show what logging costs
+ * the broker. Logged messages are discarded, so that only the cost of logging
+ * itself is measured and not the speed of the console.
+ */
+public class ReceiverBench {
+    private static final int WINDOW = 8;
+
+    public static void main(String[] args) throws Exception {
+        // args[0] = (optional) largest number of receivers to measure
+        // args[1] = (optional) number of publishing clients
+        // args[2] = (optional) length of each run in seconds
+        // args[3] = (optional) first port used by the brokers
+        // args[4] = (optional) log modes to measure: info,trace,trace/sync,...
+
+        int maxReceivers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 45000;
+        String[] modes = (args.length > 4 ? args[4] : Log.getLevel().name()).split(",");
+
+        PrintStream console = System.out;
+        PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+        console.println("log         receivers  clients  acks/s  datagrams/call  datagrams/wakeup");
+        System.setOut(silent);
+        Level level = Log.getLevel();
+        Log.setLevel(Level.OFF);
+        Broker warmup = new Broker(port++, 16, 4096, false, OverloadPolicy.NEG_ACK, 1);
+        warmup.listen();
+        Thread.sleep(300);
+        run(port - 1, clients, seconds); // Not measured, lets the JIT compile the broker first
+        warmup.stopListening();
+        Thread.sleep(300);
+        Log.setLevel(level);
+        for (String mode : modes) {
+            String[] parts = mode.split("/");
+            Log.setLevel(Level.valueOf(parts[0].toUpperCase()));
+            Log.setAsync(parts.length < 2 || !parts[1].equalsIgnoreCase("sync"));
+            for (int receivers = 1; receivers <= maxReceivers; receivers *= 2) {
+                Broker broker = new Broker(port, 16, 4096, false, OverloadPolicy.NEG_ACK, receivers);
+                broker.listen();
+                Thread.sleep(300);
+                long acks = run(port, clients, seconds);
+                int used = broker.getReceiverCount();
+                double perCall = broker.getDatagramsPerReceiveCall();
+                double perWakeup = broker.getDatagramsPerReceiveBatch();
+                broker.stopListening();
+                console.printf("%-10s  %9d  %7d  %6d  %14.2f  %16.2f%n", mode, used, clients, acks / seconds, perCall,
+                        perWakeup);
+                port++;
+                Thread.sleep(300);
+            }
+        }
+        Log.flush();
+        System.setOut(console);
+        System.exit(0);
+    }
+
+    /**
+     * Runs the clients against the broker on the given port for the given time.
+     *
+     * @return number of positive acknowledgements received
+     */
+    private static long run(int port, int clients, int seconds) throws Exception {
+        AtomicLong acks = new AtomicLong();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            byte[] packet = assemblePacket("BENCH/t" + i, "load");
+            threads[i] = new Thread(() -> publish(port, packet, end, acks));
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        return acks.get();
+    }
+
+    /**
+     * Keeps a window of packets in flight until the end time, sending another
+     * packet for every acknowledgement and refilling the window on a timeout.
+     */
+    private static void publish(int port, byte[] buffer, long end, AtomicLong acks) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getLoopbackAddress(), port);
+            DatagramPacket ack = new DatagramPacket(new byte[buffer.length], buffer.length);
+            socket.setSoTimeout(100);
+            for (int i = 0; i < WINDOW; i++)
+                socket.send(packet);
+            while (System.currentTimeMillis() < end) {
+                try {
+                    socket.receive(ack);
+                } catch (Exception e) {
+                    for (int i = 0; i < WINDOW; i++)
+                        socket.send(packet);
+                    continue;
+                }
+                if (ack.getData()[Protocol.DATA_TYPE] == Protocol.POS_ACK)
+                    acks.incrementAndGet();
+                socket.send(packet);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Puts together a publisher packet that isn't cached, so that the broker only
+     * handles and acknowledges it.
+     */
+    private static byte[] assemblePacket(String topic, String content) {
+        byte[] topicBytes = topic.getBytes();
+        byte[] contentBytes = content.getBytes();
+        byte[] buffer = new byte[Protocol.HEADER_LEN + topicBytes.length + contentBytes.length];
+        buffer[Protocol.PACKET_TYPE] = Protocol.PUBLISHER;
+        buffer[Protocol.CACHE_REQ] = Protocol.CACHE_N;
+        buffer[Protocol.DATA_TYPE] = Protocol.STR;
+        buffer[Protocol.TOPIC_LEN] = (byte) topicBytes.length;
+        System.arraycopy(topicBytes, 0, buffer, Protocol.HEADER_LEN, topicBytes.length);
+        System.arraycopy(contentBytes, 0, buffer, Protocol.HEADER_LEN + topicBytes.length, contentBytes.length);
+        return buffer;
+    }
+}